@@ -3,6 +3,8 @@ package com.mrbbot.civilisation;
 import com.mrbbot.civilisation.logic.map.Game;
 import com.mrbbot.civilisation.logic.map.MapSize;
 import com.mrbbot.civilisation.net.CivilisationServer;
+import com.mrbbot.civilisation.net.PacketCodec;
+import com.mrbbot.civilisation.net.SyncState;
 import com.mrbbot.civilisation.net.packet.*;
 import com.mrbbot.civilisation.ui.connect.ClientCreator;
 import com.mrbbot.civilisation.ui.connect.ScreenConnect;
@@ -34,6 +36,11 @@ public class Civilisation extends Application
    * instance of the program.
    */
   private static CivilisationServer SERVER;
+  /**
+   * How up to date this client's copy of the game is. Kept between
+   * connections so rejoining only requires the changes that were missed.
+   */
+  private static final SyncState SYNC = new SyncState();
 
   /**
    * Primary stage of the application. This is where the scenes for the
@@ -113,7 +120,7 @@ public class Civilisation extends Application
   ) throws IOException {
     // Store the client so that all components of the game can send packets to
     // the server
-    CLIENT = new Client<>(
+    CLIENT = new Client<Packet>(
       host,
       port,
       id,
@@ -128,26 +135,58 @@ public class Civilisation extends Application
           primaryStage.setScene(
             screenGame.makeScene(primaryStage, width, height)
           );
-        } else if (data instanceof PacketChat) {
-          // If this was a chat packet, send it to the chat panel
-          screenGame.handlePacketChat((PacketChat) data);
+        } else if (data instanceof PacketDelta) {
+          // If we're rejoining, handle each change we missed in order
+          for (Packet packet : ((PacketDelta) data).packets) {
+            handlePacket(packet);
+          }
         } else {
-          // Otherwise, if it was anything else...
+          handlePacket(data);
+        }
+        SYNC.received(data);
+        // Tell the server we've got the new state, so it stops ignoring our
+        // updates
+        if (data instanceof PacketGame) CLIENT.broadcast(new PacketGameAck());
+      })),
+      // Use the same compact packet encoding as the server
+      new PacketCodec()
+    ) {
+      @Override
+      public void broadcast(Packet data) {
+        // Count the updates we send so the server can check none were lost
+        // if we rejoin
+        SYNC.sent(data);
+        super.broadcast(data);
+      }
+    };
+    // Send a request for the current game state, or just the changes we
+    // missed if we still have the game from a previous connection
+    CLIENT.broadcast(SYNC.createInit(screenGame != null));
+  }
 
-          // If this was a ready packet, make the "Next Turn" button clickable
-          // again
-          if (data instanceof PacketReady) {
-            screenGame.handlePacketReady((PacketReady) data);
-          }
+  /**
+   * Handles a packet received from the server once the game screen has been
+   * created. Called on the UI thread.
+   *
+   * @param data packet received from the server
+   */
+  private void handlePacket(Packet data) {
+    if (data instanceof PacketChat) {
+      // If this was a chat packet, send it to the chat panel
+      screenGame.handlePacketChat((PacketChat) data);
+    } else {
+      // Otherwise, if it was anything else...
 
-          // Get the game to handle it (likely a game state sync [unit moving,
-          // city creation, etc])
-          screenGame.renderCivilisation.root.handlePacket(data);
-        }
-      }))
-    );
-    // Send a request for the current game state
-    CLIENT.broadcast(new PacketInit());
+      // If this was a ready packet, make the "Next Turn" button clickable
+      // again
+      if (data instanceof PacketReady) {
+        screenGame.handlePacketReady((PacketReady) data);
+      }
+
+      // Get the game to handle it (likely a game state sync [unit moving,
+      // city creation, etc])
+      screenGame.renderCivilisation.root.handlePacket(data);
+    }
   }
 
   /**
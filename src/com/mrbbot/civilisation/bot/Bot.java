@@ -0,0 +1,429 @@
+package com.mrbbot.civilisation.bot;
+
+import com.mrbbot.civilisation.geometry.Path;
+import com.mrbbot.civilisation.logic.CityBuildable;
+import com.mrbbot.civilisation.logic.map.Game;
+import com.mrbbot.civilisation.logic.map.tile.Building;
+import com.mrbbot.civilisation.logic.map.tile.City;
+import com.mrbbot.civilisation.logic.map.tile.Tile;
+import com.mrbbot.civilisation.logic.unit.Unit;
+import com.mrbbot.civilisation.logic.unit.UnitAbility;
+import com.mrbbot.civilisation.logic.unit.UnitType;
+import com.mrbbot.civilisation.net.PacketCodec;
+import com.mrbbot.civilisation.net.packet.*;
+import com.mrbbot.generic.net.Client;
+import com.mrbbot.generic.net.Connection;
+import com.mrbbot.generic.net.ConnectionOptions;
+import com.mrbbot.generic.net.Handler;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Headless player that connects to a game server and plays randomly, without
+ * any UI. Keeps its own copy of the game in sync with the server the same way
+ * the real client does, and sends the same packets the UI would for moving
+ * units, founding cities, building things, chatting and ending turns.
+ */
+public class Bot implements Handler<Packet> {
+  /**
+   * Id of this bot's player
+   */
+  private final String id;
+  /**
+   * Room on the server this bot plays in, or null for the default room
+   */
+  private final String room;
+  /**
+   * Options controlling how this bot acts
+   */
+  private final BotOptions options;
+  /**
+   * Counters shared with the other bots
+   */
+  private final LoadStats stats;
+  /**
+   * Random number generator for choosing actions
+   */
+  private final Random random;
+  /**
+   * Client connected to the server
+   */
+  private Client<Packet> client;
+  /**
+   * Task acting for this bot at a fixed rate
+   */
+  private ScheduledFuture<?> actor;
+  /**
+   * This bot's copy of the game, or null if it hasn't been received yet.
+   * Guarded by this bot's lock, like the rest of the state below.
+   */
+  private Game game;
+  /**
+   * Number of actions taken this turn
+   */
+  private int actionsThisTurn;
+  /**
+   * Whether this bot has marked itself as ready and is waiting for the turn
+   * to end
+   */
+  private boolean waitingForTurn;
+  /**
+   * Value of {@link System#nanoTime()} when this bot marked itself as ready
+   */
+  private long readyAt;
+  /**
+   * Whether this bot is disconnecting, so the connection closing isn't an
+   * error
+   */
+  private volatile boolean stopping;
+
+  /**
+   * Creates a new bot
+   *
+   * @param id      id of the bot's player
+   * @param room    room on the server to play in, or null for the default
+   *                room
+   * @param options options controlling how the bot acts
+   * @param stats   counters shared with the other bots
+   */
+  public Bot(String id, String room, BotOptions options, LoadStats stats) {
+    this.id = id;
+    this.room = room;
+    this.options = options;
+    this.stats = stats;
+    this.random = new Random();
+  }
+
+  /**
+   * Connects to the server, requests the game and starts acting
+   *
+   * @param host              host name of the server
+   * @param port              port number the server is listening on
+   * @param connectionOptions options for the bot's connection
+   * @param scheduler         executor to act on
+   * @throws IOException if the bot couldn't connect
+   */
+  public void start(
+    String host,
+    int port,
+    ConnectionOptions connectionOptions,
+    ScheduledExecutorService scheduler
+  ) throws IOException {
+    client = new Client<>(
+      host,
+      port,
+      id,
+      room,
+      this,
+      new PacketCodec(),
+      connectionOptions
+    );
+    send(new PacketInit());
+
+    // Start acting at a random point in the first period, so bots don't all
+    // act at once
+    long periodMicros = (long) (1_000_000 / options.actionsPerSecond);
+    actor = scheduler.scheduleAtFixedRate(
+      this::act,
+      (long) (random.nextDouble() * periodMicros),
+      periodMicros,
+      TimeUnit.MICROSECONDS
+    );
+  }
+
+  /**
+   * Stops acting and disconnects from the server
+   */
+  public void stop() {
+    stopping = true;
+    if (actor != null) actor.cancel(false);
+    if (client != null) {
+      try {
+        client.close();
+      } catch (IOException ignored) {
+      }
+    }
+  }
+
+  /**
+   * Packet handler for the bot, called on the client's event loop
+   *
+   * @param connection connection to the server
+   * @param data       packet the server sent, or null if the connection
+   *                   closed
+   */
+  @Override
+  public synchronized void accept(Connection<Packet> connection, Packet data) {
+    if (data == null) {
+      if (!stopping) stats.disconnects.increment();
+      if (actor != null) actor.cancel(false);
+      return;
+    }
+    try {
+      if (data instanceof PacketGame) {
+        stats.packetsReceived.increment();
+        game = new Game(((PacketGame) data).map);
+        // Acknowledge the new state, so the server stops ignoring updates
+        send(new PacketGameAck());
+      } else if (data instanceof PacketDelta) {
+        for (Packet packet : ((PacketDelta) data).packets) handle(packet);
+      } else {
+        handle(data);
+      }
+    } catch (RuntimeException e) {
+      // The packet didn't make sense for this bot's copy of the game
+      stats.applyErrors.increment();
+    }
+  }
+
+  /**
+   * Applies a packet from the server to this bot's copy of the game
+   *
+   * @param packet packet to apply
+   */
+  private void handle(Packet packet) {
+    stats.packetsReceived.increment();
+    // Chat messages aren't part of the game, and nothing can be applied
+    // until the game has been received
+    if (packet instanceof PacketChat || game == null) return;
+    apply(packet);
+
+    // The server sends a ready packet when every player is ready
+    if (packet instanceof PacketReady && waitingForTurn) {
+      stats.turnCompleted(System.nanoTime() - readyAt);
+      waitingForTurn = false;
+      actionsThisTurn = 0;
+    }
+  }
+
+  /**
+   * Applies a packet to this bot's copy of the game, removing any units that
+   * died as a result like the server does
+   *
+   * @param packet packet to apply
+   */
+  private void apply(Packet packet) {
+    Tile[] tilesToUpdate = game.handlePacket(packet);
+    if (tilesToUpdate != null) {
+      for (Tile tile : tilesToUpdate) {
+        if (tile.unit != null && tile.unit.isDead()) {
+          game.units.remove(tile.unit);
+          tile.unit = null;
+        }
+      }
+    }
+  }
+
+  /**
+   * Takes the bot's next action, or marks the bot as ready once it's taken
+   * enough actions this turn. Called at a fixed rate on the scheduler.
+   */
+  private synchronized void act() {
+    if (game == null || waitingForTurn) return;
+    if (actionsThisTurn >= options.actionsPerTurn) {
+      ready();
+      return;
+    }
+    actionsThisTurn++;
+
+    // Pick an action, falling back to moving a unit if it's not possible
+    int choice = random.nextInt(Math.max(1, options.getTotalWeight()));
+    boolean acted;
+    if ((choice -= options.moveWeight) < 0) {
+      acted = moveUnit();
+    } else if ((choice -= options.settleWeight) < 0) {
+      acted = foundCity() || moveUnit();
+    } else if ((choice -= options.buildWeight) < 0) {
+      acted = queueBuild() || moveUnit();
+    } else {
+      acted = chat();
+    }
+    if (acted) stats.actions.increment();
+  }
+
+  /**
+   * Moves one of the bot's units towards a random nearby tile, using as many
+   * of its movement points as it can
+   *
+   * @return whether a unit was moved
+   */
+  private boolean moveUnit() {
+    List<Unit> movable = new ArrayList<>();
+    for (Unit unit : game.units) {
+      if (unit.player.id.equals(id)
+        && unit.remainingMovementPointsThisTurn > 0) {
+        movable.add(unit);
+      }
+    }
+    if (movable.isEmpty()) return false;
+    Unit unit = movable.get(random.nextInt(movable.size()));
+
+    // Pick a destination on the map near the unit
+    int radius = options.moveRadius;
+    int targetY = clamp(
+      unit.getY() + random.nextInt(2 * radius + 1) - radius,
+      game.hexagonGrid.getHeight() - 1
+    );
+    int targetX = clamp(
+      unit.getX() + random.nextInt(2 * radius + 1) - radius,
+      game.hexagonGrid.getWidth() - 1
+    );
+    Path<Tile> path = game.hexagonGrid.findPath(
+      unit.getX(),
+      unit.getY(),
+      targetX,
+      targetY,
+      unit.remainingMovementPointsThisTurn
+    );
+    if (path.path.size() <= 1) return false;
+
+    // Move as far along the path as the unit can this turn
+    Tile end = path.path.get(path.path.size() - 1);
+    return perform(new PacketUnitMove(
+      unit.getX(),
+      unit.getY(),
+      end.x,
+      end.y,
+      path.totalCost
+    ));
+  }
+
+  /**
+   * Founds a city with one of the bot's settlers that isn't in a city
+   *
+   * @return whether a city was founded
+   */
+  private boolean foundCity() {
+    for (Unit unit : game.units) {
+      if (unit.player.id.equals(id)
+        && unit.hasAbility(UnitAbility.ABILITY_SETTLE)
+        && unit.tile.city == null) {
+        int x = unit.getX();
+        int y = unit.getY();
+        // Settlers can only be used once, so delete the unit afterwards
+        return perform(new PacketCityCreate(id, x, y))
+          && perform(new PacketUnitDelete(x, y));
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Starts building something in one of the bot's cities that isn't already
+   * building anything
+   *
+   * @return whether something started being built
+   */
+  private boolean queueBuild() {
+    ArrayList<City> cities = game.getPlayersCitiesById(id);
+    for (City city : cities) {
+      if (city.currentlyBuilding != null) continue;
+
+      // Find everything the city could build
+      List<CityBuildable> buildables = new ArrayList<>();
+      for (UnitType unitType : UnitType.VALUES) {
+        if (canBuild(city, cities, unitType)) buildables.add(unitType);
+      }
+      for (Building building : Building.VALUES) {
+        if (canBuild(city, cities, building)) buildables.add(building);
+      }
+      if (buildables.isEmpty()) continue;
+
+      return perform(new PacketCityBuildRequest(
+        city.getX(),
+        city.getY(),
+        buildables.get(random.nextInt(buildables.size())),
+        true
+      ));
+    }
+    return false;
+  }
+
+  /**
+   * Checks whether a city can build something with production, using the
+   * same checks as the city details panel
+   *
+   * @param city      city to build in
+   * @param cities    all of the bot's cities
+   * @param buildable thing to build
+   * @return whether the city can build it
+   */
+  private boolean canBuild(
+    City city,
+    ArrayList<City> cities,
+    CityBuildable buildable
+  ) {
+    if (!game.playerHasUnlocked(id, buildable)) return false;
+    String reason = buildable.canBuildGivenCities(city, cities);
+    return reason == null || reason.isEmpty();
+  }
+
+  /**
+   * Sends a chat message to every other player
+   *
+   * @return whether the message was sent
+   */
+  private boolean chat() {
+    return send(new PacketChat(id + "> turn " + actionsThisTurn));
+  }
+
+  /**
+   * Marks the bot as ready for the next turn
+   */
+  private void ready() {
+    waitingForTurn = true;
+    readyAt = System.nanoTime();
+    send(new PacketReady(true));
+  }
+
+  /**
+   * Applies a change to this bot's copy of the game, then sends it to the
+   * server
+   *
+   * @param packet packet describing the change
+   * @return whether the change was sent
+   */
+  private boolean perform(Packet packet) {
+    try {
+      apply(packet);
+    } catch (RuntimeException e) {
+      stats.applyErrors.increment();
+      return false;
+    }
+    return send(packet);
+  }
+
+  /**
+   * Sends a packet to the server
+   *
+   * @param packet packet to send
+   * @return whether the packet was sent
+   */
+  private boolean send(Packet packet) {
+    try {
+      client.getConnection().send(packet);
+      stats.packetsSent.increment();
+      return true;
+    } catch (IOException e) {
+      if (!stopping) stats.sendErrors.increment();
+      return false;
+    }
+  }
+
+  /**
+   * Clamps a coordinate so it's on the map
+   *
+   * @param value coordinate to clamp
+   * @param max   largest valid coordinate
+   * @return clamped coordinate
+   */
+  private static int clamp(int value, int max) {
+    return Math.max(0, Math.min(max, value));
+  }
+}
@@ -0,0 +1,48 @@
+package com.mrbbot.civilisation.bot;
+
+/**
+ * Settings controlling how often bots act and which actions they choose.
+ * Each time a bot acts it picks one action at random, weighted by the
+ * weights below. Once a bot has taken {@link #actionsPerTurn} actions it
+ * marks itself as ready and waits for the turn to end.
+ */
+public class BotOptions {
+  /**
+   * Number of actions each bot attempts per second
+   */
+  public double actionsPerSecond = 2;
+  /**
+   * Number of actions each bot takes before marking itself as ready
+   */
+  public int actionsPerTurn = 5;
+  /**
+   * Furthest distance (in tiles, in each direction) a bot tries to move a
+   * unit
+   */
+  public int moveRadius = 4;
+  /**
+   * Relative likelihood of moving a unit
+   */
+  public int moveWeight = 4;
+  /**
+   * Relative likelihood of founding a city with a settler
+   */
+  public int settleWeight = 1;
+  /**
+   * Relative likelihood of queueing something to build in a city
+   */
+  public int buildWeight = 2;
+  /**
+   * Relative likelihood of sending a chat message
+   */
+  public int chatWeight = 1;
+
+  /**
+   * Gets the sum of every action's weight
+   *
+   * @return total weight
+   */
+  int getTotalWeight() {
+    return moveWeight + settleWeight + buildWeight + chatWeight;
+  }
+}
@@ -0,0 +1,204 @@
+package com.mrbbot.civilisation.bot;
+
+import com.mrbbot.civilisation.logic.map.MapSize;
+import com.mrbbot.civilisation.net.CivilisationServer;
+import com.mrbbot.civilisation.net.GameRoom;
+import com.mrbbot.generic.net.ConnectionOptions;
+import com.mrbbot.generic.net.PacketLog;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Puts synthetic load on a game server by connecting lots of {@link Bot}s to
+ * it, printing throughput, turn latency and error counts at regular
+ * intervals. Arguments are given as {@code --name=value}:
+ * <ul>
+ *   <li>host: host name of the server (default localhost)</li>
+ *   <li>port: port number of the server (default 1234)</li>
+ *   <li>bots: number of bots to connect (default 10)</li>
+ *   <li>rooms: number of rooms to spread the bots over, each playing a
+ *   separate game (default 1, using the server's default room)</li>
+ *   <li>rate: actions each bot attempts per second (default 2)</li>
+ *   <li>actions: actions each bot takes per turn (default 5)</li>
+ *   <li>ramp: milliseconds between bots connecting (default 10)</li>
+ *   <li>duration: seconds to run for after every bot has connected
+ *   (default 60)</li>
+ *   <li>interval: seconds between reports (default 5)</li>
+ *   <li>server: map size of a server to start in this process instead of
+ *   connecting to an existing one (e.g. Standard). The server opens rooms
+ *   as bots ask for them.</li>
+ *   <li>sight: sight radius of the embedded server's players, negative to
+ *   send every update to every player straight away (default 5)</li>
+ * </ul>
+ */
+public class LoadGenerator {
+  /**
+   * Entry point for the load generator
+   *
+   * @param args command line arguments
+   * @throws Exception if the embedded server couldn't be started or the
+   *                   generator was interrupted
+   */
+  public static void main(String[] args) throws Exception {
+    Map<String, String> arguments = parseArguments(args);
+    String host = arguments.getOrDefault("host", "localhost");
+    int port = Integer.parseInt(arguments.getOrDefault("port", "1234"));
+    int botCount = Integer.parseInt(arguments.getOrDefault("bots", "10"));
+    int roomCount = Integer.parseInt(arguments.getOrDefault("rooms", "1"));
+    long rampMillis = Long.parseLong(arguments.getOrDefault("ramp", "10"));
+    long durationSecs = Long.parseLong(
+      arguments.getOrDefault("duration", "60")
+    );
+    long intervalSecs = Long.parseLong(
+      arguments.getOrDefault("interval", "5")
+    );
+    BotOptions botOptions = new BotOptions();
+    botOptions.actionsPerSecond = Double.parseDouble(
+      arguments.getOrDefault("rate", "2")
+    );
+    botOptions.actionsPerTurn = Integer.parseInt(
+      arguments.getOrDefault("actions", "5")
+    );
+
+    // Start a server in this process if requested
+    CivilisationServer server = null;
+    if (arguments.containsKey("server")) {
+      MapSize mapSize = null;
+      for (MapSize size : MapSize.values()) {
+        if (size.name.equalsIgnoreCase(arguments.get("server"))) {
+          mapSize = size;
+        }
+      }
+      if (mapSize == null) {
+        throw new IllegalArgumentException(
+          "unknown map size " + arguments.get("server")
+        );
+      }
+      // Save the games (and their journals) somewhere temporary
+      server = new CivilisationServer(
+        Files.createTempDirectory("load").toFile(),
+        mapSize,
+        port
+      );
+      if (arguments.containsKey("sight")) {
+        server.setSightRadius(Integer.parseInt(arguments.get("sight")));
+      }
+    }
+
+    // Bots don't log their traffic, and their threads shouldn't keep the
+    // generator running
+    ConnectionOptions connectionOptions = new ConnectionOptions();
+    connectionOptions.packetLog = new PacketLog(
+      System.out,
+      PacketLog.DEFAULT_CAPACITY,
+      PacketLog.Level.OFF
+    );
+    connectionOptions.threadFactory = runnable -> {
+      Thread thread = new Thread(runnable);
+      thread.setDaemon(true);
+      return thread;
+    };
+    ScheduledExecutorService scheduler = Executors.newScheduledThreadPool(
+      Math.max(2, Runtime.getRuntime().availableProcessors()),
+      connectionOptions.threadFactory
+    );
+
+    // Report progress at a fixed rate
+    LoadStats stats = new LoadStats();
+    long[][] previous = new long[1][];
+    long[] lastReportAt = new long[]{System.nanoTime()};
+    scheduler.scheduleAtFixedRate(() -> {
+      long now = System.nanoTime();
+      long[] totals = stats.getTotals();
+      System.out.println(stats.report(
+        previous[0],
+        totals,
+        (now - lastReportAt[0]) / 1e9
+      ));
+      previous[0] = totals;
+      lastReportAt[0] = now;
+    }, intervalSecs, intervalSecs, TimeUnit.SECONDS);
+
+    // Connect the bots, spread out so the server isn't hit all at once
+    List<Bot> bots = new ArrayList<>();
+    for (int i = 0; i < botCount; i++) {
+      // Only name rooms if there's more than one, so a single room works
+      // with servers that only host the default room
+      String room = roomCount > 1 ? "room-" + (i % roomCount) : null;
+      Bot bot = new Bot("bot-" + i, room, botOptions, stats);
+      try {
+        bot.start(host, port, connectionOptions, scheduler);
+        bots.add(bot);
+      } catch (IOException e) {
+        stats.connectFailures.increment();
+      }
+      if (rampMillis > 0) Thread.sleep(rampMillis);
+    }
+    System.out.println(String.format(
+      "%d of %d bots connected to %s:%d in %d room(s)",
+      bots.size(),
+      botCount,
+      host,
+      port,
+      roomCount
+    ));
+
+    // Run for the requested time, then disconnect every bot
+    Thread.sleep(TimeUnit.SECONDS.toMillis(durationSecs));
+    for (Bot bot : bots) bot.stop();
+    scheduler.shutdown();
+    System.out.println(String.format(
+      "Finished: %d actions, %d turns, %d errors",
+      stats.actions.sum(),
+      stats.turns.sum(),
+      stats.getErrors()
+    ));
+    if (server != null) {
+      // Show how many updates the server didn't need to send straight away
+      long sent = 0;
+      long deferred = 0;
+      for (GameRoom room : server.getRooms()) {
+        sent += room.getInterestManager().getSentCount();
+        deferred += room.getInterestManager().getDeferredCount();
+      }
+      System.out.println(String.format(
+        "Server: %d updates sent straight away, %d deferred",
+        sent,
+        deferred
+      ));
+    }
+    // Stop the embedded server, if there is one
+    System.exit(stats.getErrors() == 0 ? 0 : 1);
+  }
+
+  /**
+   * Parses arguments of the form {@code --name=value}. Arguments without a
+   * value are given an empty one.
+   *
+   * @param args command line arguments
+   * @return map of argument names to values
+   */
+  static Map<String, String> parseArguments(String[] args) {
+    Map<String, String> arguments = new HashMap<>();
+    for (String arg : args) {
+      if (!arg.startsWith("--")) {
+        throw new IllegalArgumentException("unexpected argument " + arg);
+      }
+      int equals = arg.indexOf('=');
+      if (equals == -1) {
+        arguments.put(arg.substring(2), "");
+      } else {
+        arguments.put(arg.substring(2, equals), arg.substring(equals + 1));
+      }
+    }
+    return arguments;
+  }
+}
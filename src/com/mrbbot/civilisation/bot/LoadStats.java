@@ -0,0 +1,148 @@
+package com.mrbbot.civilisation.bot;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters shared by every bot in a load test. Counters are cumulative, except
+ * for turn latencies which are reset every time a report is taken so each
+ * report shows the latencies since the last.
+ */
+public class LoadStats {
+  /**
+   * Number of packets sent by bots
+   */
+  final LongAdder packetsSent = new LongAdder();
+  /**
+   * Number of packets received by bots, counting each change in a delta
+   */
+  final LongAdder packetsReceived = new LongAdder();
+  /**
+   * Number of actions taken by bots
+   */
+  final LongAdder actions = new LongAdder();
+  /**
+   * Number of turns completed, counted once per bot
+   */
+  final LongAdder turns = new LongAdder();
+  /**
+   * Number of bots that couldn't connect to the server
+   */
+  final LongAdder connectFailures = new LongAdder();
+  /**
+   * Number of times the server closed a bot's connection
+   */
+  final LongAdder disconnects = new LongAdder();
+  /**
+   * Number of packets that couldn't be sent
+   */
+  final LongAdder sendErrors = new LongAdder();
+  /**
+   * Number of packets from the server that couldn't be applied to a bot's
+   * copy of the game, meaning the bot is out of sync with the server
+   */
+  final LongAdder applyErrors = new LongAdder();
+
+  /**
+   * Times between bots marking themselves as ready and the turn ending, in
+   * nanoseconds, since the last report. Guarded by this object's lock.
+   */
+  private long[] turnLatencies = new long[64];
+  /**
+   * Number of values in {@link #turnLatencies}
+   */
+  private int turnLatencyCount;
+
+  /**
+   * Records a bot's turn ending
+   *
+   * @param latency time between the bot marking itself as ready and the turn
+   *                ending, in nanoseconds
+   */
+  synchronized void turnCompleted(long latency) {
+    turns.increment();
+    if (turnLatencyCount == turnLatencies.length) {
+      turnLatencies = Arrays.copyOf(turnLatencies, turnLatencyCount * 2);
+    }
+    turnLatencies[turnLatencyCount++] = latency;
+  }
+
+  /**
+   * Gets the total number of errors seen by bots
+   *
+   * @return error count
+   */
+  long getErrors() {
+    return connectFailures.sum() + disconnects.sum() + sendErrors.sum()
+      + applyErrors.sum();
+  }
+
+  /**
+   * Creates a report of the activity since the last report
+   *
+   * @param previous    totals at the last report, or null if this is the
+   *                    first
+   * @param totals      current totals (see {@link #getTotals()})
+   * @param elapsedSecs seconds since the last report
+   * @return report text
+   */
+  String report(long[] previous, long[] totals, double elapsedSecs) {
+    long[] latencies;
+    synchronized (this) {
+      latencies = Arrays.copyOf(turnLatencies, turnLatencyCount);
+      turnLatencyCount = 0;
+    }
+    Arrays.sort(latencies);
+
+    long[] counts = new long[totals.length];
+    for (int i = 0; i < totals.length; i++) {
+      counts[i] = totals[i] - (previous == null ? 0 : previous[i]);
+    }
+    return String.format(
+      "sent %.0f/s, received %.0f/s, actions %.0f/s, turns %d, "
+        + "turn latency ms p50 %.1f p90 %.1f p99 %.1f max %.1f, "
+        + "errors: connect %d, disconnect %d, send %d, desync %d",
+      counts[0] / elapsedSecs,
+      counts[1] / elapsedSecs,
+      counts[2] / elapsedSecs,
+      counts[3],
+      percentile(latencies, 0.5),
+      percentile(latencies, 0.9),
+      percentile(latencies, 0.99),
+      percentile(latencies, 1),
+      connectFailures.sum(),
+      disconnects.sum(),
+      sendErrors.sum(),
+      applyErrors.sum()
+    );
+  }
+
+  /**
+   * Gets the current totals of the throughput counters, for working out rates
+   * in the next report
+   *
+   * @return packets sent, packets received, actions and turns
+   */
+  long[] getTotals() {
+    return new long[]{
+      packetsSent.sum(),
+      packetsReceived.sum(),
+      actions.sum(),
+      turns.sum()
+    };
+  }
+
+  /**
+   * Gets a percentile of some sorted latencies
+   *
+   * @param sorted   latencies in nanoseconds, in ascending order
+   * @param fraction percentile to get, between 0 and 1
+   * @return latency at the percentile in milliseconds, or 0 if there aren't
+   * any latencies
+   */
+  private static double percentile(long[] sorted, double fraction) {
+    if (sorted.length == 0) return 0;
+    int index = (int) Math.ceil(fraction * sorted.length) - 1;
+    return sorted[Math.max(0, index)] / 1e6;
+  }
+}
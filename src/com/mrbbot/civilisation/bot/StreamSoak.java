@@ -0,0 +1,194 @@
+package com.mrbbot.civilisation.bot;
+
+import com.mrbbot.civilisation.logic.map.Game;
+import com.mrbbot.civilisation.logic.map.MapSize;
+import com.mrbbot.civilisation.net.packet.*;
+import com.mrbbot.generic.net.Client;
+import com.mrbbot.generic.net.ConnectionOptions;
+import com.mrbbot.generic.net.ObjectStreamCodec;
+import com.mrbbot.generic.net.PacketLog;
+import com.mrbbot.generic.net.Server;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Soak test for {@link ObjectStreamCodec}, checking memory stays bounded over
+ * a long session. A client and a server in this process exchange thousands
+ * of turns of packets over a single connection, with the server echoing
+ * everything back. Each turn is a batch of updates followed by a ready
+ * packet, and the full game is sent every few turns like it is when players
+ * join. The heap in use is printed at regular intervals, and the soak fails
+ * if it has grown by more than a limit since the first report. Arguments are
+ * given as {@code --name=value}:
+ * <ul>
+ *   <li>port: port number to run the server on (default 1235)</li>
+ *   <li>turns: number of turns to play (default 5000)</li>
+ *   <li>actions: updates sent each turn (default 10)</li>
+ *   <li>game: turns between sending the full game (default 10)</li>
+ *   <li>interval: turns between heap reports (default 500)</li>
+ *   <li>reset-messages: messages written between stream resets (default
+ *   {@link ObjectStreamCodec#DEFAULT_RESET_MESSAGES})</li>
+ *   <li>reset-bytes: bytes written between stream resets (default
+ *   {@link ObjectStreamCodec#DEFAULT_RESET_BYTES})</li>
+ *   <li>no-reset: never reset the streams, to show the heap growing without
+ *   them</li>
+ *   <li>max-growth: megabytes the heap can grow by after the first report
+ *   before the soak fails (default 4)</li>
+ * </ul>
+ */
+public class StreamSoak {
+  /**
+   * Seconds to wait for a turn's ready packet to be echoed back before
+   * giving up
+   */
+  private static final long TURN_TIMEOUT_SECS = 30;
+
+  /**
+   * Entry point for the soak test. Exits with status 1 if the heap grew by
+   * too much or a turn timed out.
+   *
+   * @param args command line arguments
+   * @throws Exception if the server couldn't be started or the soak was
+   *                   interrupted
+   */
+  public static void main(String[] args) throws Exception {
+    Map<String, String> arguments = LoadGenerator.parseArguments(args);
+    int port = Integer.parseInt(arguments.getOrDefault("port", "1235"));
+    int turns = Integer.parseInt(arguments.getOrDefault("turns", "5000"));
+    int actions = Integer.parseInt(arguments.getOrDefault("actions", "10"));
+    int gameInterval = Integer.parseInt(arguments.getOrDefault("game", "10"));
+    int reportInterval = Integer.parseInt(
+      arguments.getOrDefault("interval", "500")
+    );
+    int resetMessages = Integer.parseInt(arguments.getOrDefault(
+      "reset-messages",
+      String.valueOf(ObjectStreamCodec.DEFAULT_RESET_MESSAGES)
+    ));
+    long resetBytes = Long.parseLong(arguments.getOrDefault(
+      "reset-bytes",
+      String.valueOf(ObjectStreamCodec.DEFAULT_RESET_BYTES)
+    ));
+    if (arguments.containsKey("no-reset")) {
+      resetMessages = Integer.MAX_VALUE;
+      resetBytes = Long.MAX_VALUE;
+    }
+    long maxGrowthBytes = Long.parseLong(
+      arguments.getOrDefault("max-growth", "4")
+    ) * 1024 * 1024;
+
+    // Neither side logs its traffic, and their threads shouldn't keep the
+    // soak running
+    ConnectionOptions options = new ConnectionOptions();
+    options.packetLog = new PacketLog(
+      System.out,
+      PacketLog.DEFAULT_CAPACITY,
+      PacketLog.Level.OFF
+    );
+    options.threadFactory = runnable -> {
+      Thread thread = new Thread(runnable);
+      thread.setDaemon(true);
+      return thread;
+    };
+
+    // Start a server that sends everything it receives straight back
+    Server<Packet> server = new Server<>(
+      port,
+      (connection, data) -> {
+        if (data == null) return;
+        try {
+          connection.send(data);
+        } catch (IOException e) {
+          e.printStackTrace();
+        }
+      },
+      new ObjectStreamCodec<>(resetMessages, resetBytes),
+      1,
+      options
+    );
+
+    // Connect a client that's told when each turn has been echoed back
+    Semaphore turnsEchoed = new Semaphore(0);
+    Client<Packet> client = new Client<>(
+      "localhost",
+      port,
+      "soak",
+      (connection, data) -> {
+        if (data instanceof PacketReady) turnsEchoed.release();
+      },
+      new ObjectStreamCodec<>(resetMessages, resetBytes),
+      options
+    );
+
+    Game game = new Game("Soak", MapSize.SMALL);
+    Random random = new Random();
+    long baseline = -1;
+    long used = 0;
+    boolean timedOut = false;
+    for (int turn = 1; turn <= turns; turn++) {
+      // Every packet is a new object, so the streams' handle tables would
+      // keep all of them if they were never reset
+      for (int i = 0; i < actions; i++) {
+        if (i % 2 == 0) {
+          client.broadcast(new PacketUnitMove(
+            random.nextInt(64),
+            random.nextInt(64),
+            random.nextInt(64),
+            random.nextInt(64),
+            1
+          ));
+        } else {
+          client.broadcast(new PacketChat("turn " + turn + " action " + i));
+        }
+      }
+      if (turn % gameInterval == 0) {
+        client.broadcast(new PacketGame(game.toMap(), turn, turn));
+      }
+      client.broadcast(new PacketReady(true));
+      if (!turnsEchoed.tryAcquire(TURN_TIMEOUT_SECS, TimeUnit.SECONDS)) {
+        System.out.println("Turn " + turn + " wasn't echoed back in time");
+        timedOut = true;
+        break;
+      }
+
+      if (turn % reportInterval == 0) {
+        used = usedHeap();
+        if (baseline == -1) baseline = used;
+        System.out.println(String.format(
+          "turn %d: heap used %.1f MB",
+          turn,
+          used / (1024.0 * 1024.0)
+        ));
+      }
+    }
+    client.close();
+    server.close();
+
+    // Compare the heap at the end with the first report, after everything
+    // has been set up and the streams have been through a few resets
+    long growth = baseline == -1 ? 0 : used - baseline;
+    boolean passed = !timedOut && growth <= maxGrowthBytes;
+    System.out.println(String.format(
+      "Heap grew by %.1f MB, limit %.1f MB: %s",
+      growth / (1024.0 * 1024.0),
+      maxGrowthBytes / (1024.0 * 1024.0),
+      passed ? "passed" : "failed"
+    ));
+    System.exit(passed ? 0 : 1);
+  }
+
+  /**
+   * Gets the number of bytes of heap in use after collecting garbage
+   *
+   * @return used heap in bytes
+   */
+  private static long usedHeap() {
+    Runtime runtime = Runtime.getRuntime();
+    // A single request isn't guaranteed to collect everything
+    for (int i = 0; i < 3; i++) System.gc();
+    return runtime.totalMemory() - runtime.freeMemory();
+  }
+}
@@ -302,6 +302,25 @@ public class HexagonGrid<E extends Traversable> implements Serializable {
     return list;
   }
 
+  /**
+   * Calculates the number of steps between two cells, ignoring whether the
+   * cells in between can be traversed
+   *
+   * @param x1 first x-coordinate
+   * @param y1 first y-coordinate
+   * @param x2 second x-coordinate
+   * @param y2 second y-coordinate
+   * @return the number of steps from one cell to the other
+   */
+  public int distance(int x1, int y1, int x2, int y2) {
+    // Convert to axial coordinates, undoing the shift of the odd rows
+    int q1 = x1 - (y1 + 1) / 2;
+    int q2 = x2 - (y2 + 1) / 2;
+    int dq = q2 - q1;
+    int dr = y2 - y1;
+    return (Math.abs(dq) + Math.abs(dr) + Math.abs(dq + dr)) / 2;
+  }
+
   /**
    * Finds the shortest path between (x1, y1) and (x2, y2) that does not exceed
    * maxCost using Dijkstra's algorithm. If maxCost is exceeded, the function
@@ -11,12 +11,16 @@ import com.mrbbot.civilisation.logic.TurnHandler;
 import com.mrbbot.civilisation.logic.techs.Unlockable;
 import com.mrbbot.civilisation.logic.map.tile.Building;
 import com.mrbbot.civilisation.logic.map.tile.City;
+import com.mrbbot.civilisation.logic.map.tile.CityRecord;
+import com.mrbbot.civilisation.logic.map.tile.QuantizedTerrain;
 import com.mrbbot.civilisation.logic.map.tile.Terrain;
+import com.mrbbot.civilisation.logic.map.tile.TerrainBlock;
 import com.mrbbot.civilisation.logic.map.tile.Tile;
 import com.mrbbot.civilisation.logic.techs.PlayerTechDetails;
 import com.mrbbot.civilisation.logic.techs.Tech;
 import com.mrbbot.civilisation.logic.unit.Unit;
 import com.mrbbot.civilisation.logic.unit.UnitAbility;
+import com.mrbbot.civilisation.logic.unit.UnitRecord;
 import com.mrbbot.civilisation.logic.unit.UnitType;
 import com.mrbbot.civilisation.net.packet.*;
 import com.mrbbot.generic.net.ClientOnly;
@@ -26,7 +30,9 @@ import javafx.geometry.Point2D;
 import java.util.*;
 import java.util.function.BiConsumer;
 import java.util.function.Consumer;
+import java.util.function.Function;
 import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 /**
  * Main game logic class. Connects other parts of game logic together.
@@ -45,10 +51,21 @@ public class Game implements Mappable, TurnHandler {
   private static final String VICTORY_REASON_SCIENCE
     = "blasting off into space";
 
+  /**
+   * Number of cities or units in a game above which they're decoded in
+   * parallel when it's loaded. Below this, splitting the work up costs more
+   * than it saves.
+   */
+  private static final int PARALLEL_DECODE_THRESHOLD = 64;
+
   /**
    * Name of the game, chosen by the user on initial create
    */
   private String name;
+  /**
+   * Number of turns that have been played in this game
+   */
+  private int turn;
   /**
    * Hexagon grid of the game, used for positioning tiles
    */
@@ -166,6 +183,9 @@ public class Game implements Mappable, TurnHandler {
   public Game(Map<String, Object> map) {
     // Load the name of the game
     this.name = (String) map.get("name");
+    // Load the turn number, games saved before this was stored start at 0
+    Object turn = map.get("turn");
+    this.turn = turn == null ? 0 : (Integer) turn;
 
     // Load the player list
     //noinspection unchecked
@@ -175,54 +195,44 @@ public class Game implements Mappable, TurnHandler {
       .map(Player::new)
       .collect(Collectors.toList());
 
-    // Load the terrain
-    //noinspection unchecked
-    List<List<Double>> terrainList = (List<List<Double>>) map.get("terrain");
-    //noinspection unchecked
-    List<List<Integer>> treeList = (List<List<Integer>>) map.get("trees");
-    int height = terrainList.size();
-    for (int y = 0; y < height; y++) {
-      List<Double> terrainRow = terrainList.get(y);
-      List<Integer> treeRow = treeList.get(y);
-      int width = terrainRow.size();
-
-      // If the hexagon grid hasn't been initialised yet, we now have all the
-      // information required to make one
-      if (hexagonGrid == null) {
-        hexagonGrid = new HexagonGrid<>(width, height, 1);
-      }
-
-      for (int x = 0; x < width; x++) {
-        double terrainHeight = terrainRow.get(x);
-        boolean tree = treeRow.get(x) == 1;
-
-        // Put the tile into the grid with the loaded height and tree state
-        hexagonGrid.set(x, y, new Tile(
-          hexagonGrid.getHexagon(x, y),
-          x, y,
-          terrainHeight, tree
-        ));
-      }
+    // Load the terrain, either from a binary block, quantized values or
+    // from lists
+    Object terrain = map.get("terrain");
+    if (terrain instanceof TerrainBlock) {
+      loadTerrain((TerrainBlock) terrain);
+    } else if (terrain instanceof QuantizedTerrain) {
+      hexagonGrid = ((QuantizedTerrain) terrain).decode();
+    } else {
+      //noinspection unchecked
+      loadTerrain(
+        (List<List<Double>>) terrain,
+        (List<List<Integer>>) map.get("trees")
+      );
     }
 
     // Make sure the hexagon grid has been set
     assert hexagonGrid != null;
 
-    // Load the cities
+    // Decode the cities and units, then link them into the grid one at a
+    // time as linking modifies the tiles
     //noinspection unchecked
-    this.cities = (ArrayList<City>)
-      ((List<Map<String, Object>>) map.get("cities"))
-        .stream()
-        .map(m -> new City(hexagonGrid, m))
-        .collect(Collectors.toList());
-
-    // Load the units
+    List<CityRecord> cityRecords = decode(
+      (List<Map<String, Object>>) map.get("cities"),
+      CityRecord::new
+    );
     //noinspection unchecked
-    this.units = (ArrayList<Unit>)
-      ((List<Map<String, Object>>) map.get("units"))
-        .stream()
-        .map(m -> new Unit(hexagonGrid, m))
-        .collect(Collectors.toList());
+    List<UnitRecord> unitRecords = decode(
+      (List<Map<String, Object>>) map.get("units"),
+      UnitRecord::new
+    );
+    this.cities = new ArrayList<>(cityRecords.size());
+    for (CityRecord record : cityRecords) {
+      this.cities.add(new City(hexagonGrid, record));
+    }
+    this.units = new ArrayList<>(unitRecords.size());
+    for (UnitRecord record : unitRecords) {
+      this.units.add(new Unit(hexagonGrid, record));
+    }
 
     // Load player resource counts
     //noinspection unchecked
@@ -262,6 +272,93 @@ public class Game implements Mappable, TurnHandler {
     }
   }
 
+  /**
+   * Decodes a list of maps into records, in parallel if there are enough of
+   * them and more than one processor for it to be worth it. The decoder must
+   * only read the map it's given, as it may be called from several threads
+   * at once.
+   *
+   * @param maps    maps to decode
+   * @param decoder function decoding a map into a record
+   * @param <R>     type of the decoded records
+   * @return decoded records in the same order as the maps
+   */
+  private static <R> List<R> decode(
+    List<Map<String, Object>> maps,
+    Function<Map<String, Object>, R> decoder
+  ) {
+    boolean parallel = maps.size() >= PARALLEL_DECODE_THRESHOLD
+      && Runtime.getRuntime().availableProcessors() > 1;
+    Stream<Map<String, Object>> stream = parallel
+      ? maps.parallelStream()
+      : maps.stream();
+    // Collecting keeps the encounter order, even from a parallel stream
+    return stream.map(decoder).collect(Collectors.toList());
+  }
+
+  /**
+   * Creates the hexagon grid from lists of tile heights and tree states
+   *
+   * @param terrainList list of rows of tile heights
+   * @param treeList    list of rows of tree states (1 if there's a tree)
+   */
+  private void loadTerrain(
+    List<List<Double>> terrainList,
+    List<List<Integer>> treeList
+  ) {
+    int height = terrainList.size();
+    for (int y = 0; y < height; y++) {
+      List<Double> terrainRow = terrainList.get(y);
+      List<Integer> treeRow = treeList.get(y);
+      int width = terrainRow.size();
+
+      // If the hexagon grid hasn't been initialised yet, we now have all the
+      // information required to make one
+      if (hexagonGrid == null) {
+        hexagonGrid = new HexagonGrid<>(width, height, 1);
+      }
+
+      for (int x = 0; x < width; x++) {
+        double terrainHeight = terrainRow.get(x);
+        boolean tree = treeRow.get(x) == 1;
+
+        // Put the tile into the grid with the loaded height and tree state
+        hexagonGrid.set(x, y, new Tile(
+          hexagonGrid.getHexagon(x, y),
+          x, y,
+          terrainHeight, tree
+        ));
+      }
+    }
+  }
+
+  /**
+   * Creates the hexagon grid from a binary terrain block. Values are read
+   * straight from the block without creating intermediate objects.
+   *
+   * @param block block containing tile heights and tree states
+   */
+  private void loadTerrain(TerrainBlock block) {
+    int height = block.getRows();
+    for (int y = 0; y < height; y++) {
+      int width = block.getRowWidth(y);
+
+      // The first row is the full width of the grid
+      if (hexagonGrid == null) {
+        hexagonGrid = new HexagonGrid<>(width, height, 1);
+      }
+
+      for (int x = 0; x < width; x++) {
+        // Put the tile into the grid with the loaded height and tree state
+        hexagonGrid.set(x, y, new Tile(
+          hexagonGrid.getHexagon(x, y),
+          x, y,
+          block.getHeight(x, y), block.hasTree(x, y)
+        ));
+      }
+    }
+  }
+
   /**
    * Sets the current player of the game. Also registers the player stats
    * listener so the interface can be updated.
@@ -341,15 +438,73 @@ public class Game implements Mappable, TurnHandler {
 
   /**
    * Stores the game state in a map so that it can be restored later. Used for
-   * sending the game state over a network or for storing it in a file.
+   * sending the game state over a network or for storing it in a file. The
+   * map doesn't share any mutable state with the game, so it can be written on
+   * another thread while the game continues to change.
    *
    * @return map representing the game state
    */
   public Map<String, Object> toMap() {
+    return toMap(null);
+  }
+
+  /**
+   * Stores the game state in a map, optionally quantizing the terrain into a
+   * compact binary form (see {@link QuantizedTerrain}).
+   *
+   * @param terrainPrecision precision to quantize tile heights with, or null
+   *                         to store the terrain as lists of heights and trees
+   * @return map representing the game state
+   */
+  public Map<String, Object> toMap(
+    QuantizedTerrain.Precision terrainPrecision
+  ) {
+    Map<String, Object> map = toMapWithoutTerrain();
+
+    // Store the terrain
+    if (terrainPrecision != null) {
+      // Tree states are packed in with the heights
+      map.put(
+        "terrain",
+        QuantizedTerrain.encode(hexagonGrid, terrainPrecision)
+      );
+    } else {
+      ArrayList<ArrayList<Double>> terrainList = new ArrayList<>();
+      ArrayList<ArrayList<Integer>> treeList = new ArrayList<>();
+      int gridWidth = hexagonGrid.getWidth() + 1;
+      int gridHeight = hexagonGrid.getHeight();
+      for (int y = 0; y < gridHeight; y++) {
+        ArrayList<Double> terrainRow = new ArrayList<>();
+        // Trees are stored as integers to reduce file size
+        ArrayList<Integer> treeRow = new ArrayList<>();
+        for (int x = 0; x < gridWidth - ((y + 1) % 2); x++) {
+          Terrain terrain = hexagonGrid.get(x, y).getTerrain();
+          terrainRow.add(terrain.height);
+          treeRow.add(terrain.hasTree ? 1 : 0);
+        }
+        terrainList.add(terrainRow);
+        treeList.add(treeRow);
+      }
+      map.put("terrain", terrainList);
+      map.put("trees", treeList);
+    }
+
+    return map;
+  }
+
+  /**
+   * Stores everything but the terrain in a map. The terrain never changes
+   * once the map has been generated, so anything keeping many copies of the
+   * game's state only needs to store it once.
+   *
+   * @return map representing the game state, without the terrain
+   */
+  public Map<String, Object> toMapWithoutTerrain() {
     Map<String, Object> map = new HashMap<>();
 
-    // Store the game name
+    // Store the game name and turn number
     map.put("name", name);
+    map.put("turn", turn);
 
     // Store the list of player ids
     List<String> playerList = players.stream()
@@ -357,26 +512,6 @@ public class Game implements Mappable, TurnHandler {
       .collect(Collectors.toList());
     map.put("players", playerList);
 
-    // Store the terrain
-    ArrayList<ArrayList<Double>> terrainList = new ArrayList<>();
-    ArrayList<ArrayList<Integer>> treeList = new ArrayList<>();
-    int gridWidth = hexagonGrid.getWidth() + 1;
-    int gridHeight = hexagonGrid.getHeight();
-    for (int y = 0; y < gridHeight; y++) {
-      ArrayList<Double> terrainRow = new ArrayList<>();
-      // Trees are stored as integers to reduce file size
-      ArrayList<Integer> treeRow = new ArrayList<>();
-      for (int x = 0; x < gridWidth - ((y + 1) % 2); x++) {
-        Terrain terrain = hexagonGrid.get(x, y).getTerrain();
-        terrainRow.add(terrain.height);
-        treeRow.add(terrain.hasTree ? 1 : 0);
-      }
-      terrainList.add(terrainRow);
-      treeList.add(treeRow);
-    }
-    map.put("terrain", terrainList);
-    map.put("trees", treeList);
-
     // Store the cities
     List<Map<String, Object>> cityList = cities.stream()
       // Delegate to the the city's toMap function to store it
@@ -392,8 +527,8 @@ public class Game implements Mappable, TurnHandler {
     map.put("units", unitList);
 
     // Store player science/gold counts
-    map.put("science", playerScienceCounts);
-    map.put("gold", playerGoldCounts);
+    map.put("science", new HashMap<>(playerScienceCounts));
+    map.put("gold", new HashMap<>(playerGoldCounts));
 
     // Store player unlocked techs. As raw techs cannot be stored, these must
     // be converted to tech names first.
@@ -496,6 +631,24 @@ public class Game implements Mappable, TurnHandler {
     return false;
   }
 
+  /**
+   * Checks a unit movement can be applied to the game. The start tile must
+   * contain a unit belonging to the player moving it, and the end tile must
+   * be empty. Two players can move units onto the same tile at the same
+   * time, in which case only the first move to arrive can be applied.
+   *
+   * @param packet   packet containing movement details
+   * @param playerId id of the player moving the unit
+   * @return whether the movement can be applied
+   */
+  public boolean canMoveUnit(PacketUnitMove packet, String playerId) {
+    Tile startTile = hexagonGrid.get(packet.startX, packet.startY);
+    Tile endTile = hexagonGrid.get(packet.endX, packet.endY);
+    return startTile.unit != null
+      && startTile.unit.player.id.equals(playerId)
+      && (endTile.unit == null || endTile == startTile);
+  }
+
   /*
    * START PACKET HANDLING
    */
@@ -977,6 +1130,9 @@ public class Game implements Mappable, TurnHandler {
     waitingForPlayers = false;
     readyPlayers.clear();
 
+    // Move onto the next turn
+    turn++;
+
     // Check to see if a player has won from a city growing
     checkDominationVictory();
 
@@ -28,4 +28,18 @@ public enum MapSize {
     this.width = width;
     this.height = height;
   }
+
+  /**
+   * Finds the map size with the specified hexagon grid dimensions
+   *
+   * @param width  width of the hexagon grid
+   * @param height height of the hexagon grid
+   * @return the matching map size, or null if there isn't one
+   */
+  public static MapSize fromDimensions(int width, int height) {
+    for (MapSize size : values()) {
+      if (size.width == width && size.height == height) return size;
+    }
+    return null;
+  }
 }
@@ -133,64 +133,57 @@ public class City extends Living {
    * @param map  map containing city data
    */
   public City(HexagonGrid<Tile> grid, Map<String, Object> map) {
+    this(grid, new CityRecord(map));
+  }
+
+  /**
+   * Constructor for a city linking an already decoded record to the tiles of
+   * the grid. Modifies the tiles, so must be called on the thread that owns
+   * the grid.
+   *
+   * @param grid   hexagon grid for the game
+   * @param record decoded city data
+   */
+  public City(HexagonGrid<Tile> grid, CityRecord record) {
     // Pass required parameters to base living class
-    super((int) map.get("baseHealth"), (int) map.get("health"));
+    super(record.baseHealth, record.health);
     // Store passed values
     this.grid = grid;
 
     // Load the city owner
-    setOwner(new Player((String) map.get("owner")));
+    setOwner(new Player(record.owner));
 
     // Load the tiles belonging to the city
-    //noinspection unchecked
-    tiles = (ArrayList<Tile>) ((List<Map<String, Object>>) map.get("tiles"))
-      .stream()
-      .map(m -> {
-        // Get the tile with the specified coordinates
-        int x = (int) m.get("x");
-        int y = (int) m.get("y");
-        Tile center = grid.get(x, y);
-
-        // Load the tile's improvement if there is one
-        if (m.containsKey("improvement")) {
-          //noinspection unchecked
-          Map<String, Object> improvement =
-            (Map<String, Object>) m.get("improvement");
-          center.improvement =
-            Improvement.fromName((String) improvement.get("name"));
-          //noinspection unchecked
-          center.improvementMetadata =
-            (Map<String, Object>) improvement.get("meta");
-        } else {
-          // Otherwise set the improvement to none
-          center.improvement = Improvement.NONE;
-        }
-        return center;
-      })
-      .collect(Collectors.toList());
+    tiles = new ArrayList<>(record.tiles.size());
+    for (CityRecord.TileEntry entry : record.tiles) {
+      // Get the tile with the specified coordinates
+      Tile tile = grid.get(entry.x, entry.y);
+      // Load the tile's improvement, copying its metadata so the tile can
+      // modify it
+      tile.improvement = entry.improvement;
+      if (entry.improvement != Improvement.NONE) {
+        tile.improvementMetadata = entry.improvementMetadata == null
+          ? null
+          : new HashMap<>(entry.improvementMetadata);
+      }
+      tiles.add(tile);
+    }
     // Mark the tiles as belonging to this city
     tiles.forEach(tile -> tile.city = this);
 
     // Load the buildings the city has
-    //noinspection unchecked
-    buildings = (ArrayList<Building>) ((List<String>) map.get("buildings"))
-      .stream()
-      .map(Building::fromName)
-      .collect(Collectors.toList());
+    buildings = new ArrayList<>(record.buildings);
 
     // Load the current build of the city if there is one
-    if (map.containsKey("currentlyBuilding")) {
-      currentlyBuilding =
-        CityBuildable.fromName((String) map.get("currentlyBuilding"));
-    }
+    currentlyBuilding = record.currentlyBuilding;
 
-    // Load totals from the map
-    productionTotal = (int) map.get("productionTotal");
-    citizens = (int) map.get("citizens");
-    excessFoodCounter = (int) map.get("excessFood");
+    // Load totals from the record
+    productionTotal = record.productionTotal;
+    citizens = record.citizens;
+    excessFoodCounter = record.excessFood;
 
     // Load the city name
-    name = (String) map.get("name");
+    name = record.name;
 
     // Calculate the greatest height of all the tiles belonging to the city
     updateGreatestHeight();
@@ -0,0 +1,152 @@
+package com.mrbbot.civilisation.logic.map.tile;
+
+import com.mrbbot.civilisation.logic.CityBuildable;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Immutable details of a city decoded from a map, before it's linked to the
+ * tiles of a game's grid. Decoding doesn't touch the grid, so the records for
+ * every city in a save can be decoded at the same time on different threads,
+ * leaving only the linking (see {@link City#City(
+ * com.mrbbot.civilisation.geometry.HexagonGrid, CityRecord)}) to be done one
+ * city at a time.
+ */
+public final class CityRecord {
+  /**
+   * ID of the player who owns the city
+   */
+  public final String owner;
+  /**
+   * Maximum health of the city
+   */
+  public final int baseHealth;
+  /**
+   * Current health of the city
+   */
+  public final int health;
+  /**
+   * Tiles the city owns, center first
+   */
+  public final List<TileEntry> tiles;
+  /**
+   * Buildings the city has
+   */
+  public final List<Building> buildings;
+  /**
+   * What the city is currently building, or null if nothing
+   */
+  public final CityBuildable currentlyBuilding;
+  /**
+   * The city's current production total
+   */
+  public final int productionTotal;
+  /**
+   * Number of citizens in the city
+   */
+  public final int citizens;
+  /**
+   * Amount of excess food the city has
+   */
+  public final int excessFood;
+  /**
+   * Name of the city
+   */
+  public final String name;
+
+  /**
+   * Decodes a city from a map (could be from a file/server). Only reads the
+   * map, so can be called from any thread.
+   *
+   * @param map map containing city data (see {@link City#toMap()})
+   */
+  public CityRecord(Map<String, Object> map) {
+    owner = (String) map.get("owner");
+    baseHealth = (int) map.get("baseHealth");
+    health = (int) map.get("health");
+
+    // Decode the tiles belonging to the city
+    //noinspection unchecked
+    List<Map<String, Object>> tileMaps =
+      (List<Map<String, Object>>) map.get("tiles");
+    ArrayList<TileEntry> tiles = new ArrayList<>(tileMaps.size());
+    for (Map<String, Object> tileMap : tileMaps) {
+      tiles.add(new TileEntry(tileMap));
+    }
+    this.tiles = Collections.unmodifiableList(tiles);
+
+    // Decode the buildings the city has
+    //noinspection unchecked
+    List<String> buildingNames = (List<String>) map.get("buildings");
+    ArrayList<Building> buildings = new ArrayList<>(buildingNames.size());
+    for (String buildingName : buildingNames) {
+      buildings.add(Building.fromName(buildingName));
+    }
+    this.buildings = Collections.unmodifiableList(buildings);
+
+    // Decode the current build of the city if there is one
+    currentlyBuilding = map.containsKey("currentlyBuilding")
+      ? CityBuildable.fromName((String) map.get("currentlyBuilding"))
+      : null;
+
+    productionTotal = (int) map.get("productionTotal");
+    citizens = (int) map.get("citizens");
+    excessFood = (int) map.get("excessFood");
+    name = (String) map.get("name");
+  }
+
+  /**
+   * Immutable details of a tile owned by a city
+   */
+  public static final class TileEntry {
+    /**
+     * X-coordinate of the tile
+     */
+    public final int x;
+    /**
+     * Y-coordinate of the tile
+     */
+    public final int y;
+    /**
+     * Improvement on the tile, {@link Improvement#NONE} if there isn't one
+     */
+    public final Improvement improvement;
+    /**
+     * Metadata of the improvement, null if the tile doesn't have an
+     * improvement or its metadata wasn't saved
+     */
+    public final Map<String, Object> improvementMetadata;
+
+    /**
+     * Decodes a tile from a map
+     *
+     * @param map map containing the tile's coordinates and improvement
+     */
+    private TileEntry(Map<String, Object> map) {
+      x = (int) map.get("x");
+      y = (int) map.get("y");
+
+      // Decode the tile's improvement if there is one
+      if (map.containsKey("improvement")) {
+        //noinspection unchecked
+        Map<String, Object> improvementMap =
+          (Map<String, Object>) map.get("improvement");
+        improvement =
+          Improvement.fromName((String) improvementMap.get("name"));
+        //noinspection unchecked
+        Map<String, Object> meta =
+          (Map<String, Object>) improvementMap.get("meta");
+        improvementMetadata = meta == null
+          ? null
+          : Collections.unmodifiableMap(new HashMap<>(meta));
+      } else {
+        improvement = Improvement.NONE;
+        improvementMetadata = null;
+      }
+    }
+  }
+}
@@ -0,0 +1,363 @@
+package com.mrbbot.civilisation.logic.map.tile;
+
+import com.mrbbot.civilisation.geometry.HexagonGrid;
+
+/**
+ * Compact encoding of a map's terrain for sending over the network and saving.
+ * Rather than storing each height as a double, heights are quantized to 7 or
+ * 15 bits, with the tree flag packed into the remaining top bit. Ocean tiles
+ * all have the same height and never have trees, so runs of them within a row
+ * are replaced with a single marker and a count.
+ * <p>
+ * Quantized heights are always chosen so they're in the same {@link Level} as
+ * the original height, so decoded tiles have the same level, cost and tree
+ * state as the originals. With {@link Precision#PRECISE}, heights with up to 3
+ * decimal places (like all generated heights) are stored exactly.
+ * <p>
+ * The layout (all values big-endian) is:
+ * <ul>
+ *   <li>byte: number of bits in each value (8 or 16)</li>
+ *   <li>short: number of rows</li>
+ *   <li>short: number of tiles in the first row, odd rows have one more</li>
+ *   <li>values, row by row. Each is either a quantized height with the top bit
+ *   set if the tile has a tree, or {@link #OCEAN_RUN} followed by the number
+ *   of ocean tiles in the run.</li>
+ * </ul>
+ */
+public class QuantizedTerrain {
+  /**
+   * Precision heights are stored with
+   */
+  public enum Precision {
+    /**
+     * 1 byte per tile, heights are rounded to the nearest 1/127
+     */
+    COMPACT(8, 127),
+    /**
+     * 2 bytes per tile, heights are rounded to the nearest 1/1000
+     */
+    PRECISE(16, 1000);
+
+    /**
+     * Number of bits in each value
+     */
+    final int bits;
+    /**
+     * Number a height of 1 is quantized to
+     */
+    final int scale;
+
+    Precision(int bits, int scale) {
+      this.bits = bits;
+      this.scale = scale;
+    }
+
+    /**
+     * Gets the precision with the specified number of bits
+     *
+     * @param bits number of bits in each value
+     * @return the precision, or null if there isn't one
+     */
+    static Precision fromBits(int bits) {
+      for (Precision precision : values()) {
+        if (precision.bits == bits) return precision;
+      }
+      return null;
+    }
+  }
+
+  /**
+   * Number of bytes before the first value
+   */
+  private static final int HEADER_LENGTH = 5;
+  /**
+   * Value marking the start of a run of ocean tiles. This is a tree with a
+   * height of 0, which can't occur as trees only grow on plains.
+   */
+  private static final int OCEAN_RUN = 1;
+
+  /**
+   * Bytes containing the encoded terrain
+   */
+  private final byte[] bytes;
+  /**
+   * Precision heights are stored with
+   */
+  private final Precision precision;
+  /**
+   * Number of rows in the map
+   */
+  private final int rows;
+  /**
+   * Number of tiles in the first row of the map
+   */
+  private final int width;
+
+  /**
+   * Creates encoded terrain from bytes produced by {@link #getBytes()},
+   * checking they describe a complete map
+   *
+   * @param bytes bytes containing the encoded terrain, these aren't copied so
+   *              mustn't be modified
+   * @throws IllegalArgumentException if the bytes are corrupt
+   */
+  public QuantizedTerrain(byte[] bytes) {
+    if (bytes.length < HEADER_LENGTH) {
+      throw new IllegalArgumentException("quantized terrain too short");
+    }
+    this.bytes = bytes;
+    precision = Precision.fromBits(bytes[0]);
+    if (precision == null) {
+      throw new IllegalArgumentException("invalid quantized terrain bits");
+    }
+    rows = readShort(1);
+    width = readShort(3);
+
+    // Check every row is complete, so decoding can't fail
+    int position = HEADER_LENGTH;
+    int unit = precision.bits / 8;
+    for (int y = 0; y < rows; y++) {
+      int rowWidth = getRowWidth(y);
+      int x = 0;
+      while (x < rowWidth) {
+        if (position + unit > bytes.length) {
+          throw new IllegalArgumentException("quantized terrain truncated");
+        }
+        int value = readValue(position);
+        position += unit;
+        if (value == oceanRun()) {
+          if (position + unit > bytes.length) {
+            throw new IllegalArgumentException("quantized terrain truncated");
+          }
+          int run = readValue(position);
+          position += unit;
+          if (run == 0 || x + run > rowWidth) {
+            throw new IllegalArgumentException("invalid ocean run length");
+          }
+          x += run;
+        } else {
+          x++;
+        }
+      }
+    }
+  }
+
+  /**
+   * Encodes the terrain of every tile in a grid
+   *
+   * @param grid      grid containing the tiles to encode
+   * @param precision precision to store heights with
+   * @return the encoded terrain
+   */
+  public static QuantizedTerrain encode(
+    HexagonGrid<Tile> grid,
+    Precision precision
+  ) {
+    int rows = grid.getHeight();
+    int width = grid.getWidth();
+    int unit = precision.bits / 8;
+    int maxRun = (1 << precision.bits) - 1;
+    int oceanRun = OCEAN_RUN << (precision.bits - 1);
+    int treeBit = 1 << (precision.bits - 1);
+
+    // Worst case, every tile is a run of 1 ocean tile, needing 2 values
+    byte[] bytes = new byte[HEADER_LENGTH + rows * (width + 1) * 2 * unit];
+    bytes[0] = (byte) precision.bits;
+    writeShort(bytes, 1, rows);
+    writeShort(bytes, 3, width);
+
+    int position = HEADER_LENGTH;
+    for (int y = 0; y < rows; y++) {
+      int rowWidth = width + (y % 2);
+      int x = 0;
+      while (x < rowWidth) {
+        Terrain terrain = grid.get(x, y).getTerrain();
+        if (terrain.level == Level.OCEAN) {
+          // Count the ocean tiles in this run
+          int run = 1;
+          while (x + run < rowWidth
+            && run < maxRun
+            && grid.get(x + run, y).getTerrain().level == Level.OCEAN) {
+            run++;
+          }
+          position = writeValue(bytes, position, unit, oceanRun);
+          position = writeValue(bytes, position, unit, run);
+          x += run;
+        } else {
+          int value = quantize(terrain, precision);
+          if (terrain.hasTree) value |= treeBit;
+          position = writeValue(bytes, position, unit, value);
+          x++;
+        }
+      }
+    }
+
+    // Trim the unused space
+    byte[] trimmed = new byte[position];
+    System.arraycopy(bytes, 0, trimmed, 0, position);
+    return new QuantizedTerrain(trimmed);
+  }
+
+  /**
+   * Quantizes a tile's height, making sure it's still in the same level
+   *
+   * @param terrain   terrain of the tile
+   * @param precision precision to store the height with
+   * @return quantized height
+   */
+  private static int quantize(Terrain terrain, Precision precision) {
+    int value = (int) Math.round(terrain.height * precision.scale);
+    value = Math.max(0, Math.min(precision.scale, value));
+    // Rounding may have moved the height over a level boundary, so move it
+    // back towards the original level. Levels are declared highest first.
+    Level level;
+    while ((level = Level.of((double) value / precision.scale))
+      != terrain.level) {
+      value += level.ordinal() > terrain.level.ordinal() ? 1 : -1;
+      if (value < 0 || value > precision.scale) {
+        throw new IllegalStateException(
+          "unable to quantize height " + terrain.height
+        );
+      }
+    }
+    return value;
+  }
+
+  /**
+   * Decodes the terrain into a new grid of tiles
+   *
+   * @return grid containing a tile for every encoded tile
+   */
+  public HexagonGrid<Tile> decode() {
+    HexagonGrid<Tile> grid = new HexagonGrid<>(width, rows, 1);
+    int unit = precision.bits / 8;
+    int treeBit = 1 << (precision.bits - 1);
+    double oceanHeight = Level.OCEAN.maxHeight;
+
+    int position = HEADER_LENGTH;
+    for (int y = 0; y < rows; y++) {
+      int rowWidth = getRowWidth(y);
+      int x = 0;
+      while (x < rowWidth) {
+        int value = readValue(position);
+        position += unit;
+        if (value == oceanRun()) {
+          int run = readValue(position);
+          position += unit;
+          for (int end = x + run; x < end; x++) {
+            grid.set(x, y, new Tile(
+              grid.getHexagon(x, y),
+              x, y,
+              oceanHeight, false
+            ));
+          }
+        } else {
+          double height = (double) (value & (treeBit - 1)) / precision.scale;
+          grid.set(x, y, new Tile(
+            grid.getHexagon(x, y),
+            x, y,
+            height, (value & treeBit) != 0
+          ));
+          x++;
+        }
+      }
+    }
+    return grid;
+  }
+
+  /**
+   * Gets the value marking the start of a run of ocean tiles for this
+   * terrain's precision
+   *
+   * @return ocean run marker
+   */
+  private int oceanRun() {
+    return OCEAN_RUN << (precision.bits - 1);
+  }
+
+  /**
+   * Gets the number of rows in the map
+   *
+   * @return number of rows
+   */
+  public int getRows() {
+    return rows;
+  }
+
+  /**
+   * Gets the number of tiles in a row
+   *
+   * @param y row index
+   * @return number of tiles in the row
+   */
+  public int getRowWidth(int y) {
+    // Odd rows have an extra tile (see HexagonGrid)
+    return width + (y % 2);
+  }
+
+  /**
+   * Gets the bytes containing the encoded terrain. These aren't copied so
+   * mustn't be modified.
+   *
+   * @return encoded terrain
+   */
+  public byte[] getBytes() {
+    return bytes;
+  }
+
+  /**
+   * Reads an unsigned value of this terrain's precision
+   *
+   * @param position position of the value's first byte
+   * @return the value
+   */
+  private int readValue(int position) {
+    if (precision == Precision.COMPACT) return bytes[position] & 0xFF;
+    return readShort(position);
+  }
+
+  /**
+   * Reads an unsigned big-endian short
+   *
+   * @param position position of the first byte
+   * @return the value
+   */
+  private int readShort(int position) {
+    return ((bytes[position] & 0xFF) << 8) | (bytes[position + 1] & 0xFF);
+  }
+
+  /**
+   * Writes an unsigned value
+   *
+   * @param bytes    array to write to
+   * @param position position to write the value's first byte at
+   * @param unit     number of bytes in the value
+   * @param value    value to write
+   * @return position after the value
+   */
+  private static int writeValue(
+    byte[] bytes,
+    int position,
+    int unit,
+    int value
+  ) {
+    if (unit == 1) {
+      bytes[position] = (byte) value;
+    } else {
+      writeShort(bytes, position, value);
+    }
+    return position + unit;
+  }
+
+  /**
+   * Writes an unsigned big-endian short
+   *
+   * @param bytes    array to write to
+   * @param position position to write the first byte at
+   * @param value    value to write
+   */
+  private static void writeShort(byte[] bytes, int position, int value) {
+    bytes[position] = (byte) (value >>> 8);
+    bytes[position + 1] = (byte) value;
+  }
+}
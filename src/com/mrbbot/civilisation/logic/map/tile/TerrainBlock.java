@@ -0,0 +1,282 @@
+package com.mrbbot.civilisation.logic.map.tile;
+
+import com.mrbbot.civilisation.geometry.HexagonGrid;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.List;
+
+/**
+ * Fixed-layout binary block storing the height and tree state of every tile
+ * in a map. Values are read straight out of the backing buffer (which may be a
+ * memory-mapped region of a save file), so loading a map doesn't have to
+ * create an object for every height like parsing YAML does.
+ * <p>
+ * The layout (all values big-endian) is:
+ * <ul>
+ *   <li>int: number of rows</li>
+ *   <li>int: number of cells in each row (the widest row's width)</li>
+ *   <li>int[rows]: actual width of each row</li>
+ *   <li>double[rows * cells]: tile heights, row by row</li>
+ *   <li>byte[rows * cells]: 1 if the tile has a tree, 0 otherwise</li>
+ * </ul>
+ * Rows narrower than the widest row are padded so any tile can be found
+ * without scanning.
+ */
+public class TerrainBlock {
+  /**
+   * Number of bytes before the row widths
+   */
+  private static final int HEADER_LENGTH = 8;
+
+  /**
+   * Buffer containing the block
+   */
+  private final ByteBuffer buffer;
+  /**
+   * Number of rows in the map
+   */
+  private final int rows;
+  /**
+   * Number of cells stored for each row
+   */
+  private final int cells;
+  /**
+   * Position in the buffer of the first tile height
+   */
+  private final int heightsOffset;
+  /**
+   * Position in the buffer of the first tree flag
+   */
+  private final int treesOffset;
+
+  /**
+   * Creates a block backed by an existing buffer, starting at its current
+   * position
+   *
+   * @param buffer buffer containing the block, isn't modified
+   * @throws IllegalArgumentException if the buffer is too short to contain
+   *                                  the block it describes, or the block
+   *                                  would be too large
+   */
+  public TerrainBlock(ByteBuffer buffer) {
+    this.buffer = buffer.slice().order(ByteOrder.BIG_ENDIAN);
+    if (this.buffer.remaining() < HEADER_LENGTH) {
+      throw new IllegalArgumentException("terrain block too short");
+    }
+    rows = this.buffer.getInt(0);
+    cells = this.buffer.getInt(4);
+    if (rows < 0 || cells < 0) {
+      throw new IllegalArgumentException("invalid terrain block size");
+    }
+    // Check the length first, so the offsets within it can't overflow
+    if (this.buffer.remaining() < lengthFor(rows, cells)) {
+      throw new IllegalArgumentException("terrain block too short");
+    }
+    heightsOffset = HEADER_LENGTH + rows * 4;
+    treesOffset = heightsOffset + rows * cells * 8;
+  }
+
+  /**
+   * Calculates the number of bytes a block takes up
+   *
+   * @param rows  number of rows in the map
+   * @param cells number of cells stored for each row
+   * @return length of the block in bytes
+   * @throws IllegalArgumentException if the block would be too large for a
+   *                                  buffer
+   */
+  private static int lengthFor(int rows, int cells) {
+    // Calculate in longs, as the sizes may have come from a corrupt file
+    long length = HEADER_LENGTH + rows * 4L + (long) rows * cells * (8 + 1);
+    if (length > Integer.MAX_VALUE) {
+      throw new IllegalArgumentException("terrain block too large");
+    }
+    return (int) length;
+  }
+
+  /**
+   * Creates a block from the terrain and tree lists stored in a game's map
+   * (see {@link com.mrbbot.civilisation.logic.map.Game#toMap()})
+   *
+   * @param terrain list of rows of tile heights
+   * @param trees   list of rows of tree states (1 if there's a tree)
+   * @return block containing the same terrain
+   */
+  public static TerrainBlock fromLists(
+    List<? extends List<? extends Number>> terrain,
+    List<? extends List<? extends Number>> trees
+  ) {
+    int rows = terrain.size();
+    int cells = 0;
+    for (List<? extends Number> row : terrain) {
+      cells = Math.max(cells, row.size());
+    }
+
+    ByteBuffer buffer = ByteBuffer.allocate(lengthFor(rows, cells));
+    buffer.putInt(rows);
+    buffer.putInt(cells);
+    for (List<? extends Number> row : terrain) buffer.putInt(row.size());
+    int heightsOffset = HEADER_LENGTH + rows * 4;
+    int treesOffset = heightsOffset + rows * cells * 8;
+    for (int y = 0; y < rows; y++) {
+      List<? extends Number> terrainRow = terrain.get(y);
+      List<? extends Number> treeRow = trees.get(y);
+      for (int x = 0; x < terrainRow.size(); x++) {
+        int index = y * cells + x;
+        buffer.putDouble(
+          heightsOffset + index * 8,
+          terrainRow.get(x).doubleValue()
+        );
+        buffer.put(
+          treesOffset + index,
+          (byte) (treeRow.get(x).intValue() == 1 ? 1 : 0)
+        );
+      }
+    }
+    buffer.rewind();
+    return new TerrainBlock(buffer);
+  }
+
+  /**
+   * Creates a block from rows of heights and tree states packed one after
+   * another into arrays, as produced by a streaming reader that doesn't know
+   * the map's size until it's finished
+   *
+   * @param rowWidths number of tiles in each row, the length of this array is
+   *                  the number of rows
+   * @param heights   tile heights, row by row
+   * @param trees     tree states, row by row
+   * @return block containing the terrain
+   * @throws IllegalArgumentException if the arrays are shorter than the rows
+   *                                  they describe
+   */
+  public static TerrainBlock fromArrays(
+    int[] rowWidths,
+    double[] heights,
+    boolean[] trees
+  ) {
+    int rows = rowWidths.length;
+    int cells = 0;
+    int total = 0;
+    for (int width : rowWidths) {
+      cells = Math.max(cells, width);
+      total += width;
+    }
+    if (heights.length < total || trees.length < total) {
+      throw new IllegalArgumentException("terrain arrays too short");
+    }
+
+    ByteBuffer buffer = ByteBuffer.allocate(lengthFor(rows, cells));
+    buffer.putInt(rows);
+    buffer.putInt(cells);
+    for (int width : rowWidths) buffer.putInt(width);
+    int heightsOffset = HEADER_LENGTH + rows * 4;
+    int treesOffset = heightsOffset + rows * cells * 8;
+    // Position of the current row's first tile in the packed arrays
+    int start = 0;
+    for (int y = 0; y < rows; y++) {
+      for (int x = 0; x < rowWidths[y]; x++) {
+        int index = y * cells + x;
+        buffer.putDouble(heightsOffset + index * 8, heights[start + x]);
+        buffer.put(treesOffset + index, (byte) (trees[start + x] ? 1 : 0));
+      }
+      start += rowWidths[y];
+    }
+    buffer.rewind();
+    return new TerrainBlock(buffer);
+  }
+
+  /**
+   * Creates a block containing the terrain of an existing grid, without
+   * losing any precision
+   *
+   * @param grid grid to copy the terrain of
+   * @return block containing the same terrain
+   */
+  public static TerrainBlock fromGrid(HexagonGrid<Tile> grid) {
+    // Odd rows have one more tile than even rows
+    int gridWidth = grid.getWidth() + 1;
+    int[] rowWidths = new int[grid.getHeight()];
+    int total = 0;
+    for (int y = 0; y < rowWidths.length; y++) {
+      rowWidths[y] = gridWidth - ((y + 1) % 2);
+      total += rowWidths[y];
+    }
+
+    double[] heights = new double[total];
+    boolean[] trees = new boolean[total];
+    int i = 0;
+    for (int y = 0; y < rowWidths.length; y++) {
+      for (int x = 0; x < rowWidths[y]; x++) {
+        Terrain terrain = grid.get(x, y).getTerrain();
+        heights[i] = terrain.height;
+        trees[i] = terrain.hasTree;
+        i++;
+      }
+    }
+    return fromArrays(rowWidths, heights, trees);
+  }
+
+  /**
+   * Gets the number of rows in the map
+   *
+   * @return number of rows
+   */
+  public int getRows() {
+    return rows;
+  }
+
+  /**
+   * Gets the number of tiles in a row
+   *
+   * @param y row index
+   * @return number of tiles in the row
+   */
+  public int getRowWidth(int y) {
+    return buffer.getInt(HEADER_LENGTH + y * 4);
+  }
+
+  /**
+   * Gets the height of a tile
+   *
+   * @param x column index
+   * @param y row index
+   * @return height of the tile
+   */
+  public double getHeight(int x, int y) {
+    return buffer.getDouble(heightsOffset + (y * cells + x) * 8);
+  }
+
+  /**
+   * Checks whether a tile has a tree
+   *
+   * @param x column index
+   * @param y row index
+   * @return whether the tile has a tree
+   */
+  public boolean hasTree(int x, int y) {
+    return buffer.get(treesOffset + y * cells + x) == 1;
+  }
+
+  /**
+   * Gets the number of bytes this block takes up
+   *
+   * @return length of the block in bytes
+   */
+  public int getLength() {
+    return lengthFor(rows, cells);
+  }
+
+  /**
+   * Gets a read-only view of the bytes making up this block, for writing it
+   * to a file
+   *
+   * @return buffer containing exactly this block
+   */
+  public ByteBuffer asBuffer() {
+    ByteBuffer view = buffer.asReadOnlyBuffer();
+    view.position(0).limit(getLength());
+    return view.slice();
+  }
+}
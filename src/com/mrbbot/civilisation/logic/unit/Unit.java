@@ -95,32 +95,36 @@ public class Unit extends Living implements Positionable {
    * @param map  map containing information on the unit
    */
   public Unit(HexagonGrid<Tile> grid, Map<String, Object> map) {
+    this(grid, new UnitRecord(map));
+  }
+
+  /**
+   * Places an already decoded unit on its tile of the grid. Modifies the
+   * tile, so must be called on the thread that owns the grid.
+   *
+   * @param grid   hexagon grid containing the unit
+   * @param record decoded unit data
+   */
+  public Unit(HexagonGrid<Tile> grid, UnitRecord record) {
     // Load base health and health for living
-    super((int) map.get("baseHealth"), (int) map.get("health"));
+    super(record.baseHealth, record.health);
 
     // Load player
-    this.player = new Player((String) map.get("owner"));
+    this.player = new Player(record.owner);
 
     // Load tile from the hexagon grid
-    this.tile = grid.get((int) map.get("x"), (int) map.get("y"));
+    this.tile = grid.get(record.x, record.y);
 
-    // Load the unit type and check it exists
-    this.unitType = UnitType.fromName((String) map.get("type"));
-    assert this.unitType != null;
+    // Load the unit type
+    this.unitType = record.unitType;
 
     // Load movement and attack state
-    this.remainingMovementPointsThisTurn =
-      (int) map.get("remainingMovementPoints");
-    this.hasAttackedThisTurn = canAttack()
-      && (boolean) map.get("hasAttacked");
+    this.remainingMovementPointsThisTurn = record.remainingMovementPoints;
+    this.hasAttackedThisTurn = canAttack() && record.hasAttacked;
 
     // Load specific worker information
-    if (map.containsKey("workerBuilding"))
-      workerBuilding =
-        Improvement.fromName((String) map.get("workerBuilding"));
-    if (map.containsKey("workerBuildTurnsRemaining"))
-      workerBuildTurnsRemaining =
-        (int) map.get("workerBuildTurnsRemaining");
+    workerBuilding = record.workerBuilding;
+    workerBuildTurnsRemaining = record.workerBuildTurnsRemaining;
 
     // Check the tile doesn't already have a unit
     if (tile.unit != null) {
@@ -0,0 +1,88 @@
+package com.mrbbot.civilisation.logic.unit;
+
+import com.mrbbot.civilisation.logic.map.tile.Improvement;
+
+import java.util.Map;
+
+/**
+ * Immutable details of a unit decoded from a map, before it's placed on a
+ * tile of a game's grid. Decoding doesn't touch the grid, so the records for
+ * every unit in a save can be decoded at the same time on different threads,
+ * leaving only the placing (see {@link Unit#Unit(
+ * com.mrbbot.civilisation.geometry.HexagonGrid, UnitRecord)}) to be done one
+ * unit at a time.
+ */
+public final class UnitRecord {
+  /**
+   * ID of the player who owns the unit
+   */
+  public final String owner;
+  /**
+   * Maximum health of the unit
+   */
+  public final int baseHealth;
+  /**
+   * Current health of the unit
+   */
+  public final int health;
+  /**
+   * X-coordinate of the tile the unit is on
+   */
+  public final int x;
+  /**
+   * Y-coordinate of the tile the unit is on
+   */
+  public final int y;
+  /**
+   * Type of the unit
+   */
+  public final UnitType unitType;
+  /**
+   * Number of movement points the unit has left this turn
+   */
+  public final int remainingMovementPoints;
+  /**
+   * Whether the unit has attacked this turn, only saved for units that can
+   * attack
+   */
+  public final boolean hasAttacked;
+  /**
+   * What the unit is building on its tile, {@link Improvement#NONE} if
+   * nothing
+   */
+  public final Improvement workerBuilding;
+  /**
+   * Number of turns left on the unit's build project
+   */
+  public final int workerBuildTurnsRemaining;
+
+  /**
+   * Decodes a unit from a map (could be from a file/server). Only reads the
+   * map, so can be called from any thread.
+   *
+   * @param map map containing unit data (see {@link Unit#toMap()})
+   */
+  public UnitRecord(Map<String, Object> map) {
+    owner = (String) map.get("owner");
+    baseHealth = (int) map.get("baseHealth");
+    health = (int) map.get("health");
+    x = (int) map.get("x");
+    y = (int) map.get("y");
+
+    // Decode the unit type and check it exists
+    unitType = UnitType.fromName((String) map.get("type"));
+    assert unitType != null;
+
+    // Decode movement and attack state
+    remainingMovementPoints = (int) map.get("remainingMovementPoints");
+    hasAttacked = Boolean.TRUE.equals(map.get("hasAttacked"));
+
+    // Decode specific worker information
+    workerBuilding = map.containsKey("workerBuilding")
+      ? Improvement.fromName((String) map.get("workerBuilding"))
+      : Improvement.NONE;
+    workerBuildTurnsRemaining = map.containsKey("workerBuildTurnsRemaining")
+      ? (int) map.get("workerBuildTurnsRemaining")
+      : 0;
+  }
+}
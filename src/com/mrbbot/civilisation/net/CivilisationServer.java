@@ -1,45 +1,144 @@
 package com.mrbbot.civilisation.net;
 
-import com.mrbbot.civilisation.logic.map.Game;
 import com.mrbbot.civilisation.logic.map.MapSize;
-import com.mrbbot.civilisation.logic.map.tile.Tile;
-import com.mrbbot.civilisation.net.packet.*;
+import com.mrbbot.civilisation.net.packet.Packet;
+import com.mrbbot.civilisation.save.SaveFiles;
 import com.mrbbot.generic.net.Connection;
+import com.mrbbot.generic.net.ConnectionOptions;
 import com.mrbbot.generic.net.Handler;
 import com.mrbbot.generic.net.Server;
-import org.yaml.snakeyaml.Yaml;
 
 import java.io.File;
-import java.io.FileReader;
-import java.io.FileWriter;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
 
 /**
- * Class containing the implementation of the game server.
+ * Class containing the implementation of the game server. A single listener
+ * hosts any number of games, each played in its own {@link GameRoom} with its
+ * own game loop thread, so small games can share one process while still
+ * running in parallel. Clients pick a room when they connect; clients that
+ * don't join {@link Server#DEFAULT_ROOM}.
+ * <p>
+ * Rooms created on demand are opened on a separate thread, so loading or
+ * generating a game never holds up the network threads. The number of these
+ * rooms is limited, and rooms nobody has been in for a while are saved and
+ * closed.
  */
 public class CivilisationServer implements Handler<Packet> {
   /**
-   * Instance of the external library used for saving/parsing YAML game saves.
+   * Names rooms created on demand are allowed to have. Limited so they can
+   * safely be used in file names.
    */
-  public static final Yaml YAML = new Yaml();
+  private static final Pattern ROOM_NAME_PATTERN =
+    Pattern.compile("[A-Za-z0-9_-]{0,32}");
+  /**
+   * Extension of the save files of rooms created on demand
+   */
+  private static final String ROOM_FILE_EXTENSION = ".civ";
+  /**
+   * Default maximum number of rooms that can be open at once
+   */
+  public static final int DEFAULT_MAX_ROOMS = 32;
+  /**
+   * Default number of milliseconds a room has to be empty for before it's
+   * closed
+   */
+  public static final long DEFAULT_ROOM_IDLE_MILLIS = 5 * 60 * 1000;
+  /**
+   * Number of milliseconds between checks for empty rooms
+   */
+  private static final long ROOM_CHECK_MILLIS = 10 * 1000;
 
   /**
-   * File for the current game save the server is using
+   * Codec for converting packets to bytes, shared by every connection
+   */
+  private final PacketCodec codec = new PacketCodec();
+  /**
+   * Map mapping room names to the games played in them. Concurrent as
+   * connections are handled by different event loops. Packets are passed to
+   * rooms while holding the lock on this map, so a room is never closed with
+   * packets still arriving.
    */
-  private final File gameFile;
+  private final Map<String, GameRoom> rooms = new ConcurrentHashMap<>();
   /**
-   * The server instance of the game. Contains all state details but no render
-   * references.
+   * Map mapping the names of rooms that are being opened to the packets
+   * waiting for them. Each packet is chained onto the previous one, so they
+   * reach the room in the order they arrived. Guarded by the lock on
+   * {@link #rooms}.
    */
-  private Game game;
+  private final Map<String, CompletableFuture<GameRoom>> opening =
+    new HashMap<>();
+  /**
+   * Map mapping the names of rooms to when they were first seen empty, only
+   * used on the {@link #roomThread}
+   */
+  private final Map<String, Long> emptySince = new HashMap<>();
+  /**
+   * Thread rooms created on demand are opened and closed on, or null if the
+   * server only hosts the rooms it was created with
+   */
+  private final ScheduledExecutorService roomThread;
+  /**
+   * Directory the games of rooms created on demand are saved in, or null if
+   * the server only hosts the rooms it was created with
+   */
+  private final File roomDirectory;
+  /**
+   * Map size of new games in rooms created on demand
+   */
+  private final MapSize roomMapSize;
   /**
    * The instance of the generic server for sending/receiving {@link Packet}s.
    */
-  private Server<Packet> server;
+  private final Server<Packet> server;
+  /**
+   * Whether the server has been closed, so no more rooms should be opened.
+   * Guarded by the lock on {@link #rooms}.
+   */
+  private boolean closed;
+  /**
+   * Number of tiles around their units and cities players can see in rooms
+   * opened from now on (see {@link InterestManager})
+   */
+  private volatile int sightRadius = InterestManager.DEFAULT_SIGHT_RADIUS;
+  /**
+   * Number of saves each room keeps, including the newest
+   */
+  private volatile int saveGenerations = SaveFiles.DEFAULT_GENERATIONS;
+  /**
+   * Minimum time between saves of each room's game in milliseconds
+   */
+  private volatile long saveIntervalMillis = GameSaver.DEFAULT_INTERVAL_MILLIS;
+  /**
+   * Number of turns each room's game can be rewound by
+   */
+  private volatile int rewindTurns = TurnSnapshots.DEFAULT_CAPACITY;
+  /**
+   * Maximum number of rooms that can be open at once, including those being
+   * opened
+   */
+  private volatile int maxRooms = DEFAULT_MAX_ROOMS;
+  /**
+   * Number of milliseconds a room created on demand has to be empty for
+   * before it's closed
+   */
+  private volatile long roomIdleMillis = DEFAULT_ROOM_IDLE_MILLIS;
 
   /**
-   * Creates a completely new game server with the specified details
+   * Creates a completely new game server with the specified details, hosting
+   * a single game in the default room
    *
    * @param gameFileName path for the game save file
    * @param gameName     name of the new game
@@ -53,79 +152,384 @@ public class CivilisationServer implements Handler<Packet> {
     MapSize mapSize,
     int port
   ) throws IOException {
-    // Create the reference to the game file
-    this.gameFile = new File(gameFileName);
-    // Create the new game
-    game = new Game(gameName, mapSize);
-    // Save and then immediately load the game so it's in the same state as if
-    // it were just loaded (see the 2nd constructor)
-    save();
-    load();
-    // Start the server using this instance as the packet handler (See
-    // accept(Connection<Packet> Packet)).
-    server = new Server<>(port, this);
+    this.roomDirectory = null;
+    this.roomMapSize = null;
+    this.roomThread = null;
+    rooms.put(Server.DEFAULT_ROOM, new GameRoom(
+      Server.DEFAULT_ROOM,
+      new File(gameFileName),
+      gameName,
+      mapSize,
+      codec
+    ));
+    server = new Server<>(port, this, codec, connectionOptions());
   }
 
   /**
-   * Creates a new game server loaded from an existing game save
+   * Creates a new game server loaded from an existing game save, hosting it
+   * in the default room
    *
    * @param gameFileName path of the game save file
    * @param port         port number to run the server on
    * @throws IOException if there are any server networking errors
    */
   public CivilisationServer(String gameFileName, int port) throws IOException {
-    // Create the reference to the game file
-    this.gameFile = new File(gameFileName);
-    // Check the save exists
-    if (!this.gameFile.exists())
-      throw new IllegalArgumentException("game file doesn't exist");
-    // Load the game
-    load();
-    // Start the server using this instance as the packet handler (See
-    // accept(Connection<Packet> Packet)).
-    server = new Server<>(port, this);
+    this.roomDirectory = null;
+    this.roomMapSize = null;
+    this.roomThread = null;
+    rooms.put(Server.DEFAULT_ROOM, new GameRoom(
+      Server.DEFAULT_ROOM,
+      new File(gameFileName),
+      codec
+    ));
+    server = new Server<>(port, this, codec, connectionOptions());
   }
 
   /**
-   * Closes the server's socket disconnecting all clients
+   * Creates a new game server that opens a room for every room name clients
+   * ask for. Each room's game is saved in the directory, and is loaded from
+   * there if it's been played before. Otherwise, a new game is created.
+   * Rooms that have been empty for a while are closed, and opened again when
+   * someone asks for them.
+   *
+   * @param roomDirectory directory to save the rooms' games in
+   * @param mapSize       map size of new games
+   * @param port          port number to run the server on
+   * @throws IOException if there are any server networking errors
+   */
+  public CivilisationServer(
+    File roomDirectory,
+    MapSize mapSize,
+    int port
+  ) throws IOException {
+    if (!roomDirectory.isDirectory() && !roomDirectory.mkdirs()) {
+      throw new IOException("couldn't create " + roomDirectory);
+    }
+    this.roomDirectory = roomDirectory;
+    this.roomMapSize = mapSize;
+    this.roomThread = Executors.newSingleThreadScheduledExecutor(runnable -> {
+      Thread thread = new Thread(runnable, "Rooms");
+      thread.setDaemon(true);
+      return thread;
+    });
+    roomThread.scheduleWithFixedDelay(
+      this::closeIdleRooms,
+      ROOM_CHECK_MILLIS,
+      ROOM_CHECK_MILLIS,
+      TimeUnit.MILLISECONDS
+    );
+    server = new Server<>(port, this, codec, connectionOptions());
+  }
+
+  /**
+   * Creates the options for connections to the server. Clients that can't
+   * keep up are disconnected rather than making the sender wait, as updates
+   * are sent from each room's game loop and waiting would hold up everyone
+   * else in the room. Dropping updates instead would leave the client's game
+   * out of step, whereas a disconnected client is sent what it missed when
+   * it rejoins.
+   *
+   * @return options for every connection to the server
+   */
+  private static ConnectionOptions connectionOptions() {
+    return new ConnectionOptions(
+      ConnectionOptions.DEFAULT_MAX_QUEUED_FRAMES,
+      ConnectionOptions.OverflowPolicy.DISCONNECT
+    );
+  }
+
+  /**
+   * Closes the server's socket disconnecting all clients. Every packet that
+   * has already been received is handled and the final state of every game is
+   * saved before this returns.
    *
    * @throws IOException if there are any networking errors
    */
   public void close() throws IOException {
     server.close();
+    synchronized (rooms) {
+      // Packets still being handled mustn't open new rooms now
+      closed = true;
+    }
+    if (roomThread != null) {
+      // Wait for rooms being opened or closed, so they're all in the map
+      roomThread.shutdown();
+      try {
+        roomThread.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    }
+    for (GameRoom room : rooms.values()) room.close();
   }
 
   /**
-   * Saves the game state to the game file
+   * Gets the game loop packets for the default room are handled on, for
+   * monitoring how long packets take to be handled
+   *
+   * @return the default room's game loop, or null if the default room hasn't
+   * been opened
    */
-  private void save() {
-    // Try and create a file writer, closing it when the game state has been
-    // written
-    try (FileWriter writer = new FileWriter(gameFile)) {
-      // Dump the game state as YAML
-      YAML.dump(game.toMap(), writer);
-    } catch (IOException e) {
-      e.printStackTrace();
+  public GameLoop getGameLoop() {
+    GameRoom room = rooms.get(Server.DEFAULT_ROOM);
+    return room == null ? null : room.getGameLoop();
+  }
+
+  /**
+   * Sets how far around their units and cities players can see, in every
+   * room. Updates players can't see are deferred.
+   *
+   * @param sightRadius number of tiles players can see, or a negative number
+   *                    to send every update to every player straight away
+   */
+  public void setSightRadius(int sightRadius) {
+    synchronized (rooms) {
+      this.sightRadius = sightRadius;
+      for (GameRoom room : rooms.values()) {
+        room.getInterestManager().setSightRadius(sightRadius);
+      }
+    }
+  }
+
+  /**
+   * Sets the number of saves to keep of every room's game, so a game can be
+   * recovered from an older save if the newer ones are damaged
+   *
+   * @param generations number of saves to keep including the newest, at least
+   *                    1
+   */
+  public void setSaveGenerations(int generations) {
+    if (generations < 1) {
+      throw new IllegalArgumentException("at least one save must be kept");
+    }
+    synchronized (rooms) {
+      this.saveGenerations = generations;
+      for (GameRoom room : rooms.values()) {
+        room.setSaveGenerations(generations);
+      }
+    }
+  }
+
+  /**
+   * Sets the minimum time between saves of every room's game (see
+   * {@link GameSaver})
+   *
+   * @param intervalMillis minimum time between saves in milliseconds
+   */
+  public void setSaveInterval(long intervalMillis) {
+    if (intervalMillis < 0) {
+      throw new IllegalArgumentException("interval can't be negative");
+    }
+    synchronized (rooms) {
+      this.saveIntervalMillis = intervalMillis;
+      for (GameRoom room : rooms.values()) {
+        room.setSaveInterval(intervalMillis);
+      }
     }
   }
 
   /**
-   * Loads and overwrites the game state from the game file
+   * Sets the number of turns every room's game can be rewound by (see
+   * {@link GameRoom#rewind(int)})
+   *
+   * @param turns number of turns to keep snapshots of, at least 1
    */
-  private void load() {
-    // Try and create a file reader, closing it when the game state has been
-    // read
-    try (FileReader reader = new FileReader(gameFile)) {
-      // Read the game state as YAML
-      //noinspection unchecked
-      game = new Game(YAML.loadAs(reader, Map.class));
-    } catch (IOException e) {
+  public void setRewindTurns(int turns) {
+    if (turns < 1) {
+      throw new IllegalArgumentException("at least one turn must be kept");
+    }
+    synchronized (rooms) {
+      this.rewindTurns = turns;
+      for (GameRoom room : rooms.values()) room.setRewindTurns(turns);
+    }
+  }
+
+  /**
+   * Sets the maximum number of rooms that can be open at once. Clients asking
+   * for new rooms once this many are open are disconnected.
+   *
+   * @param maxRooms maximum number of open rooms, at least 1
+   */
+  public void setMaxRooms(int maxRooms) {
+    if (maxRooms < 1) {
+      throw new IllegalArgumentException("at least one room must be allowed");
+    }
+    this.maxRooms = maxRooms;
+  }
+
+  /**
+   * Sets how long rooms created on demand have to be empty for before they're
+   * saved and closed
+   *
+   * @param millis number of milliseconds a room can be empty for
+   */
+  public void setRoomIdleTimeout(long millis) {
+    if (millis < 0) {
+      throw new IllegalArgumentException("timeout can't be negative");
+    }
+    this.roomIdleMillis = millis;
+  }
+
+  /**
+   * Gets every room that has been opened
+   *
+   * @return unmodifiable view of the open rooms
+   */
+  public Collection<GameRoom> getRooms() {
+    return Collections.unmodifiableCollection(rooms.values());
+  }
+
+  /**
+   * Gets a room that has been opened
+   *
+   * @param name name of the room
+   * @return the room, or null if it hasn't been opened
+   */
+  public GameRoom getRoom(String name) {
+    return rooms.get(name);
+  }
+
+  /**
+   * Opens a room created on demand, called on the {@link #roomThread}. Loads
+   * the room's game if it's been played before, otherwise creates a new one.
+   * Packets that arrived while the room was being opened are then passed to
+   * it.
+   *
+   * @param name    name of the room to open
+   * @param waiting future completed with the room once it's open, or with
+   *                null if it couldn't be opened
+   */
+  private void openRoom(String name, CompletableFuture<GameRoom> waiting) {
+    File gameFile = new File(
+      roomDirectory,
+      (name.isEmpty() ? "game" : "game-" + name) + ROOM_FILE_EXTENSION
+    );
+    GameRoom room;
+    try {
+      if (SaveFiles.exists(gameFile)) {
+        room = new GameRoom(name, gameFile, codec);
+      } else {
+        room = new GameRoom(
+          name,
+          gameFile,
+          name.isEmpty() ? "Game" : name,
+          roomMapSize,
+          codec
+        );
+      }
+    } catch (IOException | RuntimeException e) {
       e.printStackTrace();
+      room = null;
     }
+
+    synchronized (rooms) {
+      opening.remove(name);
+      if (room != null && !closed) {
+        room.getInterestManager().setSightRadius(sightRadius);
+        room.setSaveGenerations(saveGenerations);
+        room.setSaveInterval(saveIntervalMillis);
+        room.setRewindTurns(rewindTurns);
+        rooms.put(name, room);
+        // Pass on the waiting packets while still holding the lock, so newer
+        // packets can't overtake them
+        waiting.complete(room);
+        return;
+      }
+      waiting.complete(null);
+    }
+    // The server was closed while the room was being opened
+    if (room != null) {
+      try {
+        room.close();
+      } catch (IOException e) {
+        e.printStackTrace();
+      }
+    }
+  }
+
+  /**
+   * Closes rooms created on demand that have been empty for longer than the
+   * idle timeout, called periodically on the {@link #roomThread}. Their games
+   * are saved so they can be opened again later.
+   */
+  private void closeIdleRooms() {
+    long now = System.currentTimeMillis();
+    List<GameRoom> idle = new ArrayList<>();
+    synchronized (rooms) {
+      if (closed) return;
+      Iterator<Map.Entry<String, GameRoom>> iterator =
+        rooms.entrySet().iterator();
+      while (iterator.hasNext()) {
+        String name = iterator.next().getKey();
+        // Connections join the server's room before sending any packets, so
+        // no packets are on their way to a room that's empty here
+        if (!server.getConnections(name).isEmpty()) {
+          emptySince.remove(name);
+          continue;
+        }
+        Long since = emptySince.putIfAbsent(name, now);
+        if (since != null && now - since >= roomIdleMillis) {
+          emptySince.remove(name);
+          idle.add(rooms.get(name));
+          iterator.remove();
+        }
+      }
+    }
+    // Saving the games can be slow, so do it without holding the lock. Rooms
+    // are opened on this thread too, so one can't be opened again until it's
+    // been saved.
+    for (GameRoom room : idle) {
+      try {
+        room.close();
+      } catch (IOException e) {
+        e.printStackTrace();
+      }
+    }
+  }
+
+  /**
+   * Checks whether a room can be opened for a client asking for it. Must be
+   * called while holding the lock on {@link #rooms}.
+   *
+   * @param name name of the room to open
+   * @return why the room can't be opened, or null if it can
+   */
+  private String refusalFor(String name) {
+    if (roomDirectory == null || !ROOM_NAME_PATTERN.matcher(name).matches()) {
+      return "unknown room " + name;
+    }
+    if (rooms.size() + opening.size() >= maxRooms) return "too many rooms";
+    return null;
   }
 
   /**
-   * Main packet handler for the server
+   * Passes a packet to a room once it has been opened
+   *
+   * @param room       room to pass the packet to, or null if it couldn't be
+   *                   opened
+   * @param connection connection the packet came from
+   * @param data       packet to pass on, may be null if the client has
+   *                   disconnected
+   */
+  private static void forward(
+    GameRoom room,
+    Connection<Packet> connection,
+    Packet data
+  ) {
+    if (room != null) {
+      room.accept(connection, data);
+    } else if (data != null) {
+      connection.close(new IOException(
+        "unknown room " + Server.roomOf(connection)
+      ));
+    }
+  }
+
+  /**
+   * Packet handler for the server, called on the network threads. Passes the
+   * packet to the room the connection is in. If this server creates rooms on
+   * demand and the room isn't open, it's opened on the {@link #roomThread}
+   * and the packet is passed on once it has been.
    *
    * @param connection connection object for a client
    * @param data       packet the client has just sent, may be null if the
@@ -133,72 +537,61 @@ public class CivilisationServer implements Handler<Packet> {
    */
   @Override
   public void accept(Connection<Packet> connection, Packet data) {
-    // Alias the connection id
-    String id = connection.getId();
-    if (data == null) {
-      // If the player disconnects, mark them as not ready so the game waits
-      // for them to reconnect
-      game.readyPlayers.put(id, false);
-      return;
-    }
-    // Otherwise depending on the type of packet...
-    if (data instanceof PacketInit) {
-      // Check if this is the first time the player has joined this game
-      boolean shouldCreateStartingPackets = !game.containsPlayerWithId(id);
-
-      // Broadcast the player change to every other client
-      PacketPlayerChange packetPlayerChange = new PacketPlayerChange(id);
-      game.handlePacket(packetPlayerChange);
-      // Send the current game state to the new player
-      connection.broadcastTo(new PacketGame(game.toMap()));
-      connection.broadcastExcluding(packetPlayerChange);
-
-      // Create the starting units (initial settler and warrior) if this is the
-      // first time the player has joined this game.
-      if (shouldCreateStartingPackets) {
-        for (PacketUnitCreate packet : game.createStartingUnits(id)) {
-          // Broadcast them to every client, not just the new player
-          connection.broadcast(packet);
-        }
-      }
-    } else if (data instanceof PacketReady) {
-      // Set the players ready state
-      game.readyPlayers.put(id, ((PacketReady) data).ready);
-      // Check if all players have marked themselves as ready
-      if (game.allPlayersReady()) {
-        // Handle the turn and request all clients do the same
-        PacketReady packetReady = new PacketReady(false);
-        game.handlePacket(packetReady);
-        connection.broadcast(packetReady);
+    String name = Server.roomOf(connection);
+    String refusal;
+    synchronized (rooms) {
+      if (closed) return;
+      GameRoom room = rooms.get(name);
+      if (room != null) {
+        room.accept(connection, data);
+        return;
       }
-    } else if (data instanceof PacketUpdate) {
-      // If this was a game state update, update the local state
-      Tile[] tilesToUpdate = game.handlePacket(data);
-      // Check if any units have died and remove them from the game
-      if (tilesToUpdate != null && tilesToUpdate.length != 0) {
-        for (Tile tile : tilesToUpdate) {
-          if (tile.unit != null && tile.unit.isDead()) {
-            game.units.remove(tile.unit);
-            tile.unit = null;
-          }
+      CompletableFuture<GameRoom> waiting = opening.get(name);
+      if (waiting == null) {
+        // Don't open a room just to tell it someone who never joined has left
+        if (data == null) return;
+        refusal = refusalFor(name);
+        if (refusal == null) {
+          CompletableFuture<GameRoom> opened = new CompletableFuture<>();
+          roomThread.execute(() -> openRoom(name, opened));
+          waiting = opened;
         }
+      } else {
+        refusal = null;
+      }
+      if (waiting != null) {
+        // Queue the packet behind the others waiting for the room
+        opening.put(
+          name,
+          waiting.whenComplete((opened, e) -> forward(opened, connection, data))
+        );
+        return;
       }
-      // Send the update to all connected clients but the sender
-      connection.broadcastExcluding(data);
     }
-
-    // Save the game state to the file after handling the packet so the game
-    // can be easily restored
-    save();
+    // Disconnect clients asking for rooms that can't be opened
+    connection.close(new IOException(refusal));
   }
 
   /**
-   * Entry point for a dedicated server (one without a UI/client)
+   * Entry point for a dedicated server (one without a UI/client). If a
+   * directory is given, the server hosts a room for every room name clients
+   * ask for, saving them in that directory. The map size of new games can be
+   * given after the directory.
    *
    * @param args command line arguments
    * @throws IOException if there are any server networking errors
    */
   public static void main(String[] args) throws IOException {
+    if (args.length > 0) {
+      MapSize mapSize = MapSize.STANDARD;
+      for (MapSize size : MapSize.values()) {
+        if (args.length > 1 && size.name.equalsIgnoreCase(args[1])) {
+          mapSize = size;
+        }
+      }
+      new CivilisationServer(new File(args[0]), mapSize, 1234);
+      return;
+    }
     new CivilisationServer(
       "saves" + File.separator + "game.yml",
       "Game",
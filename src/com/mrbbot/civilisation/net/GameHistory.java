@@ -0,0 +1,171 @@
+package com.mrbbot.civilisation.net;
+
+import com.mrbbot.civilisation.net.packet.Packet;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Bounded history of the changes the server has applied to the game. Each
+ * change is given the next sequence number, so a client rejoining the game can
+ * be sent just the changes it missed rather than the whole game state. Only
+ * the most recent changes are kept, clients that have missed more than that
+ * have to be sent the full state instead. Only accessed on the game loop.
+ */
+public class GameHistory {
+  /**
+   * Default number of changes to keep
+   */
+  public static final int DEFAULT_CAPACITY = 1024;
+
+  /**
+   * Change applied to the game along with the player that made it
+   */
+  private static class Entry {
+    /**
+     * Id of the player that sent the change, or null if it was made by the
+     * server
+     */
+    final String senderId;
+    /**
+     * Packet describing the change, with its sequence number set
+     */
+    final Packet packet;
+
+    /**
+     * Creates a new entry
+     *
+     * @param senderId id of the player that sent the change
+     * @param packet   packet describing the change
+     */
+    Entry(String senderId, Packet packet) {
+      this.senderId = senderId;
+      this.packet = packet;
+    }
+  }
+
+  /**
+   * Random number identifying this history. Sequence numbers from a different
+   * history (e.g. before the server restarted) mean nothing here.
+   */
+  private final long epoch;
+  /**
+   * Maximum number of changes to keep
+   */
+  private final int capacity;
+  /**
+   * Most recent changes, oldest first
+   */
+  private final ArrayDeque<Entry> entries;
+  /**
+   * Number of updates applied from each player since they were last sent the
+   * full game state. Maps players' ids to update counts.
+   */
+  private final Map<String, Integer> updateCounts;
+  /**
+   * Sequence number of the most recent change
+   */
+  private int sequence;
+
+  /**
+   * Creates a new empty history
+   *
+   * @param capacity maximum number of changes to keep
+   */
+  public GameHistory(int capacity) {
+    Random random = new Random();
+    long epoch;
+    // 0 is used by clients to mean they don't have an epoch
+    do {
+      epoch = random.nextLong();
+    } while (epoch == 0);
+    this.epoch = epoch;
+    this.capacity = capacity;
+    entries = new ArrayDeque<>(capacity);
+    updateCounts = new HashMap<>();
+  }
+
+  /**
+   * Gets the random number identifying this history
+   *
+   * @return epoch of this history
+   */
+  public long getEpoch() {
+    return epoch;
+  }
+
+  /**
+   * Gets the sequence number of the most recent change
+   *
+   * @return last sequence number
+   */
+  public int getSequence() {
+    return sequence;
+  }
+
+  /**
+   * Records a change that has been applied to the game, setting its sequence
+   * number
+   *
+   * @param packet   packet describing the change
+   * @param senderId id of the player that sent the change, or null if it was
+   *                 made by the server
+   */
+  public void append(Packet packet, String senderId) {
+    packet.sequence = ++sequence;
+    if (entries.size() == capacity) entries.removeFirst();
+    entries.addLast(new Entry(senderId, packet));
+    if (senderId != null) updateCounts.merge(senderId, 1, Integer::sum);
+  }
+
+  /**
+   * Gets the number of updates applied from a player since they were last sent
+   * the full game state
+   *
+   * @param playerId id of the player
+   * @return number of updates from the player
+   */
+  public int getUpdateCount(String playerId) {
+    return updateCounts.getOrDefault(playerId, 0);
+  }
+
+  /**
+   * Resets a player's update count. Called when they're sent the full game
+   * state, as the client resets its count too.
+   *
+   * @param playerId id of the player
+   */
+  public void resetUpdateCount(String playerId) {
+    updateCounts.remove(playerId);
+  }
+
+  /**
+   * Gets the changes a player missed after the last one they received. Changes
+   * made by the player themselves are skipped, as they were applied on the
+   * client before being sent.
+   *
+   * @param playerId     id of the player
+   * @param lastSequence sequence number of the last change the player
+   *                     received
+   * @return list of changes the player missed, or null if some of them are no
+   * longer in the history
+   */
+  public ArrayList<Packet> missedBy(String playerId, int lastSequence) {
+    if (lastSequence > sequence) return null;
+    // Check the change after the last one received is still available
+    int oldest = sequence - entries.size() + 1;
+    if (lastSequence + 1 < oldest) return null;
+
+    ArrayList<Packet> missed = new ArrayList<>();
+    for (Entry entry : entries) {
+      if (entry.packet.sequence > lastSequence
+        && !playerId.equals(entry.senderId)) {
+        missed.add(entry.packet);
+      }
+    }
+    return missed;
+  }
+}
@@ -0,0 +1,260 @@
+package com.mrbbot.civilisation.net;
+
+import com.mrbbot.civilisation.net.packet.Packet;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.function.Consumer;
+import java.util.function.IntPredicate;
+
+/**
+ * Append-only journal of the packets applied to the server's game. Between
+ * full snapshots of the game, each change is appended to the journal as a
+ * small sequential write, so the game can be recovered up to the last action
+ * by loading the latest snapshot and replaying the journal on top of it.
+ * Appended packets survive the server process crashing, but are only forced
+ * to disk, surviving the machine crashing too, when {@link #sync()} is
+ * called at the end of each turn.
+ * <p>
+ * The journal is split into numbered segment files next to the game save. A
+ * new segment is started whenever a snapshot is taken, with the snapshot
+ * recording the segment to replay from. Older segments are deleted once no
+ * kept generation of the save (see
+ * {@link com.mrbbot.civilisation.save.SaveFiles}) needs them.
+ */
+public class GameJournal {
+  /**
+   * Key in a game snapshot storing the first journal segment to replay on
+   * top of it
+   */
+  public static final String SNAPSHOT_SEGMENT_KEY = "journalSegment";
+  /**
+   * Key in a game snapshot storing the segments the older kept saves replay
+   * from, oldest first
+   */
+  public static final String RETAINED_SEGMENTS_KEY = "retainedJournalSegments";
+  /**
+   * Text inserted between the game file's name and the segment number in
+   * segment file names
+   */
+  private static final String SEGMENT_SUFFIX = ".journal.";
+
+  /**
+   * Game save file this journal belongs to
+   */
+  private final File gameFile;
+  /**
+   * Codec for converting packets to bytes
+   */
+  private final PacketCodec codec;
+  /**
+   * Number of the segment currently being appended to
+   */
+  private int segment;
+  /**
+   * File being written to for the current segment, or null if it hasn't been
+   * opened yet
+   */
+  private FileOutputStream fileStream;
+  /**
+   * Output for the current segment, or null if it hasn't been opened yet
+   */
+  private DataOutputStream out;
+
+  /**
+   * Creates a new journal for a game save. No segment is opened until
+   * {@link #start(int)} is called.
+   *
+   * @param gameFile game save file the journal belongs to
+   */
+  public GameJournal(File gameFile) {
+    this.gameFile = gameFile;
+    codec = new PacketCodec();
+  }
+
+  /**
+   * Gets the file storing a segment of this journal
+   *
+   * @param segment number of the segment
+   * @return file for the segment
+   */
+  private File segmentFile(int segment) {
+    return new File(gameFile.getPath() + SEGMENT_SUFFIX + segment);
+  }
+
+  /**
+   * Starts appending to a new segment
+   *
+   * @param segment number of the segment to start
+   * @throws IOException if the segment file cannot be opened
+   */
+  public void start(int segment) throws IOException {
+    // Open the new segment first so the current one is still usable if this
+    // fails
+    FileOutputStream newFile = new FileOutputStream(segmentFile(segment), true);
+    if (out != null) out.close();
+    this.segment = segment;
+    fileStream = newFile;
+    out = new DataOutputStream(new BufferedOutputStream(newFile));
+  }
+
+  /**
+   * Finishes the current segment and starts the next one. Called when a
+   * snapshot is taken, so every packet applied after the snapshot is in the
+   * new segment.
+   *
+   * @return number of the new segment
+   * @throws IOException if the new segment file cannot be opened
+   */
+  public int rotate() throws IOException {
+    start(segment + 1);
+    return segment;
+  }
+
+  /**
+   * Appends a packet that has just been applied to the game. The packet is
+   * written straight through to the operating system, so it'll survive the
+   * server process crashing, but not necessarily the machine crashing until
+   * {@link #sync()} is called.
+   *
+   * @param packet packet to append
+   * @throws IOException if the packet cannot be written
+   */
+  public void append(Packet packet) throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    codec.encode(packet, new DataOutputStream(bytes));
+    // Write the packet length-prefixed so a record cut short by a crash can
+    // be detected
+    out.writeInt(bytes.size());
+    bytes.writeTo(out);
+    out.flush();
+  }
+
+  /**
+   * Forces every packet appended to the current segment onto the disk, so
+   * they'll survive the machine crashing or losing power. Slower than
+   * appending, so called once per turn rather than after every packet.
+   *
+   * @throws IOException if the segment cannot be synced
+   */
+  public void sync() throws IOException {
+    out.flush();
+    fileStream.getChannel().force(false);
+  }
+
+  /**
+   * Replays every packet in the journal, starting from the specified segment
+   * and continuing through each following segment that exists. A record cut
+   * short by a crash, including one whose length was only partly written, is
+   * ignored along with the rest of its segment.
+   *
+   * @param firstSegment first segment to replay, usually read from the
+   *                     snapshot the packets are applied to
+   * @param handler      function to apply each packet
+   * @return number of the last segment that was replayed, or one less than
+   * the first segment if none existed
+   * @throws IOException if a segment cannot be read or is corrupt
+   */
+  public int replay(int firstSegment, Consumer<Packet> handler)
+    throws IOException {
+    int current = firstSegment;
+    File file;
+    while ((file = segmentFile(current)).exists()) {
+      try (DataInputStream in = new DataInputStream(new BufferedInputStream(
+        new FileInputStream(file)
+      ))) {
+        // Number of bytes in the segment after the current record's length
+        long remaining = file.length();
+        while (true) {
+          byte[] record;
+          try {
+            int length = in.readInt();
+            remaining -= 4;
+            // A length that doesn't fit in the rest of the segment was torn
+            // by a crash, so don't trust it to allocate the record
+            if (length < 0 || length > remaining) break;
+            record = new byte[length];
+            in.readFully(record);
+            remaining -= length;
+          } catch (EOFException e) {
+            // Reached the end of the segment, possibly part way through a
+            // record that was being written when the server crashed
+            break;
+          }
+          handler.accept(codec.decode(new DataInputStream(
+            new ByteArrayInputStream(record)
+          )));
+        }
+      }
+      current++;
+    }
+    return current - 1;
+  }
+
+  /**
+   * Deletes every segment before the specified one. Called once a snapshot
+   * that includes their packets has been written.
+   *
+   * @param segment first segment to keep
+   */
+  public void deleteBefore(int segment) {
+    delete((number) -> number < segment);
+  }
+
+  /**
+   * Deletes every segment after the specified one. Called after replaying an
+   * older save, so segments left from newer saves that couldn't be loaded
+   * aren't replayed after the changes made from now on.
+   *
+   * @param segment last segment to keep
+   */
+  public void deleteAfter(int segment) {
+    delete((number) -> number > segment);
+  }
+
+  /**
+   * Deletes the segments whose numbers match a condition
+   *
+   * @param condition function returning whether to delete a segment number
+   */
+  private void delete(IntPredicate condition) {
+    File directory = gameFile.getAbsoluteFile().getParentFile();
+    String prefix = gameFile.getName() + SEGMENT_SUFFIX;
+    File[] files = directory.listFiles(
+      (dir, name) -> name.startsWith(prefix)
+    );
+    if (files == null) return;
+    for (File file : files) {
+      try {
+        int number = Integer.parseInt(
+          file.getName().substring(prefix.length())
+        );
+        if (condition.test(number) && !file.delete()) {
+          System.err.println("Unable to delete journal segment " + file);
+        }
+      } catch (NumberFormatException ignored) {
+        // Not a segment, so leave it alone
+      }
+    }
+  }
+
+  /**
+   * Closes the current segment
+   *
+   * @throws IOException if the segment cannot be closed
+   */
+  public void close() throws IOException {
+    if (out != null) out.close();
+    fileStream = null;
+    out = null;
+  }
+}
@@ -0,0 +1,255 @@
+package com.mrbbot.civilisation.net;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Single thread that owns the server's game state. Commands (usually handling
+ * a packet) are posted to a queue from the network threads and run here one
+ * at a time, in the order they were received, so the game never has to be
+ * synchronised. Commands are drained from the queue in batches, so bursts of
+ * packets don't wake the thread up for each one.
+ */
+public class GameLoop implements Runnable {
+  /**
+   * Maximum number of commands run in a single batch
+   */
+  private static final int MAX_BATCH_SIZE = 256;
+
+  /**
+   * Command waiting to be run along with when it was submitted
+   */
+  private static class Command {
+    /**
+     * Function to run on the game loop
+     */
+    final Runnable task;
+    /**
+     * Value of {@link System#nanoTime()} when the command was submitted
+     */
+    final long submittedAt;
+
+    /**
+     * Creates a new command
+     *
+     * @param task function to run on the game loop
+     */
+    Command(Runnable task) {
+      this.task = task;
+      this.submittedAt = System.nanoTime();
+    }
+  }
+
+  /**
+   * Commands waiting to be run
+   */
+  private final BlockingQueue<Command> commands;
+  /**
+   * Thread running the game loop
+   */
+  private final Thread thread;
+  /**
+   * Whether the game loop is still running
+   */
+  private volatile boolean open;
+
+  /**
+   * Total number of commands that have been run
+   */
+  private volatile long commandCount;
+  /**
+   * Total number of batches that have been run
+   */
+  private volatile long batchCount;
+  /**
+   * Total time between commands being submitted and finishing, in
+   * nanoseconds
+   */
+  private volatile long totalLatency;
+  /**
+   * Longest time between a command being submitted and finishing, in
+   * nanoseconds
+   */
+  private volatile long maxLatency;
+  /**
+   * Total time spent running commands, excluding time waiting in the queue,
+   * in nanoseconds
+   */
+  private volatile long totalProcessingTime;
+
+  /**
+   * Creates and starts a new game loop
+   *
+   * @param name name of the thread running the game loop
+   */
+  public GameLoop(String name) {
+    commands = new LinkedBlockingQueue<>();
+    open = true;
+
+    // Create a new thread that runs commands as they're submitted
+    thread = new Thread(this, name);
+    thread.start();
+  }
+
+  /**
+   * Checks whether the calling thread is this game loop's thread
+   *
+   * @return whether the caller is running on the game loop
+   */
+  public boolean inGameLoop() {
+    return Thread.currentThread() == thread;
+  }
+
+  /**
+   * Queues a command to be run on the game loop after every command that has
+   * already been submitted
+   *
+   * @param task function to run on the game loop
+   */
+  public void submit(Runnable task) {
+    if (open) commands.add(new Command(task));
+  }
+
+  /**
+   * Queues a command to be run after every command that has already been
+   * submitted, even if the loop is closing
+   *
+   * @param task function to run on the game loop
+   */
+  private void submitAlways(Runnable task) {
+    commands.add(new Command(task));
+  }
+
+  /**
+   * Runner for the game loop thread.
+   */
+  @Override
+  public void run() {
+    List<Command> batch = new ArrayList<>();
+    // Keep going until closed, then until every remaining command has run
+    while (open || !commands.isEmpty()) {
+      try {
+        // Wait for a command, then take everything else that's waiting too
+        Command first = commands.poll(1, TimeUnit.SECONDS);
+        if (first == null) continue;
+        batch.add(first);
+      } catch (InterruptedException e) {
+        break;
+      }
+      commands.drainTo(batch, MAX_BATCH_SIZE - 1);
+
+      for (Command command : batch) {
+        long start = System.nanoTime();
+        try {
+          command.task.run();
+        } catch (RuntimeException e) {
+          // Don't let one bad command stop the game
+          e.printStackTrace();
+        }
+        long end = System.nanoTime();
+        recordCommand(end - command.submittedAt, end - start);
+      }
+      batch.clear();
+      batchCount++;
+    }
+  }
+
+  /**
+   * Updates the latency statistics after a command has been run. Only called
+   * on the game loop's thread.
+   *
+   * @param latency        time between the command being submitted and
+   *                       finishing
+   * @param processingTime time spent running the command
+   */
+  private void recordCommand(long latency, long processingTime) {
+    commandCount++;
+    totalLatency += latency;
+    totalProcessingTime += processingTime;
+    if (latency > maxLatency) maxLatency = latency;
+  }
+
+  /**
+   * Gets the number of commands waiting to be run
+   *
+   * @return current depth of the command queue
+   */
+  public int getQueuedCommands() {
+    return commands.size();
+  }
+
+  /**
+   * Gets the total number of commands that have been run
+   *
+   * @return number of commands run
+   */
+  public long getCommandCount() {
+    return commandCount;
+  }
+
+  /**
+   * Gets the average number of commands run in each batch
+   *
+   * @return average batch size
+   */
+  public double getAverageBatchSize() {
+    long batches = batchCount;
+    return batches == 0 ? 0 : (double) commandCount / batches;
+  }
+
+  /**
+   * Gets the average time between commands being submitted and finishing,
+   * including time spent waiting in the queue
+   *
+   * @return average command latency in nanoseconds
+   */
+  public long getAverageLatency() {
+    long count = commandCount;
+    return count == 0 ? 0 : totalLatency / count;
+  }
+
+  /**
+   * Gets the longest time between a command being submitted and finishing
+   *
+   * @return maximum command latency in nanoseconds
+   */
+  public long getMaxLatency() {
+    return maxLatency;
+  }
+
+  /**
+   * Gets the average time spent actually running each command
+   *
+   * @return average processing time in nanoseconds
+   */
+  public long getAverageProcessingTime() {
+    long count = commandCount;
+    return count == 0 ? 0 : totalProcessingTime / count;
+  }
+
+  /**
+   * Stops the game loop after running any commands still waiting in the queue.
+   * No new commands are accepted. Unless called on the game loop itself, this
+   * waits for the loop to finish.
+   *
+   * @param finalTask function to run once every queued command has been run,
+   *                  may be null
+   */
+  public void close(Runnable finalTask) {
+    if (!open) return;
+    if (finalTask != null) submitAlways(finalTask);
+    open = false;
+    // Wake the loop up in case it's waiting for a command
+    submitAlways(() -> {
+    });
+    if (inGameLoop()) return;
+    try {
+      thread.join();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+}
@@ -0,0 +1,685 @@
+package com.mrbbot.civilisation.net;
+
+import com.mrbbot.civilisation.logic.map.Game;
+import com.mrbbot.civilisation.logic.map.MapSize;
+import com.mrbbot.civilisation.logic.map.tile.QuantizedTerrain;
+import com.mrbbot.civilisation.logic.map.tile.TerrainBlock;
+import com.mrbbot.civilisation.logic.map.tile.Tile;
+import com.mrbbot.civilisation.net.packet.*;
+import com.mrbbot.civilisation.save.SaveFiles;
+import com.mrbbot.civilisation.save.SaveFormat;
+import com.mrbbot.civilisation.save.SavePatcher;
+import com.mrbbot.generic.net.Connection;
+import com.mrbbot.generic.net.EncodedData;
+import com.mrbbot.generic.net.Handler;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * One game hosted by a {@link CivilisationServer}, played by the connections
+ * in a room. Packets are decoded on the network threads, then handled in
+ * order on the room's own {@link GameLoop} thread that owns the game state,
+ * so different rooms are handled in parallel. Every change to the game is
+ * appended to a {@link GameJournal}, with full saves only written every few
+ * turns. The journal is kept back to the oldest save still kept (see
+ * {@link SaveFiles}), so if the newest saves are damaged the game can still
+ * be recovered up to the last action from an older one. The state at the
+ * start of each recent turn is also kept in memory (see
+ * {@link TurnSnapshots}), so the game can be rewound.
+ */
+public class GameRoom implements Handler<Packet> {
+  /**
+   * Number of turns between saves of the game. Changes made in between are
+   * recovered from the journal. Most saves are patches (see
+   * {@link SavePatcher}), and the journal is kept back to the newest full
+   * save, so up to {@link SavePatcher#MAX_PATCH_RECORDS} + 1 intervals of
+   * journal are kept for each kept save.
+   */
+  private static final int SNAPSHOT_INTERVAL_TURNS = 10;
+
+  /**
+   * Name of the room clients join to play this game
+   */
+  private final String name;
+  /**
+   * File for the current game save the room is using
+   */
+  private final File gameFile;
+  /**
+   * Format of the game save file, chosen by its extension
+   */
+  private final SaveFormat saveFormat;
+  /**
+   * The server instance of the game. Contains all state details but no render
+   * references.
+   */
+  private Game game;
+  /**
+   * Thread all packets are handled on. The game must only be accessed from
+   * this thread once the room has started.
+   */
+  private GameLoop gameLoop;
+  /**
+   * Saver writing the game to the game file in the background
+   */
+  private GameSaver saver;
+  /**
+   * Journal every change to the game is appended to
+   */
+  private final GameJournal journal;
+  /**
+   * Journal segments the kept full saves replay from, oldest first. Patches
+   * (see {@link SavePatcher}) don't change these, so the newest full save can
+   * still be recovered up to the last action if its patch is damaged.
+   * Guarded by itself, as it's updated on the saver thread.
+   */
+  private final ArrayDeque<Integer> savedSegments = new ArrayDeque<>();
+  /**
+   * Codec for converting packets to bytes, shared by every connection
+   */
+  private final PacketCodec codec;
+  /**
+   * Full game state encoded for sending to joining players, or null if the
+   * game has changed since it was last encoded. Only accessed on the game
+   * loop.
+   */
+  private EncodedData<Packet> cachedGame;
+  /**
+   * Recent changes to the game, so rejoining players can be sent just the
+   * changes they missed. Only accessed on the game loop.
+   */
+  private GameHistory history;
+  /**
+   * Ids of players that have been sent the full game state but haven't
+   * acknowledged loading it yet (see {@link PacketGameAck}). Their updates are
+   * ignored until they have, as they were made to their old copy of the game.
+   * Only accessed on the game loop.
+   */
+  private final Set<String> awaitingAck = new HashSet<>();
+  /**
+   * Decides which players are sent each update straight away. Only accessed
+   * on the game loop, apart from its settings. Replaced when the game is
+   * rewound.
+   */
+  private volatile InterestManager interest;
+  /**
+   * Snapshots of the game at the start of recent turns, so the game can be
+   * rewound. Only captured on the game loop.
+   */
+  private TurnSnapshots turns;
+  /**
+   * Number of turns that have been played since the last full save
+   */
+  private int turnsSinceSnapshot;
+
+  /**
+   * Creates a room with a completely new game
+   *
+   * @param name     name of the room
+   * @param gameFile file to save the game to
+   * @param gameName name of the new game
+   * @param mapSize  map size of the new game
+   * @param codec    codec shared by every connection to the server
+   * @throws IOException if the game's journal couldn't be opened
+   */
+  GameRoom(
+    String name,
+    File gameFile,
+    String gameName,
+    MapSize mapSize,
+    PacketCodec codec
+  ) throws IOException {
+    this.name = name;
+    this.codec = codec;
+    // Store the reference to the game file
+    this.gameFile = gameFile;
+    this.saveFormat = SaveFormat.forFile(gameFile);
+    this.journal = new GameJournal(gameFile);
+    // Remove any saves and journal left over from a previous game with the
+    // same name
+    SaveFiles.delete(gameFile);
+    journal.deleteBefore(Integer.MAX_VALUE);
+    // Create the new game
+    game = new Game(gameName, mapSize);
+    // Save and then immediately load the game so it's in the same state as if
+    // it were just loaded (see the 2nd constructor)
+    save();
+    start(load());
+  }
+
+  /**
+   * Creates a room with a game loaded from an existing game save
+   *
+   * @param name     name of the room
+   * @param gameFile file the game was saved to
+   * @param codec    codec shared by every connection to the server
+   * @throws IOException if the game's journal couldn't be opened
+   */
+  GameRoom(String name, File gameFile, PacketCodec codec) throws IOException {
+    this.name = name;
+    this.codec = codec;
+    // Store the reference to the game file
+    this.gameFile = gameFile;
+    // Check the save exists
+    if (!SaveFiles.exists(this.gameFile))
+      throw new IllegalArgumentException("game file doesn't exist");
+    this.saveFormat = SaveFormat.forFile(gameFile);
+    this.journal = new GameJournal(gameFile);
+    // Load the game, then replay any changes made since it was saved
+    int firstSegment = load();
+    int lastSegment = journal.replay(firstSegment, this::apply);
+    // If an older save was loaded, segments after a gap belong to newer saves
+    // and must not be replayed after the changes made from now on
+    journal.deleteAfter(lastSegment);
+    start(lastSegment + 1);
+  }
+
+  /**
+   * Starts the game loop and saver once the game has been loaded
+   *
+   * @param journalSegment journal segment to start appending changes to
+   * @throws IOException if the journal couldn't be started
+   */
+  private void start(int journalSegment) throws IOException {
+    journal.start(journalSegment);
+    history = new GameHistory(GameHistory.DEFAULT_CAPACITY);
+    interest = new InterestManager(game, codec, history.getEpoch());
+    turns = new TurnSnapshots(TurnSnapshots.DEFAULT_CAPACITY);
+    turns.capture(game);
+    // Start the game loop and a saver that saves the game in the background
+    // so it can be easily restored
+    gameLoop = new GameLoop(name.isEmpty() ? "Game" : "Game-" + name);
+    saver = new GameSaver(
+      gameFile,
+      saveFormat,
+      this::snapshot,
+      this::saved
+    );
+  }
+
+  /**
+   * Deletes the journal segments no kept save needs, once a save has been
+   * written. Called on the saver thread.
+   *
+   * @param saved snapshot of the game that was written
+   * @param full  whether the snapshot was saved in full, rather than patched
+   *              onto the newest save
+   */
+  private void saved(Map<String, Object> saved, boolean full) {
+    // The journal is still needed back to the newest full save
+    if (!full) return;
+    int oldestSegment;
+    synchronized (savedSegments) {
+      savedSegments.addLast(
+        (Integer) saved.get(GameJournal.SNAPSHOT_SEGMENT_KEY)
+      );
+      // Saves older than the number kept have been deleted
+      while (savedSegments.size() > saver.getGenerations()) {
+        savedSegments.removeFirst();
+      }
+      oldestSegment = savedSegments.getFirst();
+    }
+    journal.deleteBefore(oldestSegment);
+  }
+
+  /**
+   * Stops the room once its connections have been closed. Every packet that
+   * has already been received is handled and the final game state is saved
+   * before this returns.
+   *
+   * @throws IOException if the journal couldn't be closed
+   */
+  void close() throws IOException {
+    gameLoop.close(saver::flush);
+    saver.close();
+    journal.close();
+  }
+
+  /**
+   * Gets the name of the room clients join to play this game
+   *
+   * @return the room's name
+   */
+  public String getName() {
+    return name;
+  }
+
+  /**
+   * Gets the interest manager deciding which players are sent each update
+   * straight away, for changing how far players can see
+   *
+   * @return the room's interest manager
+   */
+  public InterestManager getInterestManager() {
+    return interest;
+  }
+
+  /**
+   * Sets the number of saves to keep. Changes since the oldest kept save are
+   * kept in the journal, so more saves use more disk space.
+   *
+   * @param generations number of saves to keep including the newest, at least
+   *                    1
+   */
+  public void setSaveGenerations(int generations) {
+    saver.setGenerations(generations);
+  }
+
+  /**
+   * Sets the minimum time between saves of the game. Changes made in between
+   * are still recovered from the journal if the server stops unexpectedly.
+   *
+   * @param intervalMillis minimum time between saves in milliseconds
+   */
+  public void setSaveInterval(long intervalMillis) {
+    saver.setInterval(intervalMillis);
+  }
+
+  /**
+   * Sets the number of turns the game can be rewound by. Snapshots are kept
+   * in memory, but each only stores what changed during its turn.
+   *
+   * @param capacity number of turns to keep snapshots of, at least 1
+   */
+  public void setRewindTurns(int capacity) {
+    turns.setCapacity(capacity);
+  }
+
+  /**
+   * Gets the turns the game can be rewound to
+   *
+   * @return turn numbers, oldest first
+   */
+  public List<Integer> getRewindableTurns() {
+    return turns.getTurns();
+  }
+
+  /**
+   * Rewinds the game to its state at the start of an earlier turn. The
+   * restored state is journaled, so the rewind survives the server
+   * restarting, and every connected player is sent the restored game.
+   *
+   * @param turn number of the turn to rewind to (see
+   *             {@link #getRewindableTurns()})
+   * @return future completed on the game loop with whether the game was
+   * rewound, false if there isn't a snapshot of the turn
+   */
+  public CompletableFuture<Boolean> rewind(int turn) {
+    CompletableFuture<Boolean> result = new CompletableFuture<>();
+    gameLoop.submit(() -> {
+      Map<String, Object> state = turns.get(turn);
+      if (state == null) {
+        result.complete(false);
+        return;
+      }
+      PacketGame packet = new PacketGame(state, 0, 0);
+      apply(packet);
+      record(packet);
+
+      // Players' histories and deferred updates are of the old game, so
+      // start again with every player being sent the restored game
+      Collection<Connection<Packet>> connections =
+        interest.getConnections();
+      int sightRadius = interest.getSightRadius();
+      history = new GameHistory(GameHistory.DEFAULT_CAPACITY);
+      interest = new InterestManager(game, codec, history.getEpoch());
+      interest.setSightRadius(sightRadius);
+      cachedGame = null;
+      for (Connection<Packet> connection : connections) {
+        sendGameState(connection, new PacketInit());
+        interest.join(connection);
+      }
+      // Save the restored game so it isn't rebuilt from the journal
+      saver.flush();
+      result.complete(true);
+    });
+    return result;
+  }
+
+  /**
+   * Gets the game loop packets are handled on, for monitoring how long
+   * packets take to be handled
+   *
+   * @return the room's game loop
+   */
+  public GameLoop getGameLoop() {
+    return gameLoop;
+  }
+
+  /**
+   * Saves the game state to the game file. Only used before the game loop has
+   * started, afterwards saves are done in the background by {@link #saver}.
+   */
+  private void save() {
+    try {
+      saveFormat.save(
+        game.toMap(saveFormat.getTerrainPrecision()),
+        gameFile
+      );
+    } catch (IOException e) {
+      e.printStackTrace();
+    }
+  }
+
+  /**
+   * Takes a snapshot of the game for the saver, starting a new journal segment
+   * so only changes made after the snapshot are replayed on top of it. Called
+   * on the game loop.
+   *
+   * @return snapshot of the game
+   */
+  private Map<String, Object> snapshot() {
+    Map<String, Object> map = game.toMap(saveFormat.getTerrainPrecision());
+    // Record which segments the older saves replay from, so they can still be
+    // recovered after the game is loaded from this save
+    synchronized (savedSegments) {
+      map.put(
+        GameJournal.RETAINED_SEGMENTS_KEY,
+        new ArrayList<>(savedSegments)
+      );
+    }
+    try {
+      map.put(GameJournal.SNAPSHOT_SEGMENT_KEY, journal.rotate());
+    } catch (IOException e) {
+      // Without a new segment the snapshot can't be used, so skip it and
+      // keep appending to the current one
+      throw new UncheckedIOException(e);
+    }
+    turnsSinceSnapshot = 0;
+    return map;
+  }
+
+  /**
+   * Loads and overwrites the game state from the newest intact generation of
+   * the game file. If that isn't the newest generation, it's made the newest
+   * so future saves are kept alongside it.
+   *
+   * @return first journal segment to replay on top of the loaded game
+   */
+  private int load() {
+    for (File file : SaveFiles.loadOrder(saveFormat, gameFile)) {
+      try {
+        Map<String, Object> map = saveFormat.read(file);
+        game = new Game(map);
+        if (!file.equals(gameFile)) {
+          System.err.println("Recovered game from older save " + file);
+          SaveFiles.promote(gameFile, file);
+        }
+        // Saves from before the journal existed don't have a segment
+        Object segment = map.get(GameJournal.SNAPSHOT_SEGMENT_KEY);
+        int firstSegment = segment == null ? 0 : ((Number) segment).intValue();
+        // Older saves may still be kept, so keep their journal segments too.
+        // A patched save's full save is the last of these, and its own
+        // segment isn't a full save's.
+        Object retained = map.get(GameJournal.RETAINED_SEGMENTS_KEY);
+        synchronized (savedSegments) {
+          if (retained != null) {
+            //noinspection unchecked
+            for (Number retainedSegment : (List<Number>) retained) {
+              savedSegments.addLast(retainedSegment.intValue());
+            }
+          }
+          if (!map.containsKey(SavePatcher.PATCHED_KEY)
+            || savedSegments.isEmpty()) {
+            savedSegments.addLast(firstSegment);
+          }
+        }
+        return firstSegment;
+      } catch (IOException | RuntimeException e) {
+        // Try the next oldest save instead
+        e.printStackTrace();
+      }
+    }
+    return 0;
+  }
+
+  /**
+   * Applies a packet to the game. Used both when handling packets from
+   * clients and when replaying the journal, so the game ends up in exactly
+   * the same state either way.
+   *
+   * @param packet packet to apply
+   * @return tiles the packet changed, may be null
+   */
+  private Tile[] apply(Packet packet) {
+    // A full game state was journaled when the game was rewound
+    if (packet instanceof PacketGame) {
+      restore(((PacketGame) packet).map);
+      return null;
+    }
+    Tile[] tilesToUpdate = game.handlePacket(packet);
+    // Check if any units have died and remove them from the game
+    if (tilesToUpdate != null && tilesToUpdate.length != 0) {
+      for (Tile tile : tilesToUpdate) {
+        if (tile.unit != null && tile.unit.isDead()) {
+          game.units.remove(tile.unit);
+          tile.unit = null;
+        }
+      }
+    }
+    return tilesToUpdate;
+  }
+
+  /**
+   * Replaces the game with a previous state of it. The terrain never
+   * changes, so it's taken from the current game.
+   *
+   * @param state map containing the game's state without the terrain (see
+   *              {@link Game#toMapWithoutTerrain()})
+   */
+  private void restore(Map<String, Object> state) {
+    Map<String, Object> map = new HashMap<>(state);
+    map.put("terrain", TerrainBlock.fromGrid(game.hexagonGrid));
+    game = new Game(map);
+  }
+
+  /**
+   * Appends a packet that has been applied to the game to the journal
+   *
+   * @param packet packet to record
+   */
+  private void record(Packet packet) {
+    try {
+      journal.append(packet);
+    } catch (IOException e) {
+      e.printStackTrace();
+    }
+  }
+
+  /**
+   * Forces the journal onto the disk
+   */
+  private void sync() {
+    try {
+      journal.sync();
+    } catch (IOException e) {
+      e.printStackTrace();
+    }
+  }
+
+  /**
+   * Records a change that has been applied to the game in the history and the
+   * journal. Must be called before the change is sent to clients, so they
+   * receive its sequence number.
+   *
+   * @param packet   packet describing the change
+   * @param senderId id of the player that sent the change, or null if it was
+   *                 made by the server
+   */
+  private void record(Packet packet, String senderId) {
+    history.append(packet, senderId);
+    // The cached game state is now out of date
+    cachedGame = null;
+    record(packet);
+  }
+
+  /**
+   * Sends the game state to a player joining the game. If the player is
+   * rejoining and hasn't missed too much, only the changes they missed are
+   * sent. Otherwise, they're sent the full game state.
+   *
+   * @param connection connection to the player
+   * @param init       packet the player sent to request the game state
+   */
+  private void sendGameState(Connection<Packet> connection, PacketInit init) {
+    String id = connection.getId();
+    try {
+      // Only send the missed changes if the client's sequence numbers came
+      // from this server and every update they sent has been received,
+      // otherwise their state may differ from the server's
+      if (init.epoch == history.getEpoch()
+        && init.sentUpdates == history.getUpdateCount(id)) {
+        ArrayList<Packet> missed = history.missedBy(id, init.lastSequence);
+        if (missed != null) {
+          awaitingAck.remove(id);
+          connection.send(new PacketDelta(
+            missed,
+            history.getEpoch(),
+            history.getSequence()
+          ));
+          return;
+        }
+      }
+      // The client resets its update count when it receives the full state,
+      // and anything it sends before then is ignored, so the counts agree
+      history.resetUpdateCount(id);
+      awaitingAck.add(id);
+      // Encode the game state if it's changed since it was last sent, when
+      // lots of players join at once they can all be sent the same bytes
+      if (cachedGame == null) {
+        cachedGame = new EncodedData<>(codec, new PacketGame(
+          game.toMap(QuantizedTerrain.Precision.PRECISE),
+          history.getEpoch(),
+          history.getSequence()
+        ));
+      }
+      connection.send(cachedGame);
+    } catch (IOException e) {
+      e.printStackTrace();
+    }
+  }
+
+  /**
+   * Packet handler for the room, called on the network threads. Queues the
+   * packet to be handled on the game loop.
+   *
+   * @param connection connection object for a client
+   * @param data       packet the client has just sent, may be null if the
+   *                   client has disconnected
+   */
+  @Override
+  public void accept(Connection<Packet> connection, Packet data) {
+    gameLoop.submit(() -> handle(connection, data));
+  }
+
+  /**
+   * Main packet handler for the room, called on the game loop
+   *
+   * @param connection connection object for a client
+   * @param data       packet the client has just sent, may be null if the
+   *                   client has disconnected
+   */
+  private void handle(Connection<Packet> connection, Packet data) {
+    // Alias the connection id
+    String id = connection.getId();
+    if (data == null) {
+      // If the player disconnects, mark them as not ready so the game waits
+      // for them to reconnect
+      game.readyPlayers.put(id, false);
+      interest.leave(connection);
+      return;
+    }
+    // Otherwise depending on the type of packet...
+    if (data instanceof PacketInit) {
+      // Everything below bypasses the interest manager, so make sure nothing
+      // is sent before updates that were deferred
+      interest.flushAll();
+      // Check if this is the first time the player has joined this game
+      boolean shouldCreateStartingPackets = !game.containsPlayerWithId(id);
+
+      // Broadcast the player change to every other client
+      PacketPlayerChange packetPlayerChange = new PacketPlayerChange(id);
+      if (shouldCreateStartingPackets) {
+        // Only record the change if it's a new player, so players rejoining
+        // don't invalidate the cached game state
+        apply(packetPlayerChange);
+        record(packetPlayerChange, null);
+      }
+      // Send the current game state, or the changes the player missed, to
+      // the new player
+      sendGameState(connection, (PacketInit) data);
+      interest.join(connection);
+      connection.broadcastExcluding(packetPlayerChange);
+
+      // Create the starting units (initial settler and warrior) if this is the
+      // first time the player has joined this game.
+      if (shouldCreateStartingPackets) {
+        for (PacketUnitCreate packet : game.createStartingUnits(id)) {
+          record(packet, null);
+          // Broadcast them to every client, not just the new player
+          connection.broadcast(packet);
+        }
+      }
+    } else if (data instanceof PacketGameAck) {
+      // The player has loaded the full game state, so their updates are made
+      // to the same game as the server's again
+      awaitingAck.remove(id);
+    } else if (data instanceof PacketReady) {
+      // Set the players ready state
+      game.readyPlayers.put(id, ((PacketReady) data).ready);
+      // Check if all players have marked themselves as ready
+      if (game.allPlayersReady()) {
+        // Handle the turn and request all clients do the same
+        PacketReady packetReady = new PacketReady(false);
+        apply(packetReady);
+        record(packetReady, null);
+        // Make sure the whole turn survives the machine crashing
+        sync();
+        // Every client must have every update before handling the turn
+        interest.flushAll();
+        connection.broadcast(packetReady);
+        // Keep the state at the start of the new turn so it can be rewound to
+        turns.capture(game);
+        // Save the game every few turns so the journal doesn't have to be
+        // replayed from too far back
+        if (++turnsSinceSnapshot >= SNAPSHOT_INTERVAL_TURNS) saver.flush();
+      }
+    } else if (data instanceof PacketUpdate
+      && !(data instanceof PacketChat)
+      && awaitingAck.contains(id)) {
+      // The sender made this update before loading the game state they were
+      // last sent, so it may not make sense for the server's game. They'll
+      // see it undone when they load the state.
+      return;
+    } else if (data instanceof PacketUnitMove
+      && !game.canMoveUnit((PacketUnitMove) data, id)) {
+      // The sender has already moved the unit in their copy of the game, but
+      // another unit got to the tile first. Ignore the move and send them the
+      // server's game, so their unit goes back to where it really is. Their
+      // updates are ignored until they've loaded it, as they may depend on
+      // the move.
+      sendGameState(connection, new PacketInit());
+      interest.join(connection);
+    } else if (data instanceof PacketUpdate) {
+      // If this was a game state update, update the local state
+      Tile[] tiles = apply(data);
+      // Record the update so the game can be restored, unless it's a chat
+      // message as these aren't part of the game state
+      if (!(data instanceof PacketChat)) record(data, id);
+      // Send the update to all connected clients but the sender, deferring
+      // it for those that can't see where it happened
+      interest.broadcast(connection, data, tiles);
+    }
+  }
+}
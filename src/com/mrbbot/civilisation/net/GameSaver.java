@@ -0,0 +1,230 @@
+package com.mrbbot.civilisation.net;
+
+import com.mrbbot.civilisation.save.SaveFiles;
+import com.mrbbot.civilisation.save.SaveFormat;
+import com.mrbbot.civilisation.save.SavePatcher;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Map;
+import java.util.function.BiConsumer;
+import java.util.function.Supplier;
+
+/**
+ * Write-behind saver for the server's game state. The game loop takes a
+ * snapshot of the game at important points, like every few turns, and the
+ * saver writes it on a separate I/O thread, so handling packets doesn't get
+ * slower as the map gets bigger. Changes in between are recovered from the
+ * journal (see {@link GameJournal}). Bursts of snapshots (e.g. rewinding
+ * several times) are coalesced into at most one save per interval, with only
+ * the newest written, except for the final save when the saver is closed.
+ * Each save replaces the file in one step once it's completely written,
+ * keeping the previous saves as older generations (see {@link SaveFiles}).
+ * Where the format supports it, most saves only append the parts of the game
+ * that changed since the last full save (see {@link SavePatcher}).
+ */
+public class GameSaver implements Runnable {
+  /**
+   * Default minimum time between saves
+   */
+  public static final long DEFAULT_INTERVAL_MILLIS = 5000;
+
+  /**
+   * Patcher writing the game's changes to the game file, only used on the
+   * saver thread
+   */
+  private final SavePatcher patcher;
+  /**
+   * Function returning a snapshot of the game that can be safely written on
+   * another thread. Only called on the game loop.
+   */
+  private final Supplier<Map<String, Object>> snapshotter;
+  /**
+   * Function called on the saver thread after each snapshot has been written
+   * with whether it was saved in full, may be null
+   */
+  private final BiConsumer<Map<String, Object>, Boolean> savedListener;
+  /**
+   * Thread writing snapshots to the file
+   */
+  private final Thread thread;
+  /**
+   * Number of saves to keep, including the newest
+   */
+  private volatile int generations = SaveFiles.DEFAULT_GENERATIONS;
+  /**
+   * Minimum time between saves in milliseconds
+   */
+  private volatile long intervalMillis = DEFAULT_INTERVAL_MILLIS;
+
+  /**
+   * Snapshot waiting to be written, or null if there isn't one. Guarded by
+   * this object, as are the fields below.
+   */
+  private Map<String, Object> pendingSnapshot;
+  /**
+   * Value of {@link System#currentTimeMillis()} when the last save finished
+   */
+  private long lastSaveTime;
+  /**
+   * Whether the saver is still running
+   */
+  private boolean open;
+
+  /**
+   * Creates and starts a new saver
+   *
+   * @param gameFile      file to save the game to
+   * @param saveFormat    format to save the game in
+   * @param snapshotter   function returning a snapshot of the game, the
+   *                      snapshot mustn't share any mutable state with the
+   *                      game
+   * @param savedListener function called after each snapshot has been
+   *                      written with whether it was saved in full (true) or
+   *                      patched onto the newest save (false), may be null
+   */
+  public GameSaver(
+    File gameFile,
+    SaveFormat saveFormat,
+    Supplier<Map<String, Object>> snapshotter,
+    BiConsumer<Map<String, Object>, Boolean> savedListener
+  ) {
+    this.patcher = new SavePatcher(saveFormat, gameFile);
+    this.snapshotter = snapshotter;
+    this.savedListener = savedListener;
+    open = true;
+
+    // Create a new thread that performs all file I/O
+    thread = new Thread(this, "Saver");
+    thread.start();
+  }
+
+  /**
+   * Sets the number of saves to keep. Older saves are deleted the next time
+   * the game is saved.
+   *
+   * @param generations number of saves to keep including the newest, at least
+   *                    1
+   */
+  public void setGenerations(int generations) {
+    if (generations < 1) {
+      throw new IllegalArgumentException("at least one save must be kept");
+    }
+    this.generations = generations;
+  }
+
+  /**
+   * Gets the number of saves to keep
+   *
+   * @return number of saves kept including the newest
+   */
+  public int getGenerations() {
+    return generations;
+  }
+
+  /**
+   * Sets the minimum time between saves. Snapshots taken sooner than this
+   * after the last save wait, and are replaced if a newer one is taken in
+   * the meantime.
+   *
+   * @param intervalMillis minimum time between saves in milliseconds
+   */
+  public void setInterval(long intervalMillis) {
+    if (intervalMillis < 0) {
+      throw new IllegalArgumentException("interval can't be negative");
+    }
+    this.intervalMillis = intervalMillis;
+    synchronized (this) {
+      // A pending snapshot may be able to be written sooner now
+      notifyAll();
+    }
+  }
+
+  /**
+   * Takes a snapshot of the game straight away and queues it to be written
+   * once the interval since the last save has passed. Used at important
+   * points like the end of a turn. Must be called on the game loop.
+   */
+  public void flush() {
+    Map<String, Object> snapshot = snapshotter.get();
+    synchronized (this) {
+      // Any older snapshot that hasn't been written yet is out of date
+      pendingSnapshot = snapshot;
+      notifyAll();
+    }
+  }
+
+  /**
+   * Runner for the saver thread.
+   */
+  @Override
+  public void run() {
+    while (true) {
+      Map<String, Object> snapshot;
+      synchronized (this) {
+        try {
+          // Wait until there's a snapshot to write
+          while (pendingSnapshot == null) {
+            if (!open) return;
+            wait();
+          }
+          // Wait for the rest of the interval, in case a newer snapshot
+          // replaces this one, unless this is the final save
+          while (open) {
+            long remaining =
+              lastSaveTime + intervalMillis - System.currentTimeMillis();
+            if (remaining <= 0) break;
+            wait(remaining);
+          }
+        } catch (InterruptedException e) {
+          return;
+        }
+        snapshot = pendingSnapshot;
+        pendingSnapshot = null;
+      }
+
+      // Write the snapshot without holding the lock, so the game loop can
+      // queue the next one
+      Boolean full = write(snapshot);
+      synchronized (this) {
+        lastSaveTime = System.currentTimeMillis();
+      }
+      if (full != null && savedListener != null) {
+        savedListener.accept(snapshot, full);
+      }
+    }
+  }
+
+  /**
+   * Writes a snapshot to the game file
+   *
+   * @param snapshot snapshot of the game to write
+   * @return whether the snapshot was saved in full, or null if it couldn't be
+   * written
+   */
+  private Boolean write(Map<String, Object> snapshot) {
+    try {
+      return patcher.save(snapshot, generations);
+    } catch (IOException e) {
+      e.printStackTrace();
+      return null;
+    }
+  }
+
+  /**
+   * Stops the saver once any pending snapshot has been written, waiting for
+   * it to finish. Changes that haven't been flushed are not saved, so callers
+   * should {@link #flush()} on the game loop first.
+   */
+  public void close() {
+    synchronized (this) {
+      open = false;
+      notifyAll();
+    }
+    try {
+      thread.join();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+}
@@ -0,0 +1,285 @@
+package com.mrbbot.civilisation.net;
+
+import com.mrbbot.civilisation.logic.map.Game;
+import com.mrbbot.civilisation.logic.map.tile.City;
+import com.mrbbot.civilisation.logic.map.tile.Tile;
+import com.mrbbot.civilisation.logic.unit.Unit;
+import com.mrbbot.civilisation.net.packet.Packet;
+import com.mrbbot.civilisation.net.packet.PacketDelta;
+import com.mrbbot.generic.net.Connection;
+import com.mrbbot.generic.net.EncodedData;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Decides which players need to see each update straight away, based on
+ * where on the map it happened. Updates are sent immediately to players with
+ * a unit or city within the sight radius of a tile the update changed.
+ * Everyone else has the update deferred, and receives their deferred updates
+ * together in a single {@link PacketDelta} later.
+ * <p>
+ * Clients simulate the whole game themselves, so every update must still
+ * reach every client, in the order the server applied them. Deferred updates
+ * are therefore sent before anything else is sent to that player, and
+ * whenever the turn ends, so no client ends a turn with a different game to
+ * the server. Only accessed on the room's game loop.
+ */
+public class InterestManager {
+  /**
+   * Default number of tiles around a player's units and cities they can see
+   */
+  public static final int DEFAULT_SIGHT_RADIUS = 5;
+  /**
+   * Maximum number of updates to defer for a player before sending them
+   * anyway, so a player that never sees anything doesn't build up a long
+   * backlog
+   */
+  private static final int MAX_DEFERRED_PACKETS = 64;
+
+  /**
+   * Game the updates are applied to, for finding players' units and cities
+   */
+  private final Game game;
+  /**
+   * Codec for converting packets to bytes, shared by every connection
+   */
+  private final PacketCodec codec;
+  /**
+   * Epoch of the room's history, sent with deferred updates so clients'
+   * sync state stays valid
+   */
+  private final long epoch;
+  /**
+   * Map mapping player IDs to their current connections
+   */
+  private final Map<String, Connection<Packet>> connections = new HashMap<>();
+  /**
+   * Map mapping player IDs to the updates deferred for them, in the order
+   * they were applied
+   */
+  private final Map<String, ArrayList<Packet>> deferred = new HashMap<>();
+  /**
+   * Number of tiles around a player's units and cities they can see, or a
+   * negative number to send every update to every player straight away
+   */
+  private volatile int sightRadius = DEFAULT_SIGHT_RADIUS;
+  /**
+   * Number of updates sent to players straight away
+   */
+  private volatile long sentCount;
+  /**
+   * Number of updates deferred for players
+   */
+  private volatile long deferredCount;
+
+  /**
+   * Creates a new interest manager for a room
+   *
+   * @param game  game the room's updates are applied to
+   * @param codec codec shared by every connection to the server
+   * @param epoch epoch of the room's history
+   */
+  InterestManager(Game game, PacketCodec codec, long epoch) {
+    this.game = game;
+    this.codec = codec;
+    this.epoch = epoch;
+  }
+
+  /**
+   * Sets how far around their units and cities players can see
+   *
+   * @param sightRadius number of tiles players can see, or a negative number
+   *                    to send every update to every player straight away
+   */
+  public void setSightRadius(int sightRadius) {
+    this.sightRadius = sightRadius;
+  }
+
+  /**
+   * Gets how far around their units and cities players can see
+   *
+   * @return number of tiles players can see, or a negative number if every
+   * update is sent to every player straight away
+   */
+  public int getSightRadius() {
+    return sightRadius;
+  }
+
+  /**
+   * Gets the number of updates that were sent to players straight away
+   *
+   * @return count of updates sent immediately, counted once per player
+   */
+  public long getSentCount() {
+    return sentCount;
+  }
+
+  /**
+   * Gets the number of updates that were deferred because players couldn't
+   * see them
+   *
+   * @return count of updates deferred, counted once per player
+   */
+  public long getDeferredCount() {
+    return deferredCount;
+  }
+
+  /**
+   * Starts sending updates to a player once they've been sent the game state,
+   * replacing any previous connection they had
+   *
+   * @param connection connection to the player
+   */
+  void join(Connection<Packet> connection) {
+    connections.put(connection.getId(), connection);
+    // The game state the player was just sent includes everything deferred
+    deferred.remove(connection.getId());
+  }
+
+  /**
+   * Gets the connections to the players being sent updates
+   *
+   * @return copy of the current connections
+   */
+  Collection<Connection<Packet>> getConnections() {
+    return new ArrayList<>(connections.values());
+  }
+
+  /**
+   * Stops sending updates to a player after they disconnect. Anything
+   * deferred for them is sent when they rejoin as part of the changes they
+   * missed.
+   *
+   * @param connection connection to the player that was closed
+   */
+  void leave(Connection<Packet> connection) {
+    // Ignore old connections that have already been replaced
+    if (connections.remove(connection.getId(), connection)) {
+      deferred.remove(connection.getId());
+    }
+  }
+
+  /**
+   * Sends an update to every player but the sender, or defers it for the
+   * players that can't see it
+   *
+   * @param sender connection to the player that made the update, or null if
+   *               the server made it
+   * @param packet packet describing the update
+   * @param tiles  tiles the update changed, or null if it didn't happen
+   *               anywhere in particular (e.g. researching a tech), in which
+   *               case every player is sent it straight away
+   */
+  void broadcast(Connection<Packet> sender, Packet packet, Tile[] tiles) {
+    String senderId = sender == null ? null : sender.getId();
+    Set<String> observers = observersOf(tiles);
+    // Encoded data, only created if there's a player to send it to
+    EncodedData<Packet> encoded = null;
+    for (Map.Entry<String, Connection<Packet>> entry
+      : connections.entrySet()) {
+      String id = entry.getKey();
+      if (id.equals(senderId)) continue;
+      if (observers == null || observers.contains(id)) {
+        flush(id);
+        try {
+          if (encoded == null) encoded = new EncodedData<>(codec, packet);
+          entry.getValue().send(encoded);
+        } catch (IOException e) {
+          e.printStackTrace();
+        }
+        sentCount++;
+      } else {
+        ArrayList<Packet> packets = deferred.get(id);
+        if (packets == null) {
+          packets = new ArrayList<>();
+          deferred.put(id, packets);
+        }
+        packets.add(packet);
+        deferredCount++;
+        if (packets.size() >= MAX_DEFERRED_PACKETS) flush(id);
+      }
+    }
+  }
+
+  /**
+   * Sends every player the updates deferred for them. Must be called before
+   * anything is sent to players without going through this manager.
+   */
+  void flushAll() {
+    for (String id : connections.keySet()) flush(id);
+  }
+
+  /**
+   * Sends a player the updates deferred for them, if there are any
+   *
+   * @param id ID of the player
+   */
+  private void flush(String id) {
+    ArrayList<Packet> packets = deferred.remove(id);
+    if (packets == null || packets.isEmpty()) return;
+    try {
+      connections.get(id).send(new PacketDelta(
+        packets,
+        epoch,
+        packets.get(packets.size() - 1).sequence
+      ));
+    } catch (IOException e) {
+      e.printStackTrace();
+    }
+  }
+
+  /**
+   * Finds the players that can see any of a set of tiles
+   *
+   * @param tiles tiles to check, may be null
+   * @return IDs of the players that can see the tiles, or null if every
+   * player should be treated as being able to see them
+   */
+  private Set<String> observersOf(Tile[] tiles) {
+    int radius = sightRadius;
+    if (radius < 0 || tiles == null || tiles.length == 0) return null;
+
+    Set<String> observers = new HashSet<>();
+    for (Unit unit : game.units) {
+      String owner = unit.player.id;
+      if (!observers.contains(owner) && canSee(unit.tile, tiles, radius)) {
+        observers.add(owner);
+      }
+    }
+    for (City city : game.cities) {
+      String owner = city.player.id;
+      if (observers.contains(owner)) continue;
+      for (Tile cityTile : city.tiles) {
+        if (canSee(cityTile, tiles, radius)) {
+          observers.add(owner);
+          break;
+        }
+      }
+    }
+    return observers;
+  }
+
+  /**
+   * Checks whether any of a set of tiles is within sight of a tile
+   *
+   * @param from   tile to look from
+   * @param tiles  tiles to look for
+   * @param radius number of tiles that can be seen
+   * @return whether any of the tiles can be seen
+   */
+  private boolean canSee(Tile from, Tile[] tiles, int radius) {
+    for (Tile tile : tiles) {
+      if (game.hexagonGrid.distance(from.x, from.y, tile.x, tile.y)
+        <= radius) {
+        return true;
+      }
+    }
+    return false;
+  }
+}
@@ -0,0 +1,432 @@
+package com.mrbbot.civilisation.net;
+
+import com.mrbbot.civilisation.logic.CityBuildable;
+import com.mrbbot.civilisation.logic.map.tile.Improvement;
+import com.mrbbot.civilisation.logic.map.tile.QuantizedTerrain;
+import com.mrbbot.civilisation.logic.techs.Tech;
+import com.mrbbot.civilisation.logic.unit.UnitType;
+import com.mrbbot.civilisation.net.packet.*;
+import com.mrbbot.generic.net.Codec;
+import com.mrbbot.generic.net.SerializationCodec;
+import javafx.geometry.Point2D;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+
+import static com.mrbbot.generic.net.ValueCodec.*;
+
+/**
+ * Codec for sending {@link Packet}s over the network. Each packet is written
+ * as a single byte tag identifying its type, followed by its fields in a fixed
+ * order. This is far more compact than Java serialization as no class
+ * descriptors are written, and integers only take as many bytes as they need.
+ * Packet types this codec doesn't know about are written with Java
+ * serialization as a fallback. Every packet is prefixed with its sequence
+ * number (see {@link Packet#sequence}).
+ */
+public class PacketCodec implements Codec<Packet> {
+  /**
+   * Tag for packets written with Java serialization
+   */
+  private static final byte TAG_SERIALIZED = 0;
+  /**
+   * Tag for {@link PacketBlastOff}s
+   */
+  private static final byte TAG_BLAST_OFF = 1;
+  /**
+   * Tag for {@link PacketChat}s
+   */
+  private static final byte TAG_CHAT = 2;
+  /**
+   * Tag for {@link PacketCityBuildRequest}s
+   */
+  private static final byte TAG_CITY_BUILD_REQUEST = 3;
+  /**
+   * Tag for {@link PacketCityCreate}s
+   */
+  private static final byte TAG_CITY_CREATE = 4;
+  /**
+   * Tag for {@link PacketCityGrow}s
+   */
+  private static final byte TAG_CITY_GROW = 5;
+  /**
+   * Tag for {@link PacketCityRename}s
+   */
+  private static final byte TAG_CITY_RENAME = 6;
+  /**
+   * Tag for {@link PacketDamage}s
+   */
+  private static final byte TAG_DAMAGE = 7;
+  /**
+   * Tag for {@link PacketGame}s
+   */
+  private static final byte TAG_GAME = 8;
+  /**
+   * Tag for {@link PacketInit}s
+   */
+  private static final byte TAG_INIT = 9;
+  /**
+   * Tag for {@link PacketPlayerChange}s
+   */
+  private static final byte TAG_PLAYER_CHANGE = 10;
+  /**
+   * Tag for {@link PacketPlayerResearchRequest}s
+   */
+  private static final byte TAG_PLAYER_RESEARCH_REQUEST = 11;
+  /**
+   * Tag for {@link PacketPurchaseTileRequest}s
+   */
+  private static final byte TAG_PURCHASE_TILE_REQUEST = 12;
+  /**
+   * Tag for {@link PacketReady}s
+   */
+  private static final byte TAG_READY = 13;
+  /**
+   * Tag for {@link PacketUnitCreate}s
+   */
+  private static final byte TAG_UNIT_CREATE = 14;
+  /**
+   * Tag for {@link PacketUnitDelete}s
+   */
+  private static final byte TAG_UNIT_DELETE = 15;
+  /**
+   * Tag for {@link PacketUnitMove}s
+   */
+  private static final byte TAG_UNIT_MOVE = 16;
+  /**
+   * Tag for {@link PacketUnitUpgrade}s
+   */
+  private static final byte TAG_UNIT_UPGRADE = 17;
+  /**
+   * Tag for {@link PacketWorkerImproveRequest}s
+   */
+  private static final byte TAG_WORKER_IMPROVE_REQUEST = 18;
+  /**
+   * Tag for {@link PacketDelta}s
+   */
+  private static final byte TAG_DELTA = 19;
+  /**
+   * Tag for {@link PacketGameAck}s
+   */
+  private static final byte TAG_GAME_ACK = 20;
+
+  /**
+   * Writes a packet's type tag and fields to the output
+   *
+   * @param packet packet to be written
+   * @param out    output to write the packet to
+   * @throws IOException if the packet cannot be written
+   */
+  @Override
+  public void encode(Packet packet, DataOutput out) throws IOException {
+    writeVarInt(out, packet.sequence);
+    // Checks the type of the packet and writes its fields accordingly
+    if (packet instanceof PacketBlastOff) {
+      out.writeByte(TAG_BLAST_OFF);
+      writeString(out, ((PacketBlastOff) packet).playerId);
+    } else if (packet instanceof PacketChat) {
+      out.writeByte(TAG_CHAT);
+      writeString(out, ((PacketChat) packet).message);
+    } else if (packet instanceof PacketCityBuildRequest) {
+      PacketCityBuildRequest p = (PacketCityBuildRequest) packet;
+      out.writeByte(TAG_CITY_BUILD_REQUEST);
+      writeVarInt(out, p.x);
+      writeVarInt(out, p.y);
+      writeString(out, p.getBuildable().getName());
+      out.writeBoolean(p.withProduction);
+    } else if (packet instanceof PacketCityCreate) {
+      PacketCityCreate p = (PacketCityCreate) packet;
+      out.writeByte(TAG_CITY_CREATE);
+      writeString(out, p.id);
+      writeVarInt(out, p.x);
+      writeVarInt(out, p.y);
+    } else if (packet instanceof PacketCityGrow) {
+      PacketCityGrow p = (PacketCityGrow) packet;
+      out.writeByte(TAG_CITY_GROW);
+      writeString(out, p.id);
+      writeVarInt(out, p.x);
+      writeVarInt(out, p.y);
+      ArrayList<Point2D> grownTo = p.getGrownTo();
+      writeVarInt(out, grownTo.size());
+      for (Point2D point : grownTo) {
+        writeVarInt(out, (int) point.getX());
+        writeVarInt(out, (int) point.getY());
+      }
+    } else if (packet instanceof PacketCityRename) {
+      PacketCityRename p = (PacketCityRename) packet;
+      out.writeByte(TAG_CITY_RENAME);
+      writeVarInt(out, p.x);
+      writeVarInt(out, p.y);
+      writeString(out, p.newName);
+    } else if (packet instanceof PacketDamage) {
+      PacketDamage p = (PacketDamage) packet;
+      out.writeByte(TAG_DAMAGE);
+      writeVarInt(out, p.attackerX);
+      writeVarInt(out, p.attackerY);
+      writeVarInt(out, p.targetX);
+      writeVarInt(out, p.targetY);
+    } else if (packet instanceof PacketGame) {
+      PacketGame p = (PacketGame) packet;
+      out.writeByte(TAG_GAME);
+      out.writeLong(p.epoch);
+      writeVarInt(out, p.lastSequence);
+      // Quantized terrain is written as raw bytes separately from the rest
+      // of the map
+      Object terrain = p.map.get("terrain");
+      if (terrain instanceof QuantizedTerrain) {
+        byte[] terrainBytes = ((QuantizedTerrain) terrain).getBytes();
+        out.writeBoolean(true);
+        writeVarInt(out, terrainBytes.length);
+        out.write(terrainBytes);
+        Map<String, Object> map = new HashMap<>(p.map);
+        map.remove("terrain");
+        writeValue(out, map);
+      } else {
+        out.writeBoolean(false);
+        writeValue(out, p.map);
+      }
+    } else if (packet instanceof PacketGameAck) {
+      out.writeByte(TAG_GAME_ACK);
+    } else if (packet instanceof PacketInit) {
+      PacketInit p = (PacketInit) packet;
+      out.writeByte(TAG_INIT);
+      out.writeLong(p.epoch);
+      writeVarInt(out, p.lastSequence);
+      writeVarInt(out, p.sentUpdates);
+    } else if (packet instanceof PacketDelta) {
+      PacketDelta p = (PacketDelta) packet;
+      out.writeByte(TAG_DELTA);
+      out.writeLong(p.epoch);
+      writeVarInt(out, p.lastSequence);
+      writeVarInt(out, p.packets.size());
+      // Write each change as if it were being sent on its own
+      for (Packet change : p.packets) encode(change, out);
+    } else if (packet instanceof PacketPlayerChange) {
+      out.writeByte(TAG_PLAYER_CHANGE);
+      writeString(out, ((PacketPlayerChange) packet).id);
+    } else if (packet instanceof PacketPlayerResearchRequest) {
+      PacketPlayerResearchRequest p = (PacketPlayerResearchRequest) packet;
+      out.writeByte(TAG_PLAYER_RESEARCH_REQUEST);
+      writeString(out, p.playerId);
+      writeString(out, p.getTech().getName());
+    } else if (packet instanceof PacketPurchaseTileRequest) {
+      PacketPurchaseTileRequest p = (PacketPurchaseTileRequest) packet;
+      out.writeByte(TAG_PURCHASE_TILE_REQUEST);
+      writeVarInt(out, p.cityX);
+      writeVarInt(out, p.cityY);
+      writeVarInt(out, p.purchaseX);
+      writeVarInt(out, p.purchaseY);
+    } else if (packet instanceof PacketReady) {
+      out.writeByte(TAG_READY);
+      out.writeBoolean(((PacketReady) packet).ready);
+    } else if (packet instanceof PacketUnitCreate) {
+      PacketUnitCreate p = (PacketUnitCreate) packet;
+      out.writeByte(TAG_UNIT_CREATE);
+      writeString(out, p.id);
+      writeVarInt(out, p.x);
+      writeVarInt(out, p.y);
+      writeString(out, p.getUnitType().getName());
+    } else if (packet instanceof PacketUnitDelete) {
+      PacketUnitDelete p = (PacketUnitDelete) packet;
+      out.writeByte(TAG_UNIT_DELETE);
+      writeVarInt(out, p.x);
+      writeVarInt(out, p.y);
+    } else if (packet instanceof PacketUnitMove) {
+      PacketUnitMove p = (PacketUnitMove) packet;
+      out.writeByte(TAG_UNIT_MOVE);
+      writeVarInt(out, p.startX);
+      writeVarInt(out, p.startY);
+      writeVarInt(out, p.endX);
+      writeVarInt(out, p.endY);
+      writeVarInt(out, p.usedMovementPoints);
+    } else if (packet instanceof PacketUnitUpgrade) {
+      PacketUnitUpgrade p = (PacketUnitUpgrade) packet;
+      out.writeByte(TAG_UNIT_UPGRADE);
+      writeVarInt(out, p.x);
+      writeVarInt(out, p.y);
+    } else if (packet instanceof PacketWorkerImproveRequest) {
+      PacketWorkerImproveRequest p = (PacketWorkerImproveRequest) packet;
+      out.writeByte(TAG_WORKER_IMPROVE_REQUEST);
+      writeVarInt(out, p.x);
+      writeVarInt(out, p.y);
+      writeString(out, p.getImprovement().name);
+    } else {
+      // Fall back to Java serialization for unknown packet types
+      byte[] bytes = SerializationCodec.serialize(packet);
+      out.writeByte(TAG_SERIALIZED);
+      writeVarInt(out, bytes.length);
+      out.write(bytes);
+    }
+  }
+
+  /**
+   * Reads a packet's sequence number, type tag and fields from the input,
+   * constructing a new packet of the correct type
+   *
+   * @param in input containing a packet written by {@link #encode(Packet,
+   *           DataOutput)}
+   * @return the decoded packet
+   * @throws IOException if the input doesn't contain a valid packet
+   */
+  @Override
+  public Packet decode(DataInput in) throws IOException {
+    return decode(in, false);
+  }
+
+  /**
+   * Decodes a packet, which may be inside a delta
+   *
+   * @param in      input to read from
+   * @param inDelta whether the packet is inside a delta, in which case it
+   *                can't be another delta
+   * @return the decoded packet
+   * @throws IOException if the input doesn't contain a valid packet
+   */
+  private Packet decode(DataInput in, boolean inDelta) throws IOException {
+    int sequence = readVarInt(in);
+    Packet packet = decodeFields(in, inDelta);
+    packet.sequence = sequence;
+    return packet;
+  }
+
+  /**
+   * Reads a packet's type tag and fields from the input, after its sequence
+   * number
+   *
+   * @param in      input positioned at a packet's type tag
+   * @param inDelta whether the packet is inside a delta
+   * @return the decoded packet
+   * @throws IOException if the input doesn't contain a valid packet
+   */
+  private Packet decodeFields(DataInput in, boolean inDelta)
+    throws IOException {
+    byte tag = in.readByte();
+    switch (tag) {
+      case TAG_SERIALIZED: {
+        byte[] bytes = readBytes(in, readVarInt(in));
+        return (Packet) SerializationCodec.deserialize(bytes);
+      }
+      case TAG_BLAST_OFF:
+        return new PacketBlastOff(readString(in));
+      case TAG_CHAT:
+        return new PacketChat(readString(in));
+      case TAG_CITY_BUILD_REQUEST:
+        return new PacketCityBuildRequest(
+          readVarInt(in),
+          readVarInt(in),
+          CityBuildable.fromName(readString(in)),
+          in.readBoolean()
+        );
+      case TAG_CITY_CREATE:
+        return new PacketCityCreate(
+          readString(in),
+          readVarInt(in),
+          readVarInt(in)
+        );
+      case TAG_CITY_GROW: {
+        String id = readString(in);
+        int x = readVarInt(in);
+        int y = readVarInt(in);
+        int grownToSize = readVarInt(in);
+        ArrayList<Point2D> grownTo = new ArrayList<>();
+        for (int i = 0; i < grownToSize; i++) {
+          grownTo.add(new Point2D(readVarInt(in), readVarInt(in)));
+        }
+        return new PacketCityGrow(id, x, y, grownTo);
+      }
+      case TAG_CITY_RENAME:
+        return new PacketCityRename(
+          readVarInt(in),
+          readVarInt(in),
+          readString(in)
+        );
+      case TAG_DAMAGE:
+        return new PacketDamage(
+          readVarInt(in),
+          readVarInt(in),
+          readVarInt(in),
+          readVarInt(in)
+        );
+      case TAG_GAME: {
+        long epoch = in.readLong();
+        int lastSequence = readVarInt(in);
+        QuantizedTerrain terrain = null;
+        if (in.readBoolean()) {
+          byte[] terrainBytes = readBytes(in, readVarInt(in));
+          try {
+            terrain = new QuantizedTerrain(terrainBytes);
+          } catch (IllegalArgumentException e) {
+            throw new IOException("corrupt quantized terrain", e);
+          }
+        }
+        //noinspection unchecked
+        Map<String, Object> map = (Map<String, Object>) readValue(in);
+        if (terrain != null) map.put("terrain", terrain);
+        return new PacketGame(map, epoch, lastSequence);
+      }
+      case TAG_GAME_ACK:
+        return new PacketGameAck();
+      case TAG_INIT:
+        return new PacketInit(in.readLong(), readVarInt(in), readVarInt(in));
+      case TAG_DELTA: {
+        // Deltas are never nested when encoded, and decoding them recursively
+        // could overflow the stack
+        if (inDelta) throw new IOException("delta nested in a delta");
+        long epoch = in.readLong();
+        int lastSequence = readVarInt(in);
+        int size = readVarInt(in);
+        if (size < 0) throw new IOException("invalid delta size " + size);
+        ArrayList<Packet> packets = new ArrayList<>(Math.min(size, 1024));
+        for (int i = 0; i < size; i++) packets.add(decode(in, true));
+        return new PacketDelta(packets, epoch, lastSequence);
+      }
+      case TAG_PLAYER_CHANGE:
+        return new PacketPlayerChange(readString(in));
+      case TAG_PLAYER_RESEARCH_REQUEST:
+        return new PacketPlayerResearchRequest(
+          readString(in),
+          Tech.fromName(readString(in))
+        );
+      case TAG_PURCHASE_TILE_REQUEST:
+        return new PacketPurchaseTileRequest(
+          readVarInt(in),
+          readVarInt(in),
+          readVarInt(in),
+          readVarInt(in)
+        );
+      case TAG_READY:
+        return new PacketReady(in.readBoolean());
+      case TAG_UNIT_CREATE:
+        return new PacketUnitCreate(
+          readString(in),
+          readVarInt(in),
+          readVarInt(in),
+          UnitType.fromName(readString(in))
+        );
+      case TAG_UNIT_DELETE:
+        return new PacketUnitDelete(readVarInt(in), readVarInt(in));
+      case TAG_UNIT_MOVE:
+        return new PacketUnitMove(
+          readVarInt(in),
+          readVarInt(in),
+          readVarInt(in),
+          readVarInt(in),
+          readVarInt(in)
+        );
+      case TAG_UNIT_UPGRADE:
+        return new PacketUnitUpgrade(readVarInt(in), readVarInt(in));
+      case TAG_WORKER_IMPROVE_REQUEST:
+        return new PacketWorkerImproveRequest(
+          readVarInt(in),
+          readVarInt(in),
+          Improvement.fromName(readString(in))
+        );
+      default:
+        throw new IOException("unknown packet tag " + tag);
+    }
+  }
+}
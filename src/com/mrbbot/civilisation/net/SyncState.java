@@ -0,0 +1,72 @@
+package com.mrbbot.civilisation.net;
+
+import com.mrbbot.civilisation.net.packet.*;
+
+/**
+ * Client side record of how up to date the client's copy of the game is. Kept
+ * across connections so a client rejoining the game can tell the server the
+ * last change it received, and be sent only the changes it missed (see
+ * {@link PacketDelta}).
+ */
+public class SyncState {
+  /**
+   * Epoch of the server the game state came from, or 0 if there isn't any
+   * game state yet
+   */
+  private long epoch;
+  /**
+   * Sequence number of the last change received from the server
+   */
+  private int lastSequence;
+  /**
+   * Number of game state updates sent to the server since the full game
+   * state was last received
+   */
+  private int sentUpdates;
+
+  /**
+   * Creates the packet to request the game state with when connecting
+   *
+   * @param hasGame whether the client still has its copy of the game from a
+   *                previous connection, if not the full state is requested
+   * @return packet to send to the server
+   */
+  public synchronized PacketInit createInit(boolean hasGame) {
+    if (!hasGame || epoch == 0) return new PacketInit();
+    return new PacketInit(epoch, lastSequence, sentUpdates);
+  }
+
+  /**
+   * Records a packet being sent to the server
+   *
+   * @param packet packet that was sent
+   */
+  public synchronized void sent(Packet packet) {
+    // Chat messages aren't part of the game state so aren't counted by the
+    // server
+    if (packet instanceof PacketUpdate && !(packet instanceof PacketChat)) {
+      sentUpdates++;
+    }
+  }
+
+  /**
+   * Records a packet being received from the server
+   *
+   * @param packet packet that was received
+   */
+  public synchronized void received(Packet packet) {
+    if (packet instanceof PacketGame) {
+      PacketGame packetGame = (PacketGame) packet;
+      epoch = packetGame.epoch;
+      lastSequence = packetGame.lastSequence;
+      // The server resets its count when it sends the full state
+      sentUpdates = 0;
+    } else if (packet instanceof PacketDelta) {
+      PacketDelta packetDelta = (PacketDelta) packet;
+      epoch = packetDelta.epoch;
+      lastSequence = packetDelta.lastSequence;
+    } else if (packet.sequence > lastSequence) {
+      lastSequence = packet.sequence;
+    }
+  }
+}
@@ -6,11 +6,20 @@ import java.io.Serializable;
  * Base packet class. All packet types extend this. Packets are sent between
  * clients and the server to keep the game state synchronised.
  * <p>
- * Implements serializable so
- * that any subclass can be sent over the network with
- * {@link java.io.ObjectInputStream} and {@link java.io.ObjectOutputStream}
- * both of which allow Java objects to be sent/received. Implementing
- * serializable means that all class fields must themselves be serializable.
+ * Packets are sent over the network with
+ * {@link com.mrbbot.civilisation.net.PacketCodec}, which must be updated when
+ * a new packet type is added. Packets also implement serializable so that any
+ * subclass the codec doesn't know about can still be sent with Java
+ * serialization. Implementing serializable means that all class fields must
+ * themselves be serializable.
  */
 public abstract class Packet implements Serializable {
+  /**
+   * Position of this packet in the server's sequence of changes to the game
+   * state, set by the server when it applies the packet. Clients report the
+   * last sequence number they received when rejoining so they only need to be
+   * sent the changes they missed. 0 if the packet hasn't been sequenced (e.g.
+   * chat messages and packets sent by clients).
+   */
+  public int sequence;
 }
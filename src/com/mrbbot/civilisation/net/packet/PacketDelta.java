@@ -0,0 +1,30 @@
+package com.mrbbot.civilisation.net.packet;
+
+import java.util.ArrayList;
+
+/**
+ * Packet emitted when a player rejoins the game containing only the changes
+ * made since they were last connected, instead of the whole game state. On
+ * receiving this packet, each change should be handled in order as if it had
+ * been received normally.
+ */
+public class PacketDelta extends Packet {
+  /**
+   * Changes the client missed, in the order they were applied on the server
+   */
+  public final ArrayList<Packet> packets;
+  /**
+   * Epoch of the server the changes came from (see {@link PacketGame#epoch})
+   */
+  public final long epoch;
+  /**
+   * Sequence number of the last change on the server when this was sent
+   */
+  public final int lastSequence;
+
+  public PacketDelta(ArrayList<Packet> packets, long epoch, int lastSequence) {
+    this.packets = packets;
+    this.epoch = epoch;
+    this.lastSequence = lastSequence;
+  }
+}
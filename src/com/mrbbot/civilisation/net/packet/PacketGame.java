@@ -7,15 +7,27 @@ import java.util.Map;
 /**
  * Packet emitted a new user joins the game containing the current game state.
  * On receiving this packet, the game should load the state and initialise and
- * display the 3D game render.
+ * display the 3D game render, then reply with a {@link PacketGameAck}.
  */
 public class PacketGame extends Packet {
   /**
    * Map containing the game state. See {@link Game#toMap()}.
    */
   public final Map<String, Object> map;
+  /**
+   * Random number identifying the running server. Sequence numbers are only
+   * comparable between packets with the same epoch, as they restart whenever
+   * the server does.
+   */
+  public final long epoch;
+  /**
+   * Sequence number of the last change included in the game state
+   */
+  public final int lastSequence;
 
-  public PacketGame(Map<String, Object> map) {
+  public PacketGame(Map<String, Object> map, long epoch, int lastSequence) {
     this.map = map;
+    this.epoch = epoch;
+    this.lastSequence = lastSequence;
   }
 }
@@ -0,0 +1,9 @@
+package com.mrbbot.civilisation.net.packet;
+
+/**
+ * Packet emitted by a client once it has loaded the game state from a
+ * {@link PacketGame}. Updates the client sent before this were made to its old
+ * copy of the game, so the server ignores them until it receives this packet.
+ */
+public class PacketGameAck extends Packet {
+}
@@ -3,7 +3,35 @@ package com.mrbbot.civilisation.net.packet;
 /**
  * Packet emitted by the client requesting the game state. On receiving this
  * packet, the server should send a {@link PacketGame} containing the game
- * state.
+ * state, or a {@link PacketDelta} containing the changes the client missed if
+ * it's rejoining and already has most of the state.
  */
 public class PacketInit extends Packet {
+  /**
+   * Epoch of the server the client last synchronised with (see
+   * {@link PacketGame#epoch}), or 0 if the client doesn't have any game state
+   */
+  public final long epoch;
+  /**
+   * Sequence number of the last change the client received from the server
+   */
+  public final int lastSequence;
+  /**
+   * Number of game state updates the client has sent since it was last sent
+   * the full game state. Used by the server to check none of them were lost.
+   */
+  public final int sentUpdates;
+
+  /**
+   * Creates a packet requesting the full game state
+   */
+  public PacketInit() {
+    this(0, 0, 0);
+  }
+
+  public PacketInit(long epoch, int lastSequence, int sentUpdates) {
+    this.epoch = epoch;
+    this.lastSequence = lastSequence;
+    this.sentUpdates = sentUpdates;
+  }
 }
@@ -0,0 +1,348 @@
+package com.mrbbot.civilisation.save;
+
+import com.mrbbot.civilisation.logic.map.tile.QuantizedTerrain;
+import com.mrbbot.civilisation.logic.map.tile.TerrainBlock;
+import com.mrbbot.generic.net.ValueCodec;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Versioned binary save format. Files start with a header, followed by the
+ * map's terrain as a fixed-layout {@link TerrainBlock}, followed by
+ * length-prefixed sections for the rest of the game:
+ * <ul>
+ *   <li>int: magic number identifying the file as a save</li>
+ *   <li>int: format version</li>
+ *   <li>int: length of the terrain block</li>
+ *   <li>terrain block</li>
+ *   <li>sections, each a byte tag, an int length and a value written with
+ *   {@link ValueCodec}</li>
+ * </ul>
+ * When loading, the terrain block is memory-mapped and tiles are created
+ * straight from it. Sections with unknown tags are skipped, so newer versions
+ * can add sections without breaking older readers.
+ * <p>
+ * Since version 2, the terrain is normally stored as {@link QuantizedTerrain}
+ * in its own section instead, which is a fraction of the size. The terrain
+ * block is then empty. Version 1 saves can still be read.
+ * <p>
+ * Saves end with a checksum section containing the CRC-32 checksum of
+ * everything before it (see {@link SaveFiles}). Older readers skip it like
+ * any other unknown section. Saves can be patched (see {@link SavePatcher}),
+ * and patches are applied when they're read.
+ */
+public class BinarySaveFormat implements SaveFormat {
+  /**
+   * Number at the start of every binary save ("CIVS" in ASCII)
+   */
+  private static final int MAGIC = 0x43495653;
+  /**
+   * Current version of the format
+   */
+  private static final int VERSION = 2;
+  /**
+   * Number of bytes in the header before the terrain block
+   */
+  private static final int HEADER_LENGTH = 12;
+  /**
+   * Tag for the section containing every top-level value that isn't stored
+   * in another section (e.g. the game's name and players)
+   */
+  private static final byte SECTION_GAME = 1;
+  /**
+   * Tag for the section containing the list of cities
+   */
+  private static final byte SECTION_CITIES = 2;
+  /**
+   * Tag for the section containing the list of units
+   */
+  private static final byte SECTION_UNITS = 3;
+  /**
+   * Tag for the section containing each player's unlocked and unlocking techs
+   */
+  private static final byte SECTION_TECHS = 4;
+  /**
+   * Tag for the section containing the map's quantized terrain, stored as raw
+   * bytes rather than with {@link ValueCodec}
+   */
+  private static final byte SECTION_TERRAIN = 5;
+  /**
+   * Tag for the section at the end of the save containing the checksum of
+   * everything before it
+   */
+  private static final byte SECTION_CHECKSUM = 6;
+  /**
+   * Number of bytes in the checksum section: a tag, a length and an int
+   */
+  private static final int CHECKSUM_TRAILER_LENGTH = 9;
+
+  /**
+   * Gets the file extension used by binary saves
+   *
+   * @return ".civ"
+   */
+  @Override
+  public String getExtension() {
+    return ".civ";
+  }
+
+  /**
+   * Gets the precision terrain is quantized with in binary saves. Heights in
+   * generated maps are stored exactly.
+   *
+   * @return {@link QuantizedTerrain.Precision#PRECISE}
+   */
+  @Override
+  public QuantizedTerrain.Precision getTerrainPrecision() {
+    return QuantizedTerrain.Precision.PRECISE;
+  }
+
+  /**
+   * Checks whether binary saves can be patched
+   *
+   * @return true, binary saves support patches
+   */
+  @Override
+  public boolean supportsPatches() {
+    return true;
+  }
+
+  /**
+   * Writes a game's map to an output in the binary format
+   *
+   * @param map    map containing details of the game
+   * @param output output to write to
+   * @throws IOException if the output cannot be written to
+   */
+  @Override
+  public void write(Map<String, Object> map, OutputStream output)
+    throws IOException {
+    // Build the terrain block, unless the map was loaded from one or the
+    // terrain has been quantized
+    Object terrain = map.get("terrain");
+    TerrainBlock block = null;
+    if (terrain instanceof TerrainBlock) {
+      block = (TerrainBlock) terrain;
+    } else if (!(terrain instanceof QuantizedTerrain)) {
+      //noinspection unchecked
+      block = TerrainBlock.fromLists(
+        (List<List<Double>>) terrain,
+        (List<List<Integer>>) map.get("trees")
+      );
+    }
+
+    // Split the rest of the map into sections
+    Map<String, Object> game = new HashMap<>(map);
+    game.remove("terrain");
+    game.remove("trees");
+    Object cities = game.remove("cities");
+    Object units = game.remove("units");
+    Map<String, Object> techs = new HashMap<>();
+    techs.put("unlockedTechs", game.remove("unlockedTechs"));
+    techs.put("unlockingTechs", game.remove("unlockingTechs"));
+
+    DataOutputStream out = new DataOutputStream(
+      new BufferedOutputStream(output)
+    );
+    // Write the header and terrain block
+    out.writeInt(MAGIC);
+    out.writeInt(VERSION);
+    if (block == null) {
+      // Quantized terrain is written in its own section
+      out.writeInt(0);
+      byte[] terrainBytes = ((QuantizedTerrain) terrain).getBytes();
+      out.writeByte(SECTION_TERRAIN);
+      out.writeInt(terrainBytes.length);
+      out.write(terrainBytes);
+    } else {
+      out.writeInt(block.getLength());
+      ByteBuffer terrainBytes = block.asBuffer();
+      byte[] chunk = new byte[8192];
+      while (terrainBytes.hasRemaining()) {
+        int length = Math.min(chunk.length, terrainBytes.remaining());
+        terrainBytes.get(chunk, 0, length);
+        out.write(chunk, 0, length);
+      }
+    }
+
+    // Write the sections
+    writeSection(out, SECTION_GAME, game);
+    writeSection(out, SECTION_CITIES, cities);
+    writeSection(out, SECTION_UNITS, units);
+    writeSection(out, SECTION_TECHS, techs);
+    // Flush rather than close the stream, so the caller can keep writing to
+    // the output
+    out.flush();
+  }
+
+  /**
+   * Writes a length-prefixed section
+   *
+   * @param out   output to write to
+   * @param tag   tag identifying the section
+   * @param value value to store in the section
+   * @throws IOException if the section cannot be written
+   */
+  private static void writeSection(DataOutputStream out, byte tag, Object value)
+    throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    ValueCodec.writeValue(new DataOutputStream(bytes), value);
+    out.writeByte(tag);
+    out.writeInt(bytes.size());
+    bytes.writeTo(out);
+  }
+
+  /**
+   * Reads a game's map from a binary save, applying its patch if it has one.
+   * The map's terrain is either {@link QuantizedTerrain} or a
+   * {@link TerrainBlock} backed by a memory-mapped region of the file, rather
+   * than lists.
+   *
+   * @param file file to read from
+   * @return map containing details of the game
+   * @throws IOException if the file cannot be read or isn't a valid save
+   */
+  @Override
+  public Map<String, Object> read(File file) throws IOException {
+    try (FileChannel channel = FileChannel.open(
+      file.toPath(),
+      StandardOpenOption.READ
+    )) {
+      // Read and check the header
+      ByteBuffer header = ByteBuffer.allocate(HEADER_LENGTH);
+      while (header.hasRemaining()) {
+        if (channel.read(header) == -1) throw new EOFException("no header");
+      }
+      header.flip();
+      if (header.getInt() != MAGIC) throw new IOException("not a save file");
+      int version = header.getInt();
+      if (version > VERSION) {
+        throw new IOException("unsupported save version " + version);
+      }
+      int terrainLength = header.getInt();
+      if (terrainLength < 0
+        || HEADER_LENGTH + (long) terrainLength > channel.size()) {
+        throw new IOException("invalid terrain block length");
+      }
+
+      // Map the terrain block straight from the file, if there is one
+      Map<String, Object> map = new HashMap<>();
+      if (terrainLength > 0) {
+        try {
+          map.put("terrain", new TerrainBlock(channel.map(
+            FileChannel.MapMode.READ_ONLY,
+            HEADER_LENGTH,
+            terrainLength
+          )));
+        } catch (IllegalArgumentException e) {
+          throw new IOException("corrupt terrain block", e);
+        }
+      }
+
+      // Read the sections after the terrain block
+      channel.position(HEADER_LENGTH + terrainLength);
+      DataInputStream in = new DataInputStream(new BufferedInputStream(
+        Channels.newInputStream(channel)
+      ));
+      long remaining = channel.size() - channel.position();
+      int tag;
+      while ((tag = in.read()) != -1) {
+        // Check the section fits in the file before allocating space for it,
+        // as the length may be corrupt
+        int length = in.readInt();
+        remaining -= 1 + 4;
+        if (length < 0 || length > remaining) {
+          throw new IOException("invalid section length " + length);
+        }
+        remaining -= length;
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        DataInputStream section = new DataInputStream(
+          new ByteArrayInputStream(bytes)
+        );
+        switch (tag) {
+          case SECTION_GAME:
+          case SECTION_TECHS:
+            //noinspection unchecked
+            map.putAll((Map<String, Object>) ValueCodec.readValue(section));
+            break;
+          case SECTION_CITIES:
+            map.put("cities", ValueCodec.readValue(section));
+            break;
+          case SECTION_UNITS:
+            map.put("units", ValueCodec.readValue(section));
+            break;
+          case SECTION_TERRAIN:
+            try {
+              map.put("terrain", new QuantizedTerrain(bytes));
+            } catch (IllegalArgumentException e) {
+              throw new IOException("corrupt quantized terrain", e);
+            }
+            break;
+          case SECTION_CHECKSUM:
+            // Checked before loading, if at all (see SaveFiles)
+            break;
+          default:
+            // Skip sections added by newer versions
+            break;
+        }
+      }
+      if (!map.containsKey("terrain")) throw new IOException("no terrain");
+      return SavePatcher.applyPatch(this, file, map);
+    }
+  }
+
+  /**
+   * Gets the length of the checksum section at the end of binary saves
+   *
+   * @return number of bytes in the section
+   */
+  @Override
+  public int getChecksumTrailerLength() {
+    return CHECKSUM_TRAILER_LENGTH;
+  }
+
+  /**
+   * Creates the section containing a binary save's checksum
+   *
+   * @param checksum CRC-32 checksum of the save's contents
+   * @return section bytes
+   */
+  @Override
+  public byte[] checksumTrailer(long checksum) {
+    return ByteBuffer.allocate(CHECKSUM_TRAILER_LENGTH)
+      .put(SECTION_CHECKSUM)
+      .putInt(4)
+      .putInt((int) checksum)
+      .array();
+  }
+
+  /**
+   * Reads the checksum from the section at the end of a binary save
+   *
+   * @param trailer last bytes of the save
+   * @return checksum in the section, or -1 if they aren't a checksum section
+   */
+  @Override
+  public long readChecksumTrailer(byte[] trailer) {
+    ByteBuffer buffer = ByteBuffer.wrap(trailer);
+    if (buffer.get() != SECTION_CHECKSUM || buffer.getInt() != 4) return -1;
+    return buffer.getInt() & 0xFFFFFFFFL;
+  }
+}
@@ -0,0 +1,393 @@
+package com.mrbbot.civilisation.save;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * Functions for writing saves so a crash can never leave a half written save
+ * behind, and for finding the newest intact save when loading.
+ * <p>
+ * Saves are written to a temporary file, which is synced to disk and then
+ * renamed over the save in one step. The previous saves are kept as numbered
+ * generations next to it ({@code game.yml.1} is the one before
+ * {@code game.yml}, and so on). Every save ends with a checksum of its
+ * contents in a form its format ignores when reading (see
+ * {@link SaveFormat#checksumTrailer(long)}), so a damaged save can be
+ * detected without parsing it.
+ */
+public final class SaveFiles {
+  /**
+   * Default number of saves to keep, including the newest
+   */
+  public static final int DEFAULT_GENERATIONS = 3;
+  /**
+   * Text added to a save file's name to get the name of the temporary file
+   * it's written to
+   */
+  private static final String TEMP_SUFFIX = ".tmp";
+  /**
+   * Text added to the name of a generation that couldn't be loaded when it's
+   * set aside
+   */
+  private static final String CORRUPT_SUFFIX = ".corrupt";
+
+  /**
+   * Result of checking a save against its checksum
+   */
+  public enum Integrity {
+    /**
+     * The save's contents match its checksum
+     */
+    VALID,
+    /**
+     * The save doesn't have a checksum, so it can't be checked (e.g. it was
+     * written before checksums were added, or edited by hand)
+     */
+    UNCHECKED,
+    /**
+     * The save's contents don't match its checksum
+     */
+    CORRUPT
+  }
+
+  /**
+   * Class only contains static functions, so shouldn't be created
+   */
+  private SaveFiles() {
+  }
+
+  /**
+   * Gets the file storing a generation of a save
+   *
+   * @param file       save file
+   * @param generation number of the generation, 0 being the newest
+   * @return file for the generation
+   */
+  public static File generation(File file, int generation) {
+    if (generation == 0) return file;
+    return new File(file.getPath() + "." + generation);
+  }
+
+  /**
+   * Writes a game's map to a save file, keeping previous saves as older
+   * generations. The save file is only replaced once the new save has been
+   * completely written and synced to disk.
+   *
+   * @param format      format to write the save in
+   * @param map         map containing details of the game
+   * @param file        file to save to
+   * @param generations number of saves to keep, including the new one
+   * @return CRC-32 checksum of the save's contents, as stored at its end
+   * @throws IOException if the save cannot be written, in which case the
+   *                     previous saves are left as they were
+   */
+  static long write(
+    SaveFormat format,
+    Map<String, Object> map,
+    File file,
+    int generations
+  ) throws IOException {
+    if (generations < 1) {
+      throw new IllegalArgumentException("at least one save must be kept");
+    }
+    // Write the save and its checksum to a temporary file, making sure it's
+    // on the disk before it replaces anything. The checksum is calculated as
+    // the save is written, so it doesn't have to be read back.
+    File temp = new File(file.getPath() + TEMP_SUFFIX);
+    long checksum;
+    try (FileOutputStream out = new FileOutputStream(temp)) {
+      CheckedOutputStream checked = new CheckedOutputStream(
+        new BufferedOutputStream(out),
+        new CRC32()
+      );
+      format.write(map, checked);
+      checked.flush();
+      checksum = checked.getChecksum().getValue();
+      out.write(format.checksumTrailer(checksum));
+      out.getFD().sync();
+    }
+
+    // Drop the oldest generation (and any left from keeping more before),
+    // then shift the rest along
+    for (Map.Entry<Integer, File> entry
+      : generations(file).tailMap(generations - 1).entrySet()) {
+      if (entry.getKey() > 0) Files.delete(entry.getValue().toPath());
+    }
+    for (int i = generations - 2; i >= 1; i--) {
+      File from = generation(file, i);
+      if (from.exists()) {
+        Files.move(
+          from.toPath(),
+          generation(file, i + 1).toPath(),
+          StandardCopyOption.REPLACE_EXISTING
+        );
+      }
+    }
+    // Keep the current save as the first older generation, without ever
+    // leaving no file at the save's name
+    if (generations > 1 && file.exists()) {
+      File previous = generation(file, 1);
+      try {
+        Files.createLink(previous.toPath(), file.toPath());
+      } catch (IOException | UnsupportedOperationException e) {
+        // The file system doesn't support links, so copy it instead
+        Files.copy(
+          file.toPath(),
+          previous.toPath(),
+          StandardCopyOption.REPLACE_EXISTING
+        );
+      }
+    }
+
+    // Replace the save in one step
+    try {
+      Files.move(
+        temp.toPath(),
+        file.toPath(),
+        StandardCopyOption.ATOMIC_MOVE,
+        StandardCopyOption.REPLACE_EXISTING
+      );
+    } catch (AtomicMoveNotSupportedException e) {
+      Files.move(
+        temp.toPath(),
+        file.toPath(),
+        StandardCopyOption.REPLACE_EXISTING
+      );
+    }
+    syncDirectory(file);
+    return checksum;
+  }
+
+  /**
+   * Syncs the directory containing a file, so a rename in it survives a
+   * crash. Not every platform can open directories, in which case this does
+   * nothing.
+   *
+   * @param file file in the directory to sync
+   */
+  private static void syncDirectory(File file) {
+    File directory = file.getAbsoluteFile().getParentFile();
+    try (FileChannel channel = FileChannel.open(
+      directory.toPath(),
+      StandardOpenOption.READ
+    )) {
+      channel.force(true);
+    } catch (IOException ignored) {
+    }
+  }
+
+  /**
+   * Checks a save against the checksum at its end. Reads the whole save, but
+   * doesn't parse it.
+   *
+   * @param format format the save is in
+   * @param file   save file to check
+   * @return whether the save is intact
+   * @throws IOException if the save cannot be read
+   */
+  public static Integrity verify(SaveFormat format, File file)
+    throws IOException {
+    long expected = readChecksum(format, file);
+    if (expected == -1) return Integrity.UNCHECKED;
+    long length = file.length() - format.getChecksumTrailerLength();
+    return checksum(file, length) == expected
+      ? Integrity.VALID
+      : Integrity.CORRUPT;
+  }
+
+  /**
+   * Calculates the checksum of a save's contents, not including the checksum
+   * stored at its end if it has one. Reads the whole save.
+   *
+   * @param format format the save is in
+   * @param file   save file
+   * @return CRC-32 checksum of the save's contents
+   * @throws IOException if the save cannot be read
+   */
+  static long contentChecksum(SaveFormat format, File file)
+    throws IOException {
+    long length = file.length();
+    if (readChecksum(format, file) != -1) {
+      length -= format.getChecksumTrailerLength();
+    }
+    return checksum(file, length);
+  }
+
+  /**
+   * Reads the checksum stored at the end of a save, without checking it
+   *
+   * @param format format the save is in
+   * @param file   save file
+   * @return the stored checksum, or -1 if the save doesn't have one
+   * @throws IOException if the save cannot be read
+   */
+  static long readChecksum(SaveFormat format, File file) throws IOException {
+    long length = file.length();
+    int trailerLength = format.getChecksumTrailerLength();
+    if (length < trailerLength) return -1;
+
+    byte[] trailer = new byte[trailerLength];
+    try (RandomAccessFile in = new RandomAccessFile(file, "r")) {
+      in.seek(length - trailerLength);
+      in.readFully(trailer);
+    }
+    return format.readChecksumTrailer(trailer);
+  }
+
+  /**
+   * Gets the generations of a save in the order they should be tried when
+   * loading it: newest first, except damaged saves, which are only tried
+   * after every other generation
+   *
+   * @param format format the save is in
+   * @param file   save file
+   * @return existing generations of the save to try loading
+   */
+  public static List<File> loadOrder(SaveFormat format, File file) {
+    List<File> intact = new ArrayList<>();
+    List<File> damaged = new ArrayList<>();
+    for (File generation : generations(file).values()) {
+      try {
+        if (verify(format, generation) == Integrity.CORRUPT) {
+          System.err.println("Save " + generation + " is corrupt");
+          damaged.add(generation);
+        } else {
+          intact.add(generation);
+        }
+      } catch (IOException e) {
+        e.printStackTrace();
+        damaged.add(generation);
+      }
+    }
+    intact.addAll(damaged);
+    return intact;
+  }
+
+  /**
+   * Makes an older generation of a save the newest, after the newer ones
+   * couldn't be loaded. The newer generations are renamed with a
+   * {@code .corrupt} suffix so they can be inspected, and the older ones are
+   * renumbered to follow it.
+   *
+   * @param file   save file
+   * @param loaded generation of the save that was loaded
+   * @throws IOException if the generations cannot be renamed
+   */
+  public static void promote(File file, File loaded) throws IOException {
+    TreeMap<Integer, File> generations = generations(file);
+    Integer number = null;
+    for (Map.Entry<Integer, File> entry : generations.entrySet()) {
+      if (entry.getValue().equals(loaded)) number = entry.getKey();
+    }
+    if (number == null || number == 0) return;
+
+    for (Map.Entry<Integer, File> entry : generations.entrySet()) {
+      File generation = entry.getValue();
+      int newNumber = entry.getKey() - number;
+      File target = newNumber < 0
+        ? new File(generation.getPath() + CORRUPT_SUFFIX)
+        : generation(file, newNumber);
+      Files.move(
+        generation.toPath(),
+        target.toPath(),
+        StandardCopyOption.REPLACE_EXISTING
+      );
+    }
+  }
+
+  /**
+   * Checks whether any generation of a save exists
+   *
+   * @param file save file
+   * @return whether there's a save to load
+   */
+  public static boolean exists(File file) {
+    return !generations(file).isEmpty();
+  }
+
+  /**
+   * Deletes every generation of a save and its patch, e.g. before starting a
+   * new game with the same file name
+   *
+   * @param file save file
+   * @throws IOException if a generation cannot be deleted
+   */
+  public static void delete(File file) throws IOException {
+    for (File generation : generations(file).values()) {
+      Files.deleteIfExists(generation.toPath());
+    }
+    Files.deleteIfExists(new File(file.getPath() + TEMP_SUFFIX).toPath());
+    Files.deleteIfExists(SavePatcher.patchFile(file).toPath());
+  }
+
+  /**
+   * Finds the existing generations of a save
+   *
+   * @param file save file
+   * @return map of generation numbers to files, newest first
+   */
+  private static TreeMap<Integer, File> generations(File file) {
+    TreeMap<Integer, File> generations = new TreeMap<>();
+    if (file.exists()) generations.put(0, file);
+    File directory = file.getAbsoluteFile().getParentFile();
+    String prefix = file.getName() + ".";
+    File[] files = directory.listFiles(
+      (dir, name) -> name.startsWith(prefix)
+    );
+    if (files == null) return generations;
+    for (File generation : files) {
+      try {
+        int number = Integer.parseInt(
+          generation.getName().substring(prefix.length())
+        );
+        if (number > 0) generations.put(number, generation);
+      } catch (NumberFormatException ignored) {
+        // Not a generation (e.g. the save's index or journal)
+      }
+    }
+    return generations;
+  }
+
+  /**
+   * Calculates the CRC-32 checksum of the start of a file
+   *
+   * @param file   file to checksum
+   * @param length number of bytes at the start of the file to include
+   * @return checksum of the bytes
+   * @throws IOException if the file cannot be read
+   */
+  static long checksum(File file, long length) throws IOException {
+    CRC32 crc = new CRC32();
+    byte[] buffer = new byte[8192];
+    try (InputStream in = new BufferedInputStream(new FileInputStream(file))) {
+      long remaining = length;
+      int read;
+      while (remaining > 0 && (read = in.read(
+        buffer,
+        0,
+        (int) Math.min(buffer.length, remaining)
+      )) != -1) {
+        crc.update(buffer, 0, read);
+        remaining -= read;
+      }
+    }
+    return crc.getValue();
+  }
+}
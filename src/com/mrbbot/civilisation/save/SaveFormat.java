@@ -0,0 +1,172 @@
+package com.mrbbot.civilisation.save;
+
+import com.mrbbot.civilisation.logic.map.tile.QuantizedTerrain;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Map;
+
+/**
+ * Interface describing a way of storing a game's map (see
+ * {@link com.mrbbot.civilisation.logic.map.Game#toMap()}) in a file. The
+ * format used for a save is chosen by its file extension.
+ */
+public interface SaveFormat {
+  /**
+   * Format storing games as human-readable YAML
+   */
+  SaveFormat YAML = new YamlSaveFormat();
+  /**
+   * Format storing games in a compact binary form that's quick to load
+   */
+  SaveFormat BINARY = new BinarySaveFormat();
+
+  /**
+   * Gets the file extension (including the dot) used by saves in this format
+   *
+   * @return file extension for this format
+   */
+  String getExtension();
+
+  /**
+   * Gets the precision this format stores quantized terrain with (see
+   * {@link QuantizedTerrain}). Maps written in this format should be created
+   * by passing this precision to the game's toMap function.
+   *
+   * @return precision to quantize terrain with, or null if this format stores
+   * terrain as lists of heights and trees
+   */
+  default QuantizedTerrain.Precision getTerrainPrecision() {
+    return null;
+  }
+
+  /**
+   * Checks whether saves in this format can be updated by appending just the
+   * parts of the game that have changed to a patch (see {@link SavePatcher})
+   *
+   * @return whether patches are supported, false by default
+   */
+  default boolean supportsPatches() {
+    return false;
+  }
+
+  /**
+   * Writes a game's map to an output. The output is flushed but not closed,
+   * so more can be written after it.
+   *
+   * @param map map containing details of the game
+   * @param out output to write to
+   * @throws IOException if the output cannot be written to
+   */
+  void write(Map<String, Object> map, OutputStream out) throws IOException;
+
+  /**
+   * Writes a game's map to a file, replacing its contents
+   *
+   * @param map  map containing details of the game
+   * @param file file to write to
+   * @throws IOException if the file cannot be written
+   */
+  default void write(Map<String, Object> map, File file) throws IOException {
+    try (OutputStream out = new BufferedOutputStream(
+      new FileOutputStream(file)
+    )) {
+      write(map, out);
+    }
+  }
+
+  /**
+   * Reads a game's map from a file
+   *
+   * @param file file to read from
+   * @return map containing details of the game, suitable for passing to
+   * {@link com.mrbbot.civilisation.logic.map.Game#Game(Map)}
+   * @throws IOException if the file cannot be read or is corrupt
+   */
+  Map<String, Object> read(File file) throws IOException;
+
+  /**
+   * Gets the number of bytes in this format's checksum trailer
+   *
+   * @return length of the arrays returned by {@link #checksumTrailer(long)}
+   */
+  int getChecksumTrailerLength();
+
+  /**
+   * Creates the bytes appended to the end of saves in this format, storing
+   * the checksum of everything before them (see {@link SaveFiles}). Readers
+   * of this format must ignore the trailer.
+   *
+   * @param checksum CRC-32 checksum of the save's contents
+   * @return trailer to append to the save
+   */
+  byte[] checksumTrailer(long checksum);
+
+  /**
+   * Reads the checksum from the bytes at the end of a save
+   *
+   * @param trailer last {@link #getChecksumTrailerLength()} bytes of the save
+   * @return checksum stored in the trailer, or -1 if the bytes aren't a
+   * trailer (e.g. the save was written before checksums were added)
+   */
+  long readChecksumTrailer(byte[] trailer);
+
+  /**
+   * Writes a game's map to a file, then writes the save's index (see
+   * {@link SaveMetadata}) so it can be listed without reading the whole save.
+   * Should be used instead of {@link #write(Map, File)} when saving games.
+   * Keeps {@link SaveFiles#DEFAULT_GENERATIONS} saves.
+   *
+   * @param map  map containing details of the game
+   * @param file file to write to
+   * @throws IOException if the save or its index cannot be written
+   */
+  default void save(Map<String, Object> map, File file) throws IOException {
+    save(map, file, SaveFiles.DEFAULT_GENERATIONS);
+  }
+
+  /**
+   * Writes a game's map to a file without ever leaving a partially written
+   * save behind, keeping previous saves as older generations (see
+   * {@link SaveFiles#write(SaveFormat, Map, File, int)}), then writes the
+   * save's index
+   *
+   * @param map         map containing details of the game
+   * @param file        file to write to
+   * @param generations number of saves to keep, including the new one
+   * @return CRC-32 checksum of the save's contents, as stored at its end
+   * @throws IOException if the save or its index cannot be written
+   */
+  default long save(Map<String, Object> map, File file, int generations)
+    throws IOException {
+    long checksum = SaveFiles.write(this, map, file, generations);
+    SaveMetadata.of(map, file, checksum).write(file);
+    return checksum;
+  }
+
+  /**
+   * Checks whether a file is a game save in a known format
+   *
+   * @param file file to check
+   * @return whether the file has a save file extension
+   */
+  static boolean isSave(File file) {
+    String name = file.getName();
+    return name.endsWith(YAML.getExtension())
+      || name.endsWith(BINARY.getExtension());
+  }
+
+  /**
+   * Gets the format to use for a save file from its extension. Files that
+   * aren't binary saves are treated as YAML.
+   *
+   * @param file save file
+   * @return format for the file
+   */
+  static SaveFormat forFile(File file) {
+    return file.getName().endsWith(BINARY.getExtension()) ? BINARY : YAML;
+  }
+}
@@ -0,0 +1,272 @@
+package com.mrbbot.civilisation.save;
+
+import com.mrbbot.civilisation.logic.map.MapSize;
+import com.mrbbot.civilisation.logic.map.tile.QuantizedTerrain;
+import com.mrbbot.civilisation.logic.map.tile.TerrainBlock;
+import org.yaml.snakeyaml.Yaml;
+
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Small index describing a game save, stored in a sidecar file next to it.
+ * Written every time the game is saved, so the save browser can list games
+ * without parsing every save in full.
+ * <p>
+ * The index records the save file's length and last modified time. If the
+ * save is changed without the index being rewritten (e.g. by editing a YAML
+ * save by hand) the index is treated as stale and rebuilt from the save.
+ */
+public class SaveMetadata {
+  /**
+   * Extension added to a save file's name to get its index file's name. This
+   * isn't a save file extension so indices aren't listed as saves.
+   */
+  private static final String EXTENSION = ".meta";
+  /**
+   * Name of the map size stored for maps that don't match a standard size
+   */
+  private static final String CUSTOM_MAP_SIZE = "Custom";
+  /**
+   * Instance of the external library used for reading and writing indices
+   */
+  private static final Yaml YAML = new Yaml();
+
+  /**
+   * Name of the game
+   */
+  public final String name;
+  /**
+   * Name of the game's map size
+   */
+  public final String mapSize;
+  /**
+   * Number of turns that had been played when the game was saved
+   */
+  public final int turn;
+  /**
+   * Ids of the players in the game
+   */
+  public final List<String> players;
+  /**
+   * Last modified time of the save file when this index was written
+   */
+  public final long lastModified;
+  /**
+   * Length of the save file in bytes
+   */
+  public final long length;
+  /**
+   * CRC-32 checksum of the save file's contents, not including the checksum
+   * stored at its end (see {@link SaveFiles})
+   */
+  public final long checksum;
+
+  /**
+   * Creates a new index
+   *
+   * @param name         name of the game
+   * @param mapSize      name of the game's map size
+   * @param turn         number of turns that had been played
+   * @param players      ids of the players in the game
+   * @param lastModified last modified time of the save file
+   * @param length       length of the save file in bytes
+   * @param checksum     CRC-32 checksum of the save file's contents
+   */
+  public SaveMetadata(
+    String name,
+    String mapSize,
+    int turn,
+    List<String> players,
+    long lastModified,
+    long length,
+    long checksum
+  ) {
+    this.name = name;
+    this.mapSize = mapSize;
+    this.turn = turn;
+    this.players = Collections.unmodifiableList(new ArrayList<>(players));
+    this.lastModified = lastModified;
+    this.length = length;
+    this.checksum = checksum;
+  }
+
+  /**
+   * Gets the index file for a save
+   *
+   * @param saveFile game save file
+   * @return file the save's index is stored in
+   */
+  public static File fileFor(File saveFile) {
+    return new File(saveFile.getPath() + EXTENSION);
+  }
+
+  /**
+   * Creates an index for a save that has just been written. The checksum is
+   * passed in rather than read back from the save, as it's calculated while
+   * the save is written.
+   *
+   * @param map      map the save was written from
+   * @param saveFile file the save was written to
+   * @param checksum CRC-32 checksum of the save file's contents
+   * @return index describing the save
+   */
+  public static SaveMetadata of(
+    Map<String, Object> map,
+    File saveFile,
+    long checksum
+  ) {
+    //noinspection unchecked
+    List<String> players = (List<String>) map.get("players");
+    Object turn = map.get("turn");
+    return new SaveMetadata(
+      (String) map.get("name"),
+      mapSizeOf(map.get("terrain")),
+      turn == null ? 0 : (Integer) turn,
+      players == null ? Collections.<String>emptyList() : players,
+      saveFile.lastModified(),
+      saveFile.length(),
+      checksum
+    );
+  }
+
+  /**
+   * Works out the name of a map's size from the dimensions of its terrain
+   *
+   * @param terrain terrain stored in a game's map, either lists of heights,
+   *                a {@link TerrainBlock} or {@link QuantizedTerrain}
+   * @return name of the map size
+   */
+  private static String mapSizeOf(Object terrain) {
+    int height = 0;
+    int width = 0;
+    if (terrain instanceof TerrainBlock) {
+      TerrainBlock block = (TerrainBlock) terrain;
+      height = block.getRows();
+      if (height > 0) width = block.getRowWidth(0);
+    } else if (terrain instanceof QuantizedTerrain) {
+      QuantizedTerrain quantized = (QuantizedTerrain) terrain;
+      height = quantized.getRows();
+      if (height > 0) width = quantized.getRowWidth(0);
+    } else if (terrain instanceof List) {
+      List<?> rows = (List<?>) terrain;
+      height = rows.size();
+      if (height > 0) width = ((List<?>) rows.get(0)).size();
+    }
+    MapSize size = MapSize.fromDimensions(width, height);
+    return size == null ? CUSTOM_MAP_SIZE : size.name;
+  }
+
+  /**
+   * Writes this index to the index file for a save
+   *
+   * @param saveFile game save file this index describes
+   * @throws IOException if the index file cannot be written
+   */
+  public void write(File saveFile) throws IOException {
+    Map<String, Object> map = new HashMap<>();
+    map.put("name", name);
+    map.put("mapSize", mapSize);
+    map.put("turn", turn);
+    map.put("players", new ArrayList<>(players));
+    map.put("lastModified", lastModified);
+    map.put("length", length);
+    map.put("checksum", checksum);
+    try (FileWriter writer = new FileWriter(fileFor(saveFile))) {
+      YAML.dump(map, writer);
+    }
+  }
+
+  /**
+   * Reads the index for a save, without reading the save itself
+   *
+   * @param saveFile game save file
+   * @return the save's index, or null if it doesn't have one or the index is
+   * out of date
+   */
+  public static SaveMetadata read(File saveFile) {
+    File file = fileFor(saveFile);
+    if (!file.exists()) return null;
+    try (FileReader reader = new FileReader(file)) {
+      //noinspection unchecked
+      Map<String, Object> map = YAML.loadAs(reader, Map.class);
+      //noinspection unchecked
+      SaveMetadata metadata = new SaveMetadata(
+        (String) map.get("name"),
+        (String) map.get("mapSize"),
+        ((Number) map.get("turn")).intValue(),
+        (List<String>) map.get("players"),
+        ((Number) map.get("lastModified")).longValue(),
+        ((Number) map.get("length")).longValue(),
+        ((Number) map.get("checksum")).longValue()
+      );
+      // Check the save hasn't changed since the index was written
+      return metadata.describes(saveFile) ? metadata : null;
+    } catch (IOException | RuntimeException e) {
+      // Missing values or a corrupt file, the index will be rebuilt
+      return null;
+    }
+  }
+
+  /**
+   * Gets the index for a save, rebuilding it from the save if it's missing or
+   * out of date. Only saves without an up to date index are parsed in full.
+   *
+   * @param saveFile game save file
+   * @return the save's index
+   * @throws IOException if the index had to be rebuilt and the save cannot be
+   *                     read
+   */
+  public static SaveMetadata load(File saveFile) throws IOException {
+    SaveMetadata metadata = read(saveFile);
+    if (metadata != null) return metadata;
+
+    // Rebuild the index from the full save
+    SaveFormat format = SaveFormat.forFile(saveFile);
+    metadata = of(
+      format.read(saveFile),
+      saveFile,
+      SaveFiles.contentChecksum(format, saveFile)
+    );
+    try {
+      metadata.write(saveFile);
+    } catch (IOException e) {
+      // The index is still usable even if it can't be stored for next time
+      e.printStackTrace();
+    }
+    return metadata;
+  }
+
+  /**
+   * Checks whether this index is up to date with a save file
+   *
+   * @param saveFile game save file
+   * @return whether the save's length and last modified time match
+   */
+  private boolean describes(File saveFile) {
+    return saveFile.lastModified() == lastModified
+      && saveFile.length() == length;
+  }
+
+  /**
+   * Checks whether a save's contents match the checksum in this index. This
+   * reads the whole save, so isn't done when listing saves.
+   *
+   * @param saveFile game save file
+   * @return whether the save's contents are unchanged
+   * @throws IOException if the save cannot be read
+   */
+  public boolean verify(File saveFile) throws IOException {
+    return describes(saveFile) && SaveFiles.contentChecksum(
+      SaveFormat.forFile(saveFile),
+      saveFile
+    ) == checksum;
+  }
+}
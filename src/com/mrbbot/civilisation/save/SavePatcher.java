@@ -0,0 +1,458 @@
+package com.mrbbot.civilisation.save;
+
+import com.mrbbot.civilisation.logic.map.tile.QuantizedTerrain;
+import com.mrbbot.generic.net.ValueCodec;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * Saves a game incrementally, so the bytes written for each save scale with
+ * how much of the game changed rather than with the size of the map.
+ * <p>
+ * A game's map is split into sections: one for each city, unit and player,
+ * and one for everything else (e.g. the game's name and turn). The first save
+ * is written in full as normal, and the checksum of every section is
+ * remembered. Later saves only append the sections whose contents have
+ * changed (and the keys of sections that no longer exist, e.g. dead units) to
+ * a patch file next to the save. The terrain never changes once the map has
+ * been generated, so it's only ever written in full saves. Once the patch
+ * would be larger than the save itself, or already has
+ * {@link #MAX_PATCH_RECORDS} records, the next save is written in full again,
+ * replacing the patch. Limiting the number of records also limits how much of
+ * the server's journal has to be kept, as it's only released once a full
+ * save has been written.
+ * <p>
+ * The patch starts with the checksum of the save it applies to, so it's
+ * ignored if the save is replaced by an older generation (see
+ * {@link SaveFiles}). Each record in the patch has its own checksum, so a
+ * record being written when the server crashed is ignored, and the game is
+ * loaded as of the record before it. Only used for formats that
+ * {@link SaveFormat#supportsPatches() support patches}, others are always
+ * saved in full. Not thread-safe, should only be used by a single saver.
+ */
+public class SavePatcher {
+  /**
+   * Key added to a game's map when it was loaded from a save with at least
+   * one patch record applied
+   */
+  public static final String PATCHED_KEY = "patched";
+  /**
+   * Most records a patch can have, after which the game is saved in full
+   */
+  public static final int MAX_PATCH_RECORDS = 5;
+  /**
+   * Number at the start of every patch file ("CIVP" in ASCII)
+   */
+  private static final int MAGIC = 0x43495650;
+  /**
+   * Number of bytes in the patch file's header: the magic number and the
+   * checksum of the save it applies to
+   */
+  private static final int HEADER_LENGTH = 12;
+  /**
+   * Number of bytes before each record's contents: its length and checksum
+   */
+  private static final int RECORD_HEADER_LENGTH = 8;
+  /**
+   * Text added to a save file's name to get the name of its patch file
+   */
+  private static final String PATCH_SUFFIX = ".patch";
+  /**
+   * Key of the section containing every value that isn't in another section
+   */
+  private static final String GAME_SECTION = "game";
+  /**
+   * Prefix of the keys of city sections, followed by the position of the
+   * city's center
+   */
+  private static final String CITY_PREFIX = "city:";
+  /**
+   * Prefix of the keys of unit sections, followed by the unit's position
+   */
+  private static final String UNIT_PREFIX = "unit:";
+  /**
+   * Prefix of the keys of player sections, followed by the player's id
+   */
+  private static final String PLAYER_PREFIX = "player:";
+  /**
+   * Keys in a game's map of values stored per player, split into the player
+   * sections
+   */
+  private static final String[] PLAYER_KEYS = {
+    "science", "gold", "unlockedTechs", "unlockingTechs"
+  };
+
+  /**
+   * Format of the save
+   */
+  private final SaveFormat format;
+  /**
+   * File to save the game to
+   */
+  private final File file;
+  /**
+   * Patch file for {@link #file}
+   */
+  private final File patchFile;
+  /**
+   * Map mapping section keys to the checksums of their contents as of the
+   * last save, or null if the game hasn't been saved by this patcher yet
+   */
+  private Map<String, Long> savedChecksums;
+  /**
+   * Checksum of the terrain in the last full save
+   */
+  private long savedTerrainChecksum;
+  /**
+   * Checksum stored at the end of the last full save, written at the start
+   * of the patch
+   */
+  private long baseChecksum;
+  /**
+   * Number of bytes in the last full save
+   */
+  private long baseLength;
+  /**
+   * Number of bytes of the patch that have been written, 0 if it hasn't been
+   * started
+   */
+  private long patchLength;
+  /**
+   * Number of records in the patch
+   */
+  private int patchRecords;
+
+  /**
+   * Creates a new patcher for a save. The first save is always written in
+   * full.
+   *
+   * @param format format of the save
+   * @param file   file to save the game to
+   */
+  public SavePatcher(SaveFormat format, File file) {
+    this.format = format;
+    this.file = file;
+    this.patchFile = patchFile(file);
+  }
+
+  /**
+   * Gets the file storing the patch for a save
+   *
+   * @param file save file
+   * @return patch file for the save
+   */
+  static File patchFile(File file) {
+    return new File(file.getPath() + PATCH_SUFFIX);
+  }
+
+  /**
+   * Saves a game, appending just the sections that have changed since the
+   * last save to the patch if possible
+   *
+   * @param map         map containing details of the game
+   * @param generations number of full saves to keep, including the newest
+   * @return true if the game was saved in full, or false if it was patched
+   * @throws IOException if the save cannot be written, in which case the
+   *                     next save includes everything this one would have
+   */
+  public boolean save(Map<String, Object> map, int generations)
+    throws IOException {
+    Map<String, Object> sections = split(map);
+    Map<String, Long> checksums = new HashMap<>();
+    for (Map.Entry<String, Object> entry : sections.entrySet()) {
+      checksums.put(entry.getKey(), checksum(encode(entry.getValue())));
+    }
+    long terrainChecksum = terrainChecksum(map.get("terrain"));
+
+    // Patch the save if it's been saved in full before with the same terrain
+    if (format.supportsPatches()
+      && savedChecksums != null
+      && terrainChecksum != -1
+      && terrainChecksum == savedTerrainChecksum) {
+      Map<String, Object> changes = new LinkedHashMap<>();
+      for (Map.Entry<String, Object> entry : sections.entrySet()) {
+        String key = entry.getKey();
+        if (!checksums.get(key).equals(savedChecksums.get(key))) {
+          changes.put(key, entry.getValue());
+        }
+      }
+      // Sections that no longer exist are removed with null
+      for (String key : savedChecksums.keySet()) {
+        if (!sections.containsKey(key)) changes.put(key, null);
+      }
+
+      byte[] record = encode(changes);
+      long length = (patchLength == 0 ? HEADER_LENGTH : patchLength)
+        + RECORD_HEADER_LENGTH + record.length;
+      // Once the patch is bigger than the save, it's cheaper to save in full
+      if (length <= baseLength && patchRecords < MAX_PATCH_RECORDS) {
+        append(record);
+        savedChecksums = checksums;
+        // The save file itself hasn't changed, so neither has its checksum
+        SaveMetadata.of(map, file, baseChecksum).write(file);
+        return false;
+      }
+    }
+
+    // Save in full, then remove the patch for the previous save
+    long checksum = format.save(map, file, generations);
+    if (patchFile.exists() && !patchFile.delete()) {
+      throw new IOException("unable to delete " + patchFile);
+    }
+    savedChecksums = checksums;
+    savedTerrainChecksum = terrainChecksum;
+    baseChecksum = checksum;
+    baseLength = file.length();
+    patchLength = 0;
+    patchRecords = 0;
+    return true;
+  }
+
+  /**
+   * Appends a record to the patch, starting it if it hasn't been yet
+   *
+   * @param record encoded changes to append
+   * @throws IOException if the record cannot be written
+   */
+  private void append(byte[] record) throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    DataOutputStream out = new DataOutputStream(bytes);
+    if (patchLength == 0) {
+      out.writeInt(MAGIC);
+      out.writeLong(baseChecksum);
+    }
+    out.writeInt(record.length);
+    out.writeInt((int) checksum(record));
+    out.write(record);
+
+    try (RandomAccessFile patch = new RandomAccessFile(patchFile, "rw")) {
+      // Remove anything left from a record that failed to be written
+      patch.setLength(patchLength);
+      patch.seek(patchLength);
+      patch.write(bytes.toByteArray());
+      patch.getFD().sync();
+    }
+    patchLength += bytes.size();
+    patchRecords++;
+  }
+
+  /**
+   * Applies a save's patch to the map read from it, if it has one. Called
+   * by formats that support patches when reading a save.
+   *
+   * @param format format of the save
+   * @param file   save file the map was read from
+   * @param map    map read from the save
+   * @return map containing details of the game including the changes in the
+   * patch, or the original map if there aren't any
+   * @throws IOException if the patch cannot be read
+   */
+  static Map<String, Object> applyPatch(
+    SaveFormat format,
+    File file,
+    Map<String, Object> map
+  ) throws IOException {
+    File patchFile = patchFile(file);
+    if (!patchFile.exists()) return map;
+    long checksum = SaveFiles.readChecksum(format, file);
+    if (checksum == -1) return map;
+
+    long remaining = patchFile.length() - HEADER_LENGTH;
+    Map<String, Object> sections = split(map);
+    boolean patched = false;
+    try (DataInputStream in = new DataInputStream(new BufferedInputStream(
+      new FileInputStream(patchFile)
+    ))) {
+      // Ignore patches for a different save
+      if (remaining < 0
+        || in.readInt() != MAGIC
+        || in.readLong() != checksum) {
+        return map;
+      }
+      while (remaining >= RECORD_HEADER_LENGTH) {
+        int length = in.readInt();
+        long recordChecksum = in.readInt() & 0xFFFFFFFFL;
+        remaining -= RECORD_HEADER_LENGTH;
+        // Stop at a record that was only partly written
+        if (length < 0 || length > remaining) break;
+        byte[] record = new byte[length];
+        in.readFully(record);
+        remaining -= length;
+        if (checksum(record) != recordChecksum) break;
+
+        //noinspection unchecked
+        Map<String, Object> changes = (Map<String, Object>)
+          ValueCodec.readValue(new DataInputStream(
+            new ByteArrayInputStream(record)
+          ));
+        for (Map.Entry<String, Object> entry : changes.entrySet()) {
+          if (entry.getValue() == null) {
+            sections.remove(entry.getKey());
+          } else {
+            sections.put(entry.getKey(), entry.getValue());
+          }
+        }
+        patched = true;
+      }
+    } catch (EOFException e) {
+      // The patch ended part way through a record, use what was read
+    }
+    if (!patched) return map;
+
+    Map<String, Object> patchedMap = join(sections);
+    patchedMap.put("terrain", map.get("terrain"));
+    if (map.containsKey("trees")) patchedMap.put("trees", map.get("trees"));
+    patchedMap.put(PATCHED_KEY, true);
+    return patchedMap;
+  }
+
+  /**
+   * Splits a game's map into sections, leaving out the terrain
+   *
+   * @param map map containing details of the game
+   * @return map mapping section keys to their contents
+   */
+  @SuppressWarnings("unchecked")
+  private static Map<String, Object> split(Map<String, Object> map) {
+    Map<String, Object> sections = new LinkedHashMap<>();
+    Map<String, Object> game = new HashMap<>(map);
+    game.remove("terrain");
+    game.remove("trees");
+    game.remove(PATCHED_KEY);
+    sections.put(GAME_SECTION, game);
+
+    // Cities are identified by their center, the first of their tiles
+    List<Map<String, Object>> cities =
+      (List<Map<String, Object>>) game.remove("cities");
+    if (cities != null) {
+      for (Map<String, Object> city : cities) {
+        Map<String, Object> center =
+          ((List<Map<String, Object>>) city.get("tiles")).get(0);
+        sections.put(CITY_PREFIX + positionOf(center), city);
+      }
+    }
+    // There can only be one unit on each tile
+    List<Map<String, Object>> units =
+      (List<Map<String, Object>>) game.remove("units");
+    if (units != null) {
+      for (Map<String, Object> unit : units) {
+        sections.put(UNIT_PREFIX + positionOf(unit), unit);
+      }
+    }
+    // Gather the values stored per player into a section for each player
+    for (String key : PLAYER_KEYS) {
+      Map<String, Object> values = (Map<String, Object>) game.remove(key);
+      if (values == null) continue;
+      for (Map.Entry<String, Object> entry : values.entrySet()) {
+        String sectionKey = PLAYER_PREFIX + entry.getKey();
+        Map<String, Object> player =
+          (Map<String, Object>) sections.get(sectionKey);
+        if (player == null) {
+          player = new HashMap<>();
+          sections.put(sectionKey, player);
+        }
+        player.put(key, entry.getValue());
+      }
+    }
+    return sections;
+  }
+
+  /**
+   * Joins sections back into a game's map, without the terrain
+   *
+   * @param sections map mapping section keys to their contents
+   * @return map containing details of the game
+   */
+  @SuppressWarnings("unchecked")
+  private static Map<String, Object> join(Map<String, Object> sections) {
+    Map<String, Object> map = new HashMap<>(
+      (Map<String, Object>) sections.get(GAME_SECTION)
+    );
+    List<Object> cities = new ArrayList<>();
+    List<Object> units = new ArrayList<>();
+    Map<String, Map<String, Object>> playerValues = new HashMap<>();
+    for (String key : PLAYER_KEYS) playerValues.put(key, new HashMap<>());
+
+    for (Map.Entry<String, Object> entry : sections.entrySet()) {
+      String key = entry.getKey();
+      if (key.startsWith(CITY_PREFIX)) {
+        cities.add(entry.getValue());
+      } else if (key.startsWith(UNIT_PREFIX)) {
+        units.add(entry.getValue());
+      } else if (key.startsWith(PLAYER_PREFIX)) {
+        String id = key.substring(PLAYER_PREFIX.length());
+        Map<String, Object> player = (Map<String, Object>) entry.getValue();
+        for (Map.Entry<String, Object> value : player.entrySet()) {
+          playerValues.get(value.getKey()).put(id, value.getValue());
+        }
+      }
+    }
+    map.put("cities", cities);
+    map.put("units", units);
+    map.putAll(playerValues);
+    return map;
+  }
+
+  /**
+   * Gets the position stored in a map as a string
+   *
+   * @param map map containing "x" and "y" values
+   * @return position in the form "x,y"
+   */
+  private static String positionOf(Map<String, Object> map) {
+    return map.get("x") + "," + map.get("y");
+  }
+
+  /**
+   * Calculates the checksum of a map's terrain, to check it hasn't changed
+   * since the last full save
+   *
+   * @param terrain terrain stored in a game's map
+   * @return checksum of the terrain, or -1 if it isn't quantized so can't be
+   * checked cheaply
+   */
+  private static long terrainChecksum(Object terrain) {
+    if (!(terrain instanceof QuantizedTerrain)) return -1;
+    return checksum(((QuantizedTerrain) terrain).getBytes());
+  }
+
+  /**
+   * Encodes a value with {@link ValueCodec}
+   *
+   * @param value value to encode
+   * @return encoded bytes
+   * @throws IOException if the value cannot be encoded
+   */
+  private static byte[] encode(Object value) throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    ValueCodec.writeValue(new DataOutputStream(bytes), value);
+    return bytes.toByteArray();
+  }
+
+  /**
+   * Calculates the CRC-32 checksum of some bytes
+   *
+   * @param bytes bytes to checksum
+   * @return checksum of the bytes
+   */
+  private static long checksum(byte[] bytes) {
+    CRC32 crc = new CRC32();
+    crc.update(bytes, 0, bytes.length);
+    return crc.getValue();
+  }
+}
@@ -0,0 +1,412 @@
+package com.mrbbot.civilisation.save;
+
+import com.mrbbot.civilisation.logic.map.tile.TerrainBlock;
+import org.yaml.snakeyaml.Yaml;
+import org.yaml.snakeyaml.error.YAMLException;
+import org.yaml.snakeyaml.events.AliasEvent;
+import org.yaml.snakeyaml.events.Event;
+import org.yaml.snakeyaml.events.NodeEvent;
+import org.yaml.snakeyaml.events.ScalarEvent;
+import org.yaml.snakeyaml.nodes.NodeId;
+import org.yaml.snakeyaml.nodes.Tag;
+import org.yaml.snakeyaml.resolver.Resolver;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Reads a game's map from a YAML save using SnakeYAML's event API, instead of
+ * having SnakeYAML build a tree of nodes and then a tree of objects from it.
+ * <p>
+ * The terrain and tree lists, which make up most of a save, are streamed
+ * straight into primitive arrays and returned as a {@link TerrainBlock}, so
+ * the game's tiles are created from them without a boxed value for every
+ * tile ever existing. Everything else (cities, units, players' details) is
+ * small, and is read into the same maps and lists SnakeYAML would create.
+ */
+class YamlGameReader {
+  /**
+   * Instance of the external library used to parse the save into events
+   */
+  private static final Yaml YAML = new Yaml();
+  /**
+   * Initial capacity of the arrays the terrain is read into
+   */
+  private static final int INITIAL_TILE_CAPACITY = 1024;
+
+  /**
+   * Events parsed from the save, read lazily as they're needed
+   */
+  private final Iterator<Event> events;
+  /**
+   * Resolver for working out the types of plain scalars, the same one
+   * SnakeYAML uses when loading
+   */
+  private final Resolver resolver = new Resolver();
+  /**
+   * Map mapping anchor names to the values they were attached to
+   */
+  private final Map<String, Object> anchors = new HashMap<>();
+  /**
+   * Event returned by {@link #peek()} that hasn't been consumed yet, or null
+   */
+  private Event peeked;
+
+  /**
+   * Creates a new reader for a save
+   *
+   * @param reader reader for the save's contents, isn't closed
+   */
+  private YamlGameReader(Reader reader) {
+    events = YAML.parse(reader).iterator();
+  }
+
+  /**
+   * Reads a game's map from a YAML save
+   *
+   * @param reader reader for the save's contents, isn't closed
+   * @return map containing details of the game, with the terrain stored as a
+   * {@link TerrainBlock}
+   * @throws IOException if the save cannot be read or isn't a valid save
+   */
+  static Map<String, Object> read(Reader reader) throws IOException {
+    try {
+      return new YamlGameReader(reader).readGame();
+    } catch (YAMLException | IllegalArgumentException e) {
+      throw new IOException("corrupt save", e);
+    }
+  }
+
+  /**
+   * Reads the document containing the game's map
+   *
+   * @return map containing details of the game
+   * @throws IOException if the document isn't a valid save
+   */
+  private Map<String, Object> readGame() throws IOException {
+    expect(Event.ID.StreamStart);
+    expect(Event.ID.DocumentStart);
+    expect(Event.ID.MappingStart);
+
+    Map<String, Object> map = new LinkedHashMap<>();
+    Rows terrain = null;
+    Rows trees = null;
+    while (!peek().is(Event.ID.MappingEnd)) {
+      String key = String.valueOf(readValue());
+      // Stream the terrain and trees, unless they're something unexpected
+      // like an alias, in which case they're read normally
+      if (key.equals("terrain") && peek().is(Event.ID.SequenceStart)) {
+        terrain = readRows();
+      } else if (key.equals("trees") && peek().is(Event.ID.SequenceStart)) {
+        trees = readRows();
+      } else {
+        map.put(key, readValue());
+      }
+    }
+    expect(Event.ID.MappingEnd);
+
+    if (terrain != null) {
+      if (trees == null) throw new IOException("no trees");
+      if (!Arrays.equals(terrain.getWidths(), trees.getWidths())) {
+        throw new IOException("terrain and trees are different sizes");
+      }
+      boolean[] treeStates = new boolean[trees.count];
+      for (int i = 0; i < trees.count; i++) {
+        treeStates[i] = trees.values[i] == 1;
+      }
+      map.put("terrain", TerrainBlock.fromArrays(
+        terrain.getWidths(),
+        terrain.values,
+        treeStates
+      ));
+    }
+    return map;
+  }
+
+  /**
+   * Reads a list of rows of numbers, such as the terrain heights, into
+   * primitive arrays
+   *
+   * @return rows that were read
+   * @throws IOException if the list isn't a list of rows of numbers
+   */
+  private Rows readRows() throws IOException {
+    Rows rows = new Rows();
+    expect(Event.ID.SequenceStart);
+    while (!peek().is(Event.ID.SequenceEnd)) {
+      expect(Event.ID.SequenceStart);
+      int width = 0;
+      while (!peek().is(Event.ID.SequenceEnd)) {
+        rows.add(readNumber());
+        width++;
+      }
+      expect(Event.ID.SequenceEnd);
+      rows.endRow(width);
+    }
+    expect(Event.ID.SequenceEnd);
+    return rows;
+  }
+
+  /**
+   * Reads a number from a scalar, parsing it directly if possible as the
+   * terrain contains thousands of them
+   *
+   * @return the number
+   * @throws IOException if the next event isn't a number
+   */
+  private double readNumber() throws IOException {
+    Event event = next();
+    if (event instanceof ScalarEvent) {
+      ScalarEvent scalar = (ScalarEvent) event;
+      if (scalar.getTag() == null && scalar.isPlain()) {
+        try {
+          return Double.parseDouble(scalar.getValue());
+        } catch (NumberFormatException ignored) {
+          // Fall back to resolving it like any other scalar (e.g. ".inf")
+        }
+      }
+      Object value = toValue(scalar);
+      if (value instanceof Number) return ((Number) value).doubleValue();
+    }
+    throw new IOException("expected a number, got " + event);
+  }
+
+  /**
+   * Reads the next value, which may be a scalar, list, map or alias
+   *
+   * @return the value
+   * @throws IOException if the next events aren't a valid value
+   */
+  private Object readValue() throws IOException {
+    Event event = next();
+    if (event.is(Event.ID.Alias)) {
+      String anchor = ((AliasEvent) event).getAnchor();
+      if (!anchors.containsKey(anchor)) {
+        throw new IOException("unknown anchor " + anchor);
+      }
+      return anchors.get(anchor);
+    } else if (event.is(Event.ID.Scalar)) {
+      return anchor(event, toValue((ScalarEvent) event));
+    } else if (event.is(Event.ID.SequenceStart)) {
+      ArrayList<Object> list = new ArrayList<>();
+      // Register the anchor before reading the contents, in case they refer
+      // to the list
+      Object value = anchor(event, list);
+      while (!peek().is(Event.ID.SequenceEnd)) list.add(readValue());
+      next();
+      return value;
+    } else if (event.is(Event.ID.MappingStart)) {
+      Map<Object, Object> map = new LinkedHashMap<>();
+      Object value = anchor(event, map);
+      while (!peek().is(Event.ID.MappingEnd)) {
+        map.put(readValue(), readValue());
+      }
+      next();
+      return value;
+    }
+    throw new IOException("unexpected " + event);
+  }
+
+  /**
+   * Records the value an event's anchor refers to, if it has one
+   *
+   * @param event event that may have an anchor
+   * @param value value created from the event
+   * @return the value
+   */
+  private Object anchor(Event event, Object value) {
+    String anchor = ((NodeEvent) event).getAnchor();
+    if (anchor != null) anchors.put(anchor, value);
+    return value;
+  }
+
+  /**
+   * Converts a scalar to a value of the type SnakeYAML would load it as
+   *
+   * @param scalar scalar to convert
+   * @return the value, may be null
+   * @throws IOException if the scalar's tag is a number but it isn't one
+   */
+  private Object toValue(ScalarEvent scalar) throws IOException {
+    String value = scalar.getValue();
+    String tagName = scalar.getTag();
+    Tag tag;
+    if (tagName == null || tagName.equals("!")) {
+      tag = resolver.resolve(
+        NodeId.scalar,
+        value,
+        scalar.getImplicit().canOmitTagInPlainScalar()
+      );
+    } else {
+      tag = new Tag(tagName);
+    }
+
+    try {
+      if (tag.equals(Tag.NULL)) return null;
+      if (tag.equals(Tag.BOOL)) {
+        String lower = value.toLowerCase(Locale.ROOT);
+        return lower.equals("true") || lower.equals("yes")
+          || lower.equals("on");
+      }
+      if (tag.equals(Tag.INT)) return parseInt(value);
+      if (tag.equals(Tag.FLOAT)) return parseFloat(value);
+    } catch (NumberFormatException e) {
+      throw new IOException("invalid number " + value, e);
+    }
+    return value;
+  }
+
+  /**
+   * Parses a YAML integer, returning the smallest type that fits it like
+   * SnakeYAML does
+   *
+   * @param value text of the integer
+   * @return Integer, Long or BigInteger
+   * @throws NumberFormatException if the text isn't an integer
+   */
+  private static Number parseInt(String value) {
+    String text = value.replace("_", "");
+    String sign = "";
+    if (text.startsWith("-") || text.startsWith("+")) {
+      if (text.startsWith("-")) sign = "-";
+      text = text.substring(1);
+    }
+    int radix = 10;
+    if (text.startsWith("0b")) {
+      radix = 2;
+      text = text.substring(2);
+    } else if (text.startsWith("0x")) {
+      radix = 16;
+      text = text.substring(2);
+    } else if (text.startsWith("0") && text.length() > 1) {
+      radix = 8;
+      text = text.substring(1);
+    }
+    BigInteger number = new BigInteger(sign + text, radix);
+    if (number.bitLength() < 32) return number.intValue();
+    if (number.bitLength() < 64) return number.longValue();
+    return number;
+  }
+
+  /**
+   * Parses a YAML float
+   *
+   * @param value text of the float
+   * @return the number
+   * @throws NumberFormatException if the text isn't a float
+   */
+  private static Double parseFloat(String value) {
+    String text = value.replace("_", "").toLowerCase(Locale.ROOT);
+    switch (text) {
+      case ".inf":
+      case "+.inf":
+        return Double.POSITIVE_INFINITY;
+      case "-.inf":
+        return Double.NEGATIVE_INFINITY;
+      case ".nan":
+        return Double.NaN;
+      default:
+        return Double.valueOf(text);
+    }
+  }
+
+  /**
+   * Gets the next event without consuming it
+   *
+   * @return the next event
+   * @throws IOException if the save ends unexpectedly
+   */
+  private Event peek() throws IOException {
+    if (peeked == null) {
+      if (!events.hasNext()) throw new IOException("unexpected end of save");
+      peeked = events.next();
+    }
+    return peeked;
+  }
+
+  /**
+   * Consumes the next event
+   *
+   * @return the event
+   * @throws IOException if the save ends unexpectedly
+   */
+  private Event next() throws IOException {
+    Event event = peek();
+    peeked = null;
+    return event;
+  }
+
+  /**
+   * Consumes the next event, checking it's of the expected type
+   *
+   * @param id expected type of event
+   * @throws IOException if the event is of a different type
+   */
+  private void expect(Event.ID id) throws IOException {
+    Event event = next();
+    if (!event.is(id)) {
+      throw new IOException("expected " + id + ", got " + event);
+    }
+  }
+
+  /**
+   * Growable list of rows of numbers stored in primitive arrays
+   */
+  private static class Rows {
+    /**
+     * Values of every row, one after another
+     */
+    double[] values = new double[INITIAL_TILE_CAPACITY];
+    /**
+     * Number of values that have been added
+     */
+    int count;
+    /**
+     * Number of values in each row
+     */
+    private int[] widths = new int[64];
+    /**
+     * Number of rows that have been added
+     */
+    private int rows;
+
+    /**
+     * Adds a value to the current row
+     *
+     * @param value value to add
+     */
+    void add(double value) {
+      if (count == values.length) {
+        values = Arrays.copyOf(values, values.length * 2);
+      }
+      values[count++] = value;
+    }
+
+    /**
+     * Ends the current row
+     *
+     * @param width number of values added to the row
+     */
+    void endRow(int width) {
+      if (rows == widths.length) widths = Arrays.copyOf(widths, rows * 2);
+      widths[rows++] = width;
+    }
+
+    /**
+     * Gets the number of values in each row
+     *
+     * @return array with an entry for each row
+     */
+    int[] getWidths() {
+      return Arrays.copyOf(widths, rows);
+    }
+  }
+}
@@ -0,0 +1,134 @@
+package com.mrbbot.civilisation.save;
+
+import org.yaml.snakeyaml.Yaml;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Save format storing games as YAML. This was the original save format, and
+ * is still the default as saves can be easily read and edited by hand.
+ * <p>
+ * Saves end with a comment containing their checksum. Saves edited by hand
+ * should have this line removed, or they'll be treated as corrupt and only
+ * loaded if no older save can be.
+ */
+public class YamlSaveFormat implements SaveFormat {
+  /**
+   * Instance of the external library used for saving/parsing YAML game saves.
+   */
+  private static final Yaml YAML = new Yaml();
+  /**
+   * Pattern matching the comment at the end of a save containing its
+   * checksum
+   */
+  private static final Pattern CHECKSUM_PATTERN =
+    Pattern.compile("\\n# crc32 ([0-9a-f]{8})\\n");
+  /**
+   * Length of the checksum comment in bytes
+   */
+  private static final int CHECKSUM_TRAILER_LENGTH =
+    checksumTrailerString(0).length();
+
+  /**
+   * Gets the file extension used by YAML saves
+   *
+   * @return ".yml"
+   */
+  @Override
+  public String getExtension() {
+    return ".yml";
+  }
+
+  /**
+   * Dumps a game's map to an output as YAML
+   *
+   * @param map map containing details of the game
+   * @param out output to write to
+   * @throws IOException if the output cannot be written to
+   */
+  @Override
+  public void write(Map<String, Object> map, OutputStream out)
+    throws IOException {
+    // Flush rather than close the writer, so the caller can keep writing to
+    // the output
+    Writer writer = new OutputStreamWriter(out);
+    YAML.dump(map, writer);
+    writer.flush();
+  }
+
+  /**
+   * Parses a game's map from a YAML file. The file is streamed (see
+   * {@link YamlGameReader}), so the terrain is returned as a
+   * {@link com.mrbbot.civilisation.logic.map.tile.TerrainBlock} rather than
+   * lists.
+   *
+   * @param file file to read from
+   * @return map containing details of the game
+   * @throws IOException if the file cannot be read or isn't a valid save
+   */
+  @Override
+  public Map<String, Object> read(File file) throws IOException {
+    // Try and create a file reader, closing it when the game state has been
+    // read
+    try (Reader reader = new BufferedReader(new FileReader(file))) {
+      return YamlGameReader.read(reader);
+    }
+  }
+
+  /**
+   * Gets the length of the checksum comment at the end of YAML saves
+   *
+   * @return number of bytes in the comment
+   */
+  @Override
+  public int getChecksumTrailerLength() {
+    return CHECKSUM_TRAILER_LENGTH;
+  }
+
+  /**
+   * Creates the comment containing a YAML save's checksum
+   *
+   * @param checksum CRC-32 checksum of the save's contents
+   * @return comment as ASCII bytes
+   */
+  @Override
+  public byte[] checksumTrailer(long checksum) {
+    return checksumTrailerString(checksum).getBytes(StandardCharsets.US_ASCII);
+  }
+
+  /**
+   * Reads the checksum from the comment at the end of a YAML save
+   *
+   * @param trailer last bytes of the save
+   * @return checksum in the comment, or -1 if there isn't one
+   */
+  @Override
+  public long readChecksumTrailer(byte[] trailer) {
+    Matcher matcher = CHECKSUM_PATTERN.matcher(
+      new String(trailer, StandardCharsets.US_ASCII)
+    );
+    if (!matcher.matches()) return -1;
+    return Long.parseLong(matcher.group(1), 16);
+  }
+
+  /**
+   * Formats the comment containing a YAML save's checksum
+   *
+   * @param checksum CRC-32 checksum of the save's contents
+   * @return comment on its own line
+   */
+  private static String checksumTrailerString(long checksum) {
+    return String.format("\n# crc32 %08x\n", checksum);
+  }
+}
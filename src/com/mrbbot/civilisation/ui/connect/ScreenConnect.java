@@ -1,7 +1,8 @@
 package com.mrbbot.civilisation.ui.connect;
 
 import com.mrbbot.civilisation.logic.map.MapSize;
-import com.mrbbot.civilisation.net.CivilisationServer;
+import com.mrbbot.civilisation.save.SaveFormat;
+import com.mrbbot.civilisation.save.SaveMetadata;
 import com.mrbbot.civilisation.ui.Screen;
 import com.mrbbot.civilisation.ui.UIHelpers;
 import com.mrbbot.generic.net.ClientOnly;
@@ -19,13 +20,10 @@ import javafx.scene.layout.StackPane;
 import javafx.stage.Stage;
 
 import java.io.File;
-import java.io.FileReader;
 import java.io.IOException;
-import java.nio.file.Files;
-import java.nio.file.Path;
-import java.nio.file.Paths;
+import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Map;
+import java.util.List;
 import java.util.stream.Collectors;
 
 /**
@@ -60,17 +58,26 @@ public class ScreenConnect extends Screen {
    */
   private class GameSave {
     /**
-     * Path to the game save file, should end with .yml.
+     * Path to the game save file, should end with a save file extension.
      */
     private String filePath;
     /**
-     * Name of the game, loaded from the file
+     * Text describing the save in the save list
      */
-    private String gameName;
+    private String label;
 
-    private GameSave(String filePath, String gameName) {
+    private GameSave(String filePath, SaveMetadata metadata) {
       this.filePath = filePath;
-      this.gameName = gameName;
+      // Include the details from the index so similarly named games can be
+      // told apart
+      this.label = String.format(
+        "%s (%s, turn %d, %d player%s)",
+        metadata.name,
+        metadata.mapSize,
+        metadata.turn + 1,
+        metadata.players.size(),
+        metadata.players.size() == 1 ? "" : "s"
+      );
     }
   }
 
@@ -83,9 +90,10 @@ public class ScreenConnect extends Screen {
    */
   private final ServerCreator serverCreator;
   /**
-   * Array containing all the game saves in the "saves" directory
+   * Array containing all the game saves in the "saves" directory. Empty until
+   * the saves have been listed in the background.
    */
-  private GameSave[] saves;
+  private volatile GameSave[] saves = new GameSave[0];
 
   /**
    * User's selected choice. Determines what UI elements to enable and how to
@@ -154,13 +162,37 @@ public class ScreenConnect extends Screen {
     this.clientCreator = clientCreator;
     this.serverCreator = serverCreator;
 
-    // Load all available game saves
+    // Load all available game saves in a separate thread so the UI thread
+    // isn't blocked by reading lots of files
+    Thread savesThread = new Thread(() -> {
+      GameSave[] loadedSaves = listSaves();
+      Platform.runLater(() -> {
+        saves = loadedSaves;
+        // Refresh the name list if the user is already waiting for it
+        if (choice == Choice.LOAD && nameList != null) {
+          resetForChoice(Choice.LOAD);
+        }
+      });
+    });
+    savesThread.setName("Saves");
+    savesThread.setDaemon(true);
+    savesThread.start();
+  }
+
+  /**
+   * Lists all the game saves in the "saves" directory. Only each save's index
+   * is read, unless it's missing or out of date. Called off the UI thread.
+   *
+   * @return array of game saves
+   */
+  private GameSave[] listSaves() {
+    List<GameSave> loadedSaves = new ArrayList<>();
     try {
       // Get a reference to the saves directory
       // ("current working directory/saves")
-      String savesDirectoryPath =
-        System.getProperty("user.dir") + File.separator + "saves";
-      File savesDirectory = new File(savesDirectoryPath);
+      File savesDirectory = new File(
+        System.getProperty("user.dir") + File.separator + "saves"
+      );
 
       // Check if the folder exists, otherwise make it
       if (!savesDirectory.exists()) {
@@ -168,31 +200,23 @@ public class ScreenConnect extends Screen {
         if (!made) throw new IOException("unable to create saves directory");
       }
 
-      // Load the list of GameSave objects
-      saves = Files.list(Paths.get(savesDirectoryPath))
-        // Convert path objects to their absolute file path
-        .map(Path::toString)
-        // We only want files ending with .yml
-        .filter(path -> path.endsWith(".yml"))
-        .map(path -> {
-          // Load the game save as we normally would to extract the name
-          String name = "Unknown";
-          try (FileReader reader = new FileReader(path)) {
-            //noinspection unchecked
-            Map<String, Object> map =
-              CivilisationServer.YAML.loadAs(reader, Map.class);
-            name = (String) map.get("name");
-          } catch (IOException e) {
-            e.printStackTrace();
-          }
-          // Return a new game save object with the required data
-          return new GameSave(path, name);
-        })
-        // Convert the stream to an array
-        .toArray(GameSave[]::new);
+      // We only want files with a save file extension
+      File[] files = savesDirectory.listFiles(SaveFormat::isSave);
+      if (files == null) throw new IOException("unable to list saves");
+      for (File file : files) {
+        try {
+          // Return a new game save object with the data from the index
+          loadedSaves.add(
+            new GameSave(file.getPath(), SaveMetadata.load(file))
+          );
+        } catch (IOException e) {
+          e.printStackTrace();
+        }
+      }
     } catch (IOException e) {
       e.printStackTrace();
     }
+    return loadedSaves.toArray(new GameSave[0]);
   }
 
   /**
@@ -295,7 +319,7 @@ public class ScreenConnect extends Screen {
         // Get existing game names
         nameList.addAll(
           Arrays.stream(saves)
-            .map(save -> save.gameName)
+            .map(save -> save.label)
             .collect(Collectors.toList())
         );
         nameBox.setDisable(false);
@@ -356,13 +380,13 @@ public class ScreenConnect extends Screen {
             clientCreator.createClient("127.0.0.1", port, id);
             break;
           case LOAD:
-            // Get the existing game name
-            String loadGameName = nameBox.getValue();
-            // Try and find the game save with that name, we should be able to
-            // because these names come from the list of game saves
+            // Get the existing game's label
+            String loadGameLabel = nameBox.getValue();
+            // Try and find the game save with that label, we should be able
+            // to because these labels come from the list of game saves
             GameSave loadGameSave = null;
             for (GameSave gameSave : saves) {
-              if (gameSave.gameName.equals(loadGameName)) {
+              if (gameSave.label.equals(loadGameLabel)) {
                 loadGameSave = gameSave;
                 break;
               }
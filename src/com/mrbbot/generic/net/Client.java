@@ -1,7 +1,8 @@
 package com.mrbbot.generic.net;
 
 import java.io.IOException;
-import java.net.Socket;
+import java.net.InetSocketAddress;
+import java.nio.channels.SocketChannel;
 import java.util.function.Predicate;
 
 /**
@@ -15,12 +16,17 @@ public class Client<T> extends BaseBroadcaster<T> {
    */
   private Connection<T> connection;
   /**
-   * TCP socket for transferring data to and from the server
+   * TCP channel for transferring data to and from the server
    */
-  private Socket socket;
+  private SocketChannel channel;
+  /**
+   * Event loop performing all network I/O for the connection
+   */
+  private EventLoop eventLoop;
 
   /**
-   * Creates a new client and connects to the specified server
+   * Creates a new client that exchanges data using Java serialization and
+   * connects to the specified server
    *
    * @param host    host name of the server
    * @param port    port number the server is listening on
@@ -34,24 +40,105 @@ public class Client<T> extends BaseBroadcaster<T> {
     String id,
     Handler<T> handler
   ) throws IOException {
-    // Create the TCP socket
-    socket = new Socket(host, port);
-    // Create a connection object that waits for data from the socket and
+    this(host, port, id, handler, new SerializationCodec<>());
+  }
+
+  /**
+   * Creates a new client and connects to the specified server
+   *
+   * @param host    host name of the server
+   * @param port    port number the server is listening on
+   * @param id      id for this connection
+   * @param handler data handler for when data is received from the server
+   * @param codec   codec for converting data to and from bytes, must match
+   *                the server's
+   * @throws IOException if there was a connection error
+   */
+  public Client(
+    String host,
+    int port,
+    String id,
+    Handler<T> handler,
+    Codec<T> codec
+  ) throws IOException {
+    this(host, port, id, handler, codec, new ConnectionOptions());
+  }
+
+  /**
+   * Creates a new client and connects to the specified server
+   *
+   * @param host    host name of the server
+   * @param port    port number the server is listening on
+   * @param id      id for this connection
+   * @param handler data handler for when data is received from the server
+   * @param codec   codec for converting data to and from bytes, must match
+   *                the server's
+   * @param options options controlling the connection's outbound queue
+   * @throws IOException if there was a connection error
+   */
+  public Client(
+    String host,
+    int port,
+    String id,
+    Handler<T> handler,
+    Codec<T> codec,
+    ConnectionOptions options
+  ) throws IOException {
+    this(host, port, id, null, handler, codec, options);
+  }
+
+  /**
+   * Creates a new client, connects to the specified server and joins a room
+   * on it
+   *
+   * @param host    host name of the server
+   * @param port    port number the server is listening on
+   * @param id      id for this connection
+   * @param room    room to join on the server, or null for the default room
+   * @param handler data handler for when data is received from the server
+   * @param codec   codec for converting data to and from bytes, must match
+   *                the server's
+   * @param options options controlling the connection's outbound queue
+   * @throws IOException if there was a connection error
+   */
+  public Client(
+    String host,
+    int port,
+    String id,
+    String room,
+    Handler<T> handler,
+    Codec<T> codec,
+    ConnectionOptions options
+  ) throws IOException {
+    // Create the TCP channel, blocking until the connection is made, then
+    // switch to non-blocking mode for the event loop
+    channel = SocketChannel.open(new InetSocketAddress(host, port));
+    channel.configureBlocking(false);
+    channel.socket().setTcpNoDelay(true);
+    eventLoop = new EventLoop("Client", options.threadFactory);
+    // Create a connection object that waits for data from the channel and
     // facilitates sending data to the server
     connection = new Connection<>(
-      socket,
+      channel,
+      eventLoop,
+      codec,
+      options,
       // Set the ID of the connection when one is received
       Connection::setId,
       (connection, data) -> {
         if (data != null) {
           // Pass data to the handler if it isn't null
           handler.accept(connection, data);
+        } else {
+          // Otherwise the connection has closed, so the event loop has
+          // nothing left to do
+          eventLoop.close();
         }
       },
       this
     );
-    // Send the desired ID as the first packet
-    connection.send(id);
+    // Send the desired ID and room as the first packet
+    connection.sendId(id, room);
   }
 
   /**
@@ -89,11 +176,24 @@ public class Client<T> extends BaseBroadcaster<T> {
   }
 
   /**
-   * Closes the client's socket, disconnecting from the server
+   * Gets the connection to the server, for checking its queue depth and write
+   * latency
+   *
+   * @return connection to the server
+   */
+  public Connection<T> getConnection() {
+    return connection;
+  }
+
+  /**
+   * Closes the client's channel, disconnecting from the server
    *
    * @throws IOException if there was a networking error
    */
   public void close() throws IOException {
-    socket.close();
+    // Close the channel, notifying the handler that the connection closed
+    connection.close(null);
+    // Stop the event loop as it has nothing left to do
+    eventLoop.close();
   }
 }
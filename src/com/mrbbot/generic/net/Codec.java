@@ -0,0 +1,46 @@
+package com.mrbbot.generic.net;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * Interface describing how data is converted to and from bytes so it can be
+ * sent over the network. Codecs are shared between every connection of a
+ * client or server so shouldn't store any state, unless they override
+ * {@link #forConnection()} to give each connection its own instance.
+ *
+ * @param <T> type of data to be exchanged over the network
+ */
+public interface Codec<T> {
+  /**
+   * Writes data to an output
+   *
+   * @param data data to be written
+   * @param out  output to write the data to
+   * @throws IOException if the data cannot be encoded
+   */
+  void encode(T data, DataOutput out) throws IOException;
+
+  /**
+   * Reads data from an input
+   *
+   * @param in input containing data written by {@link #encode(Object,
+   *           DataOutput)}
+   * @return the decoded data
+   * @throws IOException if the input doesn't contain valid data
+   */
+  T decode(DataInput in) throws IOException;
+
+  /**
+   * Gets the codec a new connection should use. Stateless codecs return
+   * themselves, letting broadcasts encode data once for every connection.
+   * Stateful codecs return a new instance, which will only ever be used to
+   * encode and decode one connection's data, in order.
+   *
+   * @return codec for a single connection
+   */
+  default Codec<T> forConnection() {
+    return this;
+  }
+}
@@ -0,0 +1,192 @@
+package com.mrbbot.generic.net;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Algorithms that can be used to compress large frames. Each side of a
+ * connection lists the algorithms it supports when sending its ID (see
+ * {@link ConnectionOptions#compression}), then compresses frames it sends with
+ * the first of its own algorithms the other side supports.
+ */
+public enum Compression {
+  /**
+   * Deflate (as used by zip files). Slower, but produces smaller frames, so
+   * best for slow links.
+   */
+  DEFLATE(1) {
+    @Override
+    byte[] compress(byte[] data, int offset, int length) {
+      Deflater deflater = new Deflater();
+      try {
+        deflater.setInput(data, offset, length);
+        deflater.finish();
+        // Compressed data is usually smaller, but make sure there's space for
+        // data that doesn't compress
+        byte[] buffer = new byte[length + length / 1000 + 64];
+        int compressedLength = 0;
+        while (!deflater.finished()) {
+          if (compressedLength == buffer.length) {
+            buffer = Arrays.copyOf(buffer, buffer.length * 2);
+          }
+          compressedLength += deflater.deflate(
+            buffer,
+            compressedLength,
+            buffer.length - compressedLength
+          );
+        }
+        return Arrays.copyOf(buffer, compressedLength);
+      } finally {
+        deflater.end();
+      }
+    }
+
+    @Override
+    byte[] decompress(byte[] data, int offset, int length, int originalLength)
+      throws IOException {
+      Inflater inflater = new Inflater();
+      try {
+        inflater.setInput(data, offset, length);
+        byte[] original = new byte[initialCapacity(length, originalLength)];
+        int decompressedLength = 0;
+        while (!inflater.finished()) {
+          int read;
+          if (decompressedLength < originalLength) {
+            if (decompressedLength == original.length) {
+              original = grow(original, decompressedLength + 1, originalLength);
+            }
+            read = inflater.inflate(
+              original,
+              decompressedLength,
+              original.length - decompressedLength
+            );
+          } else {
+            // The output's full, so check the stream doesn't contain more
+            read = inflater.inflate(new byte[1]);
+            if (read != 0) throw new IOException("deflated frame too long");
+          }
+          decompressedLength += read;
+          if (read == 0 && !inflater.finished()
+            && (inflater.needsInput() || inflater.needsDictionary())) {
+            throw new IOException("truncated deflated frame");
+          }
+        }
+        if (decompressedLength != originalLength) {
+          throw new IOException("deflated frame too short");
+        }
+        return original;
+      } catch (DataFormatException e) {
+        throw new IOException("corrupt deflated frame", e);
+      } finally {
+        inflater.end();
+      }
+    }
+  },
+  /**
+   * Simple LZ77 compression (see {@link LzCompression}). Much faster than
+   * deflate, but frames aren't compressed as much, so best for fast links.
+   */
+  LZ(2) {
+    @Override
+    byte[] compress(byte[] data, int offset, int length) {
+      return LzCompression.compress(data, offset, length);
+    }
+
+    @Override
+    byte[] decompress(byte[] data, int offset, int length, int originalLength)
+      throws IOException {
+      return LzCompression.decompress(data, offset, length, originalLength);
+    }
+  };
+
+  /**
+   * Number identifying this algorithm in ID and compressed frames
+   */
+  final byte id;
+
+  Compression(int id) {
+    this.id = (byte) id;
+  }
+
+  /**
+   * Compresses data
+   *
+   * @param data   array containing the data to compress
+   * @param offset position of the data in the array
+   * @param length number of bytes to compress
+   * @return compressed data
+   */
+  abstract byte[] compress(byte[] data, int offset, int length);
+
+  /**
+   * Decompresses data compressed by {@link #compress(byte[], int, int)}.
+   * Space for the original data is allocated as it's decompressed, so a frame
+   * claiming to be much longer than it is can't exhaust memory.
+   *
+   * @param data           array containing the compressed data
+   * @param offset         position of the compressed data in the array
+   * @param length         number of compressed bytes
+   * @param originalLength length of the data before it was compressed
+   * @return the original data
+   * @throws IOException if the compressed data is corrupt
+   */
+  abstract byte[] decompress(
+    byte[] data,
+    int offset,
+    int length,
+    int originalLength
+  ) throws IOException;
+
+  /**
+   * Most bytes to allocate for decompressed data before any of it has been
+   * decompressed. The length of the original data comes from the other side
+   * of the connection, so more space is only allocated as data is actually
+   * decompressed.
+   */
+  private static final int MAX_INITIAL_CAPACITY = 64 * 1024;
+
+  /**
+   * Gets the number of bytes to allocate for decompressed data at first
+   *
+   * @param length         number of compressed bytes
+   * @param originalLength claimed length of the original data
+   * @return initial size of the output array
+   */
+  static int initialCapacity(int length, int originalLength) {
+    // Most frames compress to between a quarter and a half of their size
+    long expected = Math.max((long) length * 4, MAX_INITIAL_CAPACITY);
+    return (int) Math.min(originalLength, expected);
+  }
+
+  /**
+   * Grows the array decompressed data is written to so it can fit more
+   *
+   * @param buffer         array to grow
+   * @param needed         number of bytes the array must be able to hold
+   * @param originalLength claimed length of the original data, which the
+   *                       array never grows beyond
+   * @return a larger copy of the array, or the array if it's already large
+   * enough
+   */
+  static byte[] grow(byte[] buffer, int needed, int originalLength) {
+    if (needed <= buffer.length) return buffer;
+    long doubled = Math.max((long) buffer.length * 2, needed);
+    return Arrays.copyOf(buffer, (int) Math.min(doubled, originalLength));
+  }
+
+  /**
+   * Gets an algorithm from its ID
+   *
+   * @param id number identifying the algorithm
+   * @return the algorithm, or null if it isn't known
+   */
+  static Compression fromId(byte id) {
+    for (Compression compression : values()) {
+      if (compression.id == id) return compression;
+    }
+    return null;
+  }
+}
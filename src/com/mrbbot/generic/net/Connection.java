@@ -1,26 +1,210 @@
 package com.mrbbot.generic.net;
 
+import com.mrbbot.generic.net.ConnectionOptions.OverflowPolicy;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
 import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
-import java.net.Socket;
-import java.util.Date;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.function.Predicate;
 
 /**
- * Class representing a connection between a client and a server or vice-versa
+ * Class representing a connection between a client and a server or vice-versa.
+ * Data is exchanged as length-prefixed frames over a non-blocking socket
+ * channel, with all reading and writing done by an {@link EventLoop}. Each
+ * frame starts with a kind byte saying what it contains. Data frames are
+ * converted to and from bytes by a {@link Codec}. Outgoing frames wait in a
+ * bounded queue until the event loop can write them, with
+ * {@link ConnectionOptions} deciding what happens when it fills up.
+ * <p>
+ * Each side lists the {@link Compression} algorithms it supports in its ID
+ * frame. Once the other side's list has been received, data frames larger
+ * than the compression threshold are compressed with an algorithm both sides
+ * support.
+ * <p>
+ * Clients can also name a room in their ID frame. A server keeps each room's
+ * connections separate, so broadcasts from a connection only reach the other
+ * connections in the same room.
+ * <p>
+ * If both sides support them, each side sends the other a heartbeat every
+ * {@link ConnectionOptions#heartbeatIntervalMillis}, which is replied to
+ * straight away. The replies give a rolling estimate of the round trip time,
+ * and a connection that hasn't received anything for
+ * {@link ConnectionOptions#heartbeatTimeoutMillis} is closed, so peers that
+ * disappear without closing the connection are noticed quickly.
+ * <p>
+ * Received data is passed to the input handler on the event loop, unless
+ * {@link ConnectionOptions#handlerExecutor} is set. The handler is then
+ * called on that executor instead, so it can block (e.g. on a database or
+ * another connection) without holding up every other connection on the
+ * event loop.
  *
  * @param <T> type of data to be exchanged over the network
  */
-public class Connection<T> implements Runnable, Broadcaster<T> {
+public class Connection<T> implements EventLoop.ReadyHandler, Broadcaster<T> {
+  /**
+   * Number of bytes used to store the length of each frame
+   */
+  private static final int FRAME_HEADER_LENGTH = 4;
+  /**
+   * Kind of frame containing the ID of the sender, sent once when the
+   * connection is established
+   */
+  private static final byte FRAME_ID = 0;
+  /**
+   * Kind of frame containing data encoded with the connection's codec
+   */
+  private static final byte FRAME_DATA = 1;
+  /**
+   * Kind of frame containing a compressed data frame's payload, preceded by
+   * the algorithm's ID and the payload's original length
+   */
+  private static final byte FRAME_COMPRESSED = 2;
+  /**
+   * Kind of frame containing a heartbeat, holding the sender's
+   * {@link System#nanoTime()} when it was sent
+   */
+  private static final byte FRAME_PING = 3;
+  /**
+   * Kind of frame replying to a heartbeat, holding the time from the
+   * heartbeat it's replying to
+   */
+  private static final byte FRAME_PONG = 4;
+  /**
+   * Flag in the ID frame's capabilities saying that side replies to
+   * heartbeats
+   */
+  private static final byte CAPABILITY_HEARTBEATS = 1;
+  /**
+   * Weight given to each new round trip time measurement in the rolling
+   * estimate
+   */
+  private static final double ROUND_TRIP_TIME_WEIGHT = 0.125;
+  /**
+   * Number of bytes between a compressed frame's kind and the compressed data
+   * (the algorithm's ID and the original length)
+   */
+  private static final int COMPRESSED_HEADER_LENGTH = 5;
+  /**
+   * Largest frame that will be accepted from the other side. Anything larger
+   * is treated as a corrupt stream and closes the connection.
+   */
+  private static final int MAX_FRAME_LENGTH = 64 * 1024 * 1024;
+  /**
+   * Initial size of the buffer incoming data is read into. Grows to fit the
+   * largest frame received.
+   */
+  private static final int INITIAL_READ_BUFFER_SIZE = 8 * 1024;
+  /**
+   * Maximum number of frames written by a single gathering write
+   */
+  private static final int MAX_GATHERED_FRAMES = 64;
+  /**
+   * Weight given to each new sample when updating the average write latency
+   */
+  private static final double LATENCY_SMOOTHING = 0.125;
+
+  /**
+   * Frame waiting in the outbound queue
+   */
+  private static class QueuedFrame {
+    /**
+     * Buffer containing the frame, its position tracks how much has been
+     * written
+     */
+    final ByteBuffer buffer;
+    /**
+     * Value of {@link System#nanoTime()} when the frame was queued
+     */
+    final long queuedAt;
+
+    /**
+     * Creates a new queued frame
+     *
+     * @param buffer buffer containing the frame
+     */
+    QueuedFrame(ByteBuffer buffer) {
+      this.buffer = buffer;
+      this.queuedAt = System.nanoTime();
+    }
+  }
+
   /**
-   * Stream for sending data to the other side
+   * Channel for sending data to and receiving data from the other side
    */
-  private ObjectOutputStream outputStream;
+  private final SocketChannel channel;
   /**
-   * Stream for receiving data from the other side
+   * Event loop that performs all reads and writes for this connection
    */
-  private ObjectInputStream inputStream;
+  private final EventLoop eventLoop;
+  /**
+   * Codec for converting data to and from bytes
+   */
+  private final Codec<T> codec;
+  /**
+   * Whether the codec is stateful and only used by this connection, in which
+   * case frames can't be shared with other connections and must be queued in
+   * the order they were encoded
+   */
+  private final boolean ownCodec;
+  /**
+   * Algorithm used to compress large frames sent to the other side, or null
+   * if frames shouldn't be compressed. Chosen when the other side's ID is
+   * received.
+   */
+  private volatile Compression compression;
+  /**
+   * Buffer incoming data is read into until a complete frame is available
+   */
+  private ByteBuffer readBuffer;
+  /**
+   * Options controlling the size of the outbound queue
+   */
+  private final ConnectionOptions options;
+  /**
+   * Frames waiting to be written to the channel. Also used as the lock
+   * guarding the queue and the statistics below, and waited on by senders
+   * blocked on a full queue.
+   */
+  private final ArrayDeque<QueuedFrame> writeQueue;
+  /**
+   * Total number of bytes left to write in the outbound queue
+   */
+  private long queuedBytes;
+  /**
+   * Number of frames discarded because the outbound queue was full
+   */
+  private long droppedFrames;
+  /**
+   * Exponentially weighted average time between frames being queued and
+   * being completely written, in nanoseconds
+   */
+  private double averageWriteLatency;
+  /**
+   * Longest time between a frame being queued and being completely written,
+   * in nanoseconds
+   */
+  private long maxWriteLatency;
+  /**
+   * Array reused for passing queued frames to gathering writes. Only used by
+   * the event loop.
+   */
+  private final ByteBuffer[] gatherBuffers;
+  /**
+   * Whether a task to flush the write queue has already been submitted to the
+   * event loop
+   */
+  private final AtomicBoolean flushScheduled;
   /**
    * Function to be called when an ID is received from the other side
    */
@@ -29,114 +213,769 @@ public class Connection<T> implements Runnable, Broadcaster<T> {
    * Function to be called when data is received from the other side.
    */
   private final Handler<T> inputHandler;
+  /**
+   * Executor the input handler is called on, or null if it's called directly
+   * on the event loop. Runs calls one at a time in the order data was
+   * received.
+   */
+  private final Executor handlerExecutor;
   /**
    * Whether the connection is open and data is being sent.
    */
-  private boolean open;
+  private final AtomicBoolean open;
   /**
    * ID of this connection. Used for broadcast targeting.
    */
-  private String id;
+  private volatile String id;
+  /**
+   * Room the other side asked to join in its ID frame, or null if it didn't
+   * name one
+   */
+  private volatile String room;
+  /**
+   * Broadcaster that actually handles sending data (the client, or the
+   * server's room this connection is in)
+   */
+  private volatile Broadcaster<T> broadcaster;
   /**
-   * Thread that checks for data being sent and interprets it.
+   * Value of {@link System#nanoTime()} when data was last received from the
+   * other side
    */
-  private Thread thread;
+  private volatile long lastReceivedAt;
   /**
-   * Broadcaster that actually handles sending data (the client or server)
+   * Rolling estimate of the round trip time in nanoseconds, or -1 if it
+   * hasn't been measured yet
    */
-  private Broadcaster<T> broadcaster;
+  private volatile long roundTripTime = -1;
 
   /**
    * Constructor for creating a new connection
    *
-   * @param socket       TCP socket for sending/receiving data to/from
+   * @param channel      non-blocking TCP channel for sending/receiving data
+   *                     to/from
+   * @param eventLoop    event loop to perform reads/writes on
+   * @param codec        codec for converting data to and from bytes, this
+   *                     connection uses {@link Codec#forConnection()}
+   * @param options      options controlling the outbound queue and logging
    * @param idHandler    function to be called when the connection gets an ID
    * @param inputHandler function to be called when generic data is received
    * @param broadcaster  broadcaster for sending data to other connections
-   * @throws IOException if there was an error creating in/output streams
    */
   Connection(
-    Socket socket,
+    SocketChannel channel,
+    EventLoop eventLoop,
+    Codec<T> codec,
+    ConnectionOptions options,
     IdHandler<T> idHandler,
     Handler<T> inputHandler,
     Broadcaster<T> broadcaster
-  ) throws IOException {
-    // Create streams for the socket
-    outputStream = new ObjectOutputStream(socket.getOutputStream());
-    inputStream = new ObjectInputStream(socket.getInputStream());
+  ) {
+    this.channel = channel;
+    this.eventLoop = eventLoop;
+    this.codec = codec.forConnection();
+    ownCodec = this.codec != codec;
+    // Dropping frames would leave a stateful codec's decoder out of step
+    if (ownCodec && options.overflowPolicy == OverflowPolicy.DROP_OLDEST) {
+      throw new IllegalArgumentException(
+        "stateful codecs can't be used with the DROP_OLDEST overflow policy"
+      );
+    }
+    readBuffer = ByteBuffer.allocate(INITIAL_READ_BUFFER_SIZE);
+    this.options = options;
+    writeQueue = new ArrayDeque<>();
+    gatherBuffers = new ByteBuffer[MAX_GATHERED_FRAMES];
+    flushScheduled = new AtomicBoolean(false);
 
     // Store handlers
     this.idHandler = idHandler;
     this.inputHandler = inputHandler;
+    handlerExecutor = options.handlerExecutor == null
+      ? null
+      : new SerialExecutor(options.handlerExecutor);
     this.broadcaster = broadcaster;
 
-    open = true;
+    open = new AtomicBoolean(true);
+    lastReceivedAt = System.nanoTime();
 
-    // Create a new thread that constantly attempts to read data
-    thread = new Thread(this);
-    thread.setName("Connection");
-    thread.start();
+    // Start waiting for data from the other side
+    eventLoop.register(channel, SelectionKey.OP_READ, this);
   }
 
   /**
-   * Sends the specified data to the receiving end of this connection
+   * Sends the specified data to the receiving end of this connection. The data
+   * is queued and written by the event loop, so this never blocks on the
+   * network. It may block waiting for space in the queue though, depending on
+   * the connection's {@link ConnectionOptions.OverflowPolicy}.
    *
-   * @param object data to be sent
+   * @param data data to be sent
    * @throws IOException if the data cannot be sent
    */
-  public void send(Object object) throws IOException {
+  public void send(T data) throws IOException {
+    if (ownCodec) {
+      // Frames from a stateful codec must be queued in the order they were
+      // encoded in
+      synchronized (codec) {
+        send(data, compress(encode(codec, data)));
+      }
+    } else {
+      send(data, compress(encode(codec, data)));
+    }
+  }
+
+  /**
+   * Sends data that has already been encoded. The encoded frame is reused if
+   * it was encoded with this connection's codec, otherwise the data is
+   * encoded again.
+   *
+   * @param encoded data that has already been encoded into a frame
+   * @throws IOException if the data cannot be sent
+   */
+  public void send(EncodedData<T> encoded) throws IOException {
+    if (canShareFrames() && encoded.getCodec() == codec) {
+      ByteBuffer frame = encoded.getFrame();
+      Compression compression = compressionFor(frame);
+      // The encoded data keeps the compressed frame, so it's only compressed
+      // once for every connection using the same algorithm
+      send(
+        encoded.getData(),
+        compression == null ? frame : encoded.getFrame(compression)
+      );
+    } else {
+      send(encoded.getData());
+    }
+  }
+
+  /**
+   * Gets the algorithm a data frame should be compressed with before being
+   * sent on this connection
+   *
+   * @param frame encoded data frame
+   * @return compression algorithm, or null if the frame shouldn't be
+   * compressed
+   */
+  private Compression compressionFor(ByteBuffer frame) {
+    int payloadLength = frame.remaining() - FRAME_HEADER_LENGTH - 1;
+    if (payloadLength < options.compressionThreshold) return null;
+    return compression;
+  }
+
+  /**
+   * Compresses a data frame if it should be compressed before being sent on
+   * this connection
+   *
+   * @param frame encoded data frame
+   * @return frame to send, either the original or a compressed frame
+   */
+  private ByteBuffer compress(ByteBuffer frame) {
+    Compression compression = compressionFor(frame);
+    return compression == null ? frame : compress(frame, compression);
+  }
+
+  /**
+   * Compresses a data frame's payload into a new compressed frame
+   *
+   * @param frame       encoded data frame
+   * @param compression algorithm to compress with
+   * @return compressed frame, or the original frame if compressing it didn't
+   * make it any smaller
+   */
+  static ByteBuffer compress(ByteBuffer frame, Compression compression) {
+    int payloadStart = frame.position() + FRAME_HEADER_LENGTH + 1;
+    int payloadLength = frame.limit() - payloadStart;
+    byte[] payload = new byte[payloadLength];
+    ByteBuffer view = frame.duplicate();
+    view.position(payloadStart);
+    view.get(payload);
+
+    byte[] compressed = compression.compress(payload, 0, payloadLength);
+    if (compressed.length + COMPRESSED_HEADER_LENGTH >= payloadLength) {
+      return frame;
+    }
+    byte[] compressedFrame = new byte[
+      FRAME_HEADER_LENGTH + 1 + COMPRESSED_HEADER_LENGTH + compressed.length
+    ];
+    ByteBuffer buffer = ByteBuffer.wrap(compressedFrame);
+    buffer.putInt(0);
+    buffer.put(FRAME_COMPRESSED);
+    buffer.put(compression.id);
+    buffer.putInt(payloadLength);
+    buffer.put(compressed);
+    return toFrame(compressedFrame);
+  }
+
+  /**
+   * Checks whether frames encoded with the shared codec can be sent on this
+   * connection with {@link #send(EncodedData)}
+   *
+   * @return whether this connection uses the shared codec
+   */
+  boolean canShareFrames() {
+    return !ownCodec;
+  }
+
+  /**
+   * Sends data that has already been encoded into a frame with
+   * {@link #encode(Codec, Object)}, and compressed if required. The same frame
+   * can be sent to any number of connections sharing a codec.
+   *
+   * @param data  data contained in the frame, used for logging
+   * @param frame encoded frame, this isn't modified
+   * @throws IOException if the data cannot be sent
+   */
+  private void send(T data, ByteBuffer frame) throws IOException {
+    if (!open.get()) throw new IOException("connection closed");
     // Log the send request
-    System.out.println(String.format(
-      "[%s] %s -> %s",
-      new Date().toString(),
-      object.getClass().getSimpleName(),
-      id
-    ));
-    // Send the data and flush the stream so that it's sent immediately
-    outputStream.writeObject(object);
-    outputStream.flush();
+    options.packetLog.sent(id, data);
+    // Each connection gets its own view of the frame so they can each track
+    // how much of it they've written
+    enqueue(frame.duplicate());
+  }
+
+  /**
+   * Encodes data into a frame ready to be sent
+   *
+   * @param codec codec for converting the data to bytes
+   * @param data  data to encode
+   * @param <T>   type of data to be exchanged over the network
+   * @return read-only buffer containing the frame
+   * @throws IOException if the data cannot be encoded
+   */
+  static <T> ByteBuffer encode(Codec<T> codec, T data) throws IOException {
+    // Encode the data, reserving space for the frame's length
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    DataOutputStream out = new DataOutputStream(bytes);
+    out.writeInt(0);
+    out.writeByte(FRAME_DATA);
+    codec.encode(data, out);
+    return toFrame(bytes.toByteArray());
+  }
+
+  /**
+   * Sends this side's ID to the other side. Must be the first thing sent.
+   *
+   * @param id ID of this side of the connection
+   * @throws IOException if the ID cannot be sent
+   */
+  void sendId(String id) throws IOException {
+    sendId(id, null);
+  }
+
+  /**
+   * Sends this side's ID to the other side, asking to join a room. Must be
+   * the first thing sent.
+   *
+   * @param id   ID of this side of the connection
+   * @param room room to join on the other side, or null to not name one
+   * @throws IOException if the ID cannot be sent
+   */
+  void sendId(String id, String room) throws IOException {
+    if (!open.get()) throw new IOException("connection closed");
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    DataOutputStream out = new DataOutputStream(bytes);
+    out.writeInt(0);
+    out.writeByte(FRAME_ID);
+    ValueCodec.writeString(out, id);
+    // List the compression algorithms this side can receive
+    out.writeByte(options.compression.length);
+    for (Compression supported : options.compression) {
+      out.writeByte(supported.id);
+    }
+    // Sides that don't know about rooms or heartbeats stop reading here. An
+    // empty room means the other side's default room.
+    ValueCodec.writeString(out, room == null ? "" : room);
+    out.writeByte(CAPABILITY_HEARTBEATS);
+    enqueue(toFrame(bytes.toByteArray()));
+  }
+
+  /**
+   * Creates a frame containing a single number, for heartbeats and replies
+   *
+   * @param kind  kind of frame
+   * @param value number to put in the frame
+   * @return buffer containing the frame
+   */
+  private static ByteBuffer controlFrame(byte kind, long value) {
+    ByteBuffer buffer = ByteBuffer.allocate(FRAME_HEADER_LENGTH + 1 + 8);
+    buffer.putInt(1 + 8);
+    buffer.put(kind);
+    buffer.putLong(value);
+    buffer.flip();
+    return buffer.asReadOnlyBuffer();
+  }
+
+  /**
+   * Fills in the length of a frame, wrapping it in a read-only buffer
+   *
+   * @param frame bytes of the frame, with space reserved at the start for its
+   *              length
+   * @return read-only buffer containing the frame
+   */
+  private static ByteBuffer toFrame(byte[] frame) {
+    ByteBuffer buffer = ByteBuffer.wrap(frame);
+    buffer.putInt(0, frame.length - FRAME_HEADER_LENGTH);
+    return buffer.asReadOnlyBuffer();
+  }
+
+  /**
+   * Queues a frame to be written to the channel, making sure the event loop
+   * will write it. If the queue is full, the connection's overflow policy is
+   * applied first.
+   *
+   * @param frame buffer containing the frame
+   * @throws IOException if the connection was closed because the queue was
+   *                     full
+   */
+  private void enqueue(ByteBuffer frame) throws IOException {
+    boolean queued = false;
+    synchronized (writeQueue) {
+      if (writeQueue.size() < options.maxQueuedFrames || makeRoom()) {
+        writeQueue.add(new QueuedFrame(frame));
+        queuedBytes += frame.remaining();
+        queued = true;
+      }
+    }
+    if (!queued) {
+      // The client isn't keeping up, so give up on it. This is done outside
+      // the lock as closing calls the handler.
+      IOException reason = new IOException("outbound queue full");
+      close(reason);
+      throw reason;
+    }
+    if (flushScheduled.compareAndSet(false, true)) {
+      eventLoop.execute(() -> {
+        flushScheduled.set(false);
+        flush();
+      });
+    }
+  }
+
+  /**
+   * Applies the overflow policy to make space for a new frame in the full
+   * outbound queue. Must be called holding the write queue's lock.
+   *
+   * @return whether there's now room for the frame, if not the connection
+   * should be closed
+   * @throws IOException if the connection was closed while waiting
+   */
+  private boolean makeRoom() throws IOException {
+    switch (options.overflowPolicy) {
+      case BLOCK:
+        // The event loop can't wait for itself to drain the queue
+        if (eventLoop.inEventLoop()) return true;
+        long deadline = System.nanoTime()
+          + TimeUnit.MILLISECONDS.toNanos(options.blockTimeoutMillis);
+        while (open.get() && writeQueue.size() >= options.maxQueuedFrames) {
+          long remaining = deadline - System.nanoTime();
+          if (remaining <= 0) break;
+          try {
+            TimeUnit.NANOSECONDS.timedWait(writeQueue, remaining);
+          } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("interrupted waiting to send", e);
+          }
+        }
+        if (!open.get()) throw new IOException("connection closed");
+        return writeQueue.size() < options.maxQueuedFrames;
+      case DROP_OLDEST:
+        // Find the oldest data frame that hasn't been partially written,
+        // dropping one that has would corrupt the stream. Heartbeats and their
+        // replies are kept, or a slow peer would be timed out.
+        Iterator<QueuedFrame> frames = writeQueue.iterator();
+        while (frames.hasNext()) {
+          QueuedFrame queued = frames.next();
+          byte kind = queued.buffer.get(FRAME_HEADER_LENGTH);
+          if (queued.buffer.position() == 0
+            && (kind == FRAME_DATA || kind == FRAME_COMPRESSED)) {
+            frames.remove();
+            queuedBytes -= queued.buffer.remaining();
+            droppedFrames++;
+            return true;
+          }
+        }
+        // Every queued data frame is partially written, so just let the queue
+        // grow
+        return true;
+      default:
+        return false;
+    }
+  }
+
+  /**
+   * Writes as much of the write queue to the channel as it will accept. Queued
+   * frames are written together with gathering writes, so lots of small
+   * frames (e.g. at the end of a turn) only take a few system calls. If some
+   * data couldn't be written, the event loop is asked to call back when the
+   * channel is writable again. Must be called on the event loop.
+   */
+  private void flush() {
+    if (!open.get()) return;
+    try {
+      // The lock is only held for non-blocking writes, so senders are never
+      // kept waiting on the network
+      synchronized (writeQueue) {
+        while (!writeQueue.isEmpty()) {
+          // Collect as many queued frames as will fit in a single write
+          int count = 0;
+          for (QueuedFrame queued : writeQueue) {
+            gatherBuffers[count++] = queued.buffer;
+            if (count == gatherBuffers.length) break;
+          }
+          queuedBytes -= channel.write(gatherBuffers, 0, count);
+
+          // Remove the frames that were written completely
+          boolean partial = false;
+          long now = System.nanoTime();
+          for (int i = 0; i < count; i++) {
+            if (gatherBuffers[i].hasRemaining()) {
+              partial = true;
+            } else if (!partial) {
+              recordWriteLatency(now - writeQueue.poll().queuedAt);
+            }
+            gatherBuffers[i] = null;
+          }
+          // Wake up any senders waiting for space
+          writeQueue.notifyAll();
+          // If the socket's send buffer is full, wait until it's writable
+          if (partial) break;
+        }
+        eventLoop.interestOps(
+          channel,
+          writeQueue.isEmpty()
+            ? SelectionKey.OP_READ
+            : SelectionKey.OP_READ | SelectionKey.OP_WRITE
+        );
+      }
+    } catch (IOException e) {
+      close(e);
+    }
   }
 
   /**
-   * Runner for the input checking thread.
+   * Updates the write latency statistics. Must be called holding the write
+   * queue's lock.
+   *
+   * @param latency time taken to write a frame, in nanoseconds
+   */
+  private void recordWriteLatency(long latency) {
+    if (averageWriteLatency == 0) {
+      averageWriteLatency = latency;
+    } else {
+      averageWriteLatency += (latency - averageWriteLatency)
+        * LATENCY_SMOOTHING;
+    }
+    maxWriteLatency = Math.max(maxWriteLatency, latency);
+  }
+
+  /**
+   * Gets the number of frames waiting to be written to this connection
+   *
+   * @return current depth of the outbound queue
+   */
+  public int getQueuedFrames() {
+    synchronized (writeQueue) {
+      return writeQueue.size();
+    }
+  }
+
+  /**
+   * Gets the number of bytes waiting to be written to this connection
+   *
+   * @return number of bytes in the outbound queue
+   */
+  public long getQueuedBytes() {
+    synchronized (writeQueue) {
+      return queuedBytes;
+    }
+  }
+
+  /**
+   * Gets the number of frames that were discarded because this connection's
+   * outbound queue was full
+   *
+   * @return number of dropped frames
+   */
+  public long getDroppedFrames() {
+    synchronized (writeQueue) {
+      return droppedFrames;
+    }
+  }
+
+  /**
+   * Gets the average time between frames being queued and being completely
+   * written to the socket. Recent frames are weighted more heavily.
+   *
+   * @return average write latency in nanoseconds
+   */
+  public long getAverageWriteLatency() {
+    synchronized (writeQueue) {
+      return (long) averageWriteLatency;
+    }
+  }
+
+  /**
+   * Gets the longest time a frame has taken between being queued and being
+   * completely written to the socket
+   *
+   * @return maximum write latency in nanoseconds
+   */
+  public long getMaxWriteLatency() {
+    synchronized (writeQueue) {
+      return maxWriteLatency;
+    }
+  }
+
+  /**
+   * Function called by the event loop when the channel is ready to be read
+   * from or written to.
+   *
+   * @param key selection key for this connection's channel
+   * @throws IOException if there was an error reading or writing
    */
   @Override
-  public void run() {
-    // Keep checking until the socket is closed
-    while (open) {
-      try {
-        // Read the data, this will block the thread until data is received
-        Object object = inputStream.readObject();
-        // Log the incoming data
-        System.out.println(String.format(
-          "[%s] %s <- %s",
-          new Date().toString(),
-          object.getClass().getSimpleName(),
-          id
-        ));
-        // If an ID hasn't been set yet, assume this is an ID
-        if (id == null) {
-          idHandler.accept(this, (String) object);
-        } else {
-          // Otherwise, this is generic data, so handle it accordingly
-          //noinspection unchecked
-          inputHandler.accept(this, (T) object);
+  public void ready(SelectionKey key) throws IOException {
+    if (key.isWritable()) flush();
+    if (key.isValid() && key.isReadable()) read();
+  }
+
+  /**
+   * Reads available data from the channel, handling every complete frame that
+   * has been received.
+   *
+   * @throws IOException if there was an error reading from the channel
+   */
+  private void read() throws IOException {
+    if (channel.read(readBuffer) == -1) {
+      throw new EOFException("end of stream");
+    }
+    // Part of a frame still shows the other side is there
+    lastReceivedAt = System.nanoTime();
+    readBuffer.flip();
+
+    // Handle every complete frame in the buffer
+    int requiredLength = 0;
+    while (readBuffer.remaining() >= FRAME_HEADER_LENGTH) {
+      int length = readBuffer.getInt(readBuffer.position());
+      if (length < 0 || length > MAX_FRAME_LENGTH) {
+        throw new IOException("invalid frame length " + length);
+      }
+      // Stop if the rest of the frame hasn't arrived yet
+      if (readBuffer.remaining() < FRAME_HEADER_LENGTH + length) {
+        requiredLength = FRAME_HEADER_LENGTH + length;
+        break;
+      }
+
+      int payloadStart = readBuffer.position() + FRAME_HEADER_LENGTH;
+      readBuffer.position(payloadStart + length);
+      handle(new DataInputStream(new ByteArrayInputStream(
+        readBuffer.array(),
+        payloadStart,
+        length
+      )));
+      // The handler may have closed the connection
+      if (!open.get()) return;
+    }
+
+    // Move any partial frame to the start of the buffer, growing the buffer
+    // if the frame wouldn't fit
+    readBuffer.compact();
+    if (requiredLength > readBuffer.capacity()) {
+      ByteBuffer grownBuffer = ByteBuffer.allocate(
+        Math.max(requiredLength, readBuffer.capacity() * 2)
+      );
+      readBuffer.flip();
+      grownBuffer.put(readBuffer);
+      readBuffer = grownBuffer;
+    }
+  }
+
+  /**
+   * Decodes a received frame and passes its contents to the appropriate
+   * handler
+   *
+   * @param in input containing the frame's payload
+   * @throws IOException if the frame is corrupt
+   */
+  private void handle(DataInputStream in) throws IOException {
+    byte kind = in.readByte();
+    switch (kind) {
+      case FRAME_ID: {
+        String receivedId = ValueCodec.readString(in);
+        // Sides that don't support compression don't send a list
+        compression = in.available() > 0 ? chooseCompression(in) : null;
+        String receivedRoom = in.available() > 0
+          ? ValueCodec.readString(in)
+          : "";
+        room = receivedRoom.isEmpty() ? null : receivedRoom;
+        boolean heartbeats = in.available() > 0
+          && (in.readByte() & CAPABILITY_HEARTBEATS) != 0;
+        idHandler.accept(this, receivedId);
+        // Only send heartbeats to sides that will reply to them
+        if (heartbeats && options.heartbeatIntervalMillis > 0) {
+          eventLoop.schedule(this::heartbeat, options.heartbeatIntervalMillis);
         }
-      } catch (IOException e) {
-        // If there was an error close the connection
-        System.out.println(String.format(
-          "[%s] Connection with \"%s\" closed: %s",
-          new Date().toString(),
-          id,
-          e.getMessage()
-        ));
-        // Send null to the handler to signal the connection closing
-        inputHandler.accept(this, null);
-        open = false;
-      } catch (ClassNotFoundException e) {
-        e.printStackTrace();
+        break;
       }
+      case FRAME_PING:
+        // Reply straight away so the round trip time is accurate
+        enqueue(controlFrame(FRAME_PONG, in.readLong()));
+        break;
+      case FRAME_PONG: {
+        long sample = System.nanoTime() - in.readLong();
+        long previous = roundTripTime;
+        roundTripTime = previous == -1
+          ? sample
+          : (long) (previous + ROUND_TRIP_TIME_WEIGHT * (sample - previous));
+        break;
+      }
+      case FRAME_DATA:
+        handleData(in);
+        break;
+      case FRAME_COMPRESSED: {
+        Compression frameCompression = Compression.fromId(in.readByte());
+        if (frameCompression == null) {
+          throw new IOException("unknown compression algorithm");
+        }
+        int length = in.readInt();
+        if (length < 0 || length > MAX_FRAME_LENGTH) {
+          throw new IOException("invalid compressed frame length " + length);
+        }
+        byte[] compressed = new byte[in.available()];
+        in.readFully(compressed);
+        byte[] payload = frameCompression.decompress(
+          compressed,
+          0,
+          compressed.length,
+          length
+        );
+        handleData(new DataInputStream(new ByteArrayInputStream(payload)));
+        break;
+      }
+      default:
+        throw new IOException("unknown frame kind " + kind);
+    }
+  }
+
+  /**
+   * Chooses the algorithm to compress frames sent to the other side with
+   *
+   * @param in input containing the list of algorithms the other side
+   *           supports
+   * @return first algorithm this side prefers that the other side supports,
+   * or null if there isn't one
+   * @throws IOException if the list is corrupt
+   */
+  private Compression chooseCompression(DataInputStream in)
+    throws IOException {
+    int count = in.readUnsignedByte();
+    byte[] supported = new byte[count];
+    in.readFully(supported);
+    for (Compression preferred : options.compression) {
+      for (byte supportedId : supported) {
+        if (preferred.id == supportedId) return preferred;
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Decodes a data frame's payload and passes it to the input handler
+   *
+   * @param in input containing the frame's payload
+   * @throws IOException if the payload is corrupt
+   */
+  private void handleData(DataInputStream in) throws IOException {
+    // The other side must identify itself before sending anything else
+    if (id == null) throw new IOException("data received before ID");
+    T data = codec.decode(in);
+    // Log the incoming data
+    options.packetLog.received(id, data);
+    dispatch(data);
+  }
+
+  /**
+   * Passes received data to the input handler, either directly or on the
+   * handler executor
+   *
+   * @param data data that was received, or null if the connection closed
+   */
+  private void dispatch(T data) {
+    if (handlerExecutor == null) {
+      inputHandler.accept(this, data);
+    } else {
+      handlerExecutor.execute(() -> inputHandler.accept(this, data));
+    }
+  }
+
+  /**
+   * Closes the connection, signalling this to the handler. Only the first
+   * call has any effect.
+   *
+   * @param reason exception that caused the close, may be null
+   */
+  @Override
+  public void close(IOException reason) {
+    if (!open.compareAndSet(true, false)) return;
+    // Log the closure
+    options.packetLog.closed(id, reason);
+    try {
+      channel.close();
+    } catch (IOException ignored) {
     }
+    synchronized (writeQueue) {
+      writeQueue.clear();
+      queuedBytes = 0;
+      // Wake up any senders waiting for space so they see the close
+      writeQueue.notifyAll();
+    }
+    // Send null to the handler to signal the connection closing, after any
+    // data still waiting to be handled
+    dispatch(null);
+  }
+
+  /**
+   * Sends a heartbeat to the other side, or closes the connection if nothing
+   * has been received for too long. Reschedules itself while the connection
+   * is open. Called on the event loop.
+   */
+  private void heartbeat() {
+    if (!open.get()) return;
+    long silentMillis = TimeUnit.NANOSECONDS.toMillis(
+      System.nanoTime() - lastReceivedAt
+    );
+    if (silentMillis > options.heartbeatTimeoutMillis) {
+      close(new IOException(
+        "nothing received for " + silentMillis + "ms"
+      ));
+      return;
+    }
+    try {
+      enqueue(controlFrame(FRAME_PING, System.nanoTime()));
+    } catch (IOException e) {
+      // The connection has been closed
+      return;
+    }
+    eventLoop.schedule(this::heartbeat, options.heartbeatIntervalMillis);
+  }
+
+  /**
+   * Gets the rolling estimate of the time taken for data to reach the other
+   * side and a reply to come back. Recent measurements are weighted more
+   * heavily.
+   *
+   * @return round trip time in nanoseconds, or -1 if it hasn't been measured
+   * yet (e.g. the other side doesn't support heartbeats)
+   */
+  public long getRoundTripTime() {
+    return roundTripTime;
+  }
+
+  /**
+   * Gets the time since anything was last received from the other side
+   *
+   * @return time since data was received in nanoseconds
+   */
+  public long getTimeSinceLastReceived() {
+    return System.nanoTime() - lastReceivedAt;
   }
 
   /**
@@ -155,7 +994,25 @@ public class Connection<T> implements Runnable, Broadcaster<T> {
    */
   void setId(String id) {
     this.id = id;
-    thread.setName("Connection:" + id);
+  }
+
+  /**
+   * Gets the room the other side asked to join, or null if it didn't name one
+   *
+   * @return this connection's room
+   */
+  public String getRoom() {
+    return room;
+  }
+
+  /**
+   * Sets the broadcaster used for sending data to other connections. Called
+   * by the server once it knows which room this connection is in.
+   *
+   * @param broadcaster new broadcaster for this connection
+   */
+  void setBroadcaster(Broadcaster<T> broadcaster) {
+    this.broadcaster = broadcaster;
   }
 
   /**
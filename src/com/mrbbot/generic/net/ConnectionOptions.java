@@ -0,0 +1,150 @@
+package com.mrbbot.generic.net;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Settings controlling how connections buffer outgoing data. Each connection
+ * queues frames until its event loop can write them, so one slow client can't
+ * hold up sends to anyone else. These options decide how large that queue can
+ * get and what happens when it fills up, which large frames are compressed
+ * before being queued, where traffic is logged, which threads network I/O
+ * and handlers run on, and how quickly a silent peer is disconnected.
+ */
+public class ConnectionOptions {
+  /**
+   * What to do when data is sent to a connection whose outbound queue is full
+   */
+  public enum OverflowPolicy {
+    /**
+     * Wait for the queue to drain, disconnecting the connection if it doesn't
+     * within {@link #blockTimeoutMillis}. Senders running on the connection's
+     * own event loop can't wait for it, so their frames are always queued.
+     */
+    BLOCK,
+    /**
+     * Discard the oldest data frame that hasn't started being written yet.
+     * ID frames and heartbeats are never discarded, as the connection relies
+     * on them to stay open.
+     */
+    DROP_OLDEST,
+    /**
+     * Close the connection, treating the client as too slow to keep up
+     */
+    DISCONNECT
+  }
+
+  /**
+   * Default maximum number of frames queued for a single connection
+   */
+  public static final int DEFAULT_MAX_QUEUED_FRAMES = 4096;
+  /**
+   * Default time blocked senders wait for space in the queue
+   */
+  public static final long DEFAULT_BLOCK_TIMEOUT_MILLIS = 10_000;
+  /**
+   * Default size a frame's data must reach before it's compressed
+   */
+  public static final int DEFAULT_COMPRESSION_THRESHOLD = 1024;
+  /**
+   * Default time between heartbeats
+   */
+  public static final long DEFAULT_HEARTBEAT_INTERVAL_MILLIS = 5_000;
+  /**
+   * Default time a connection can go without receiving anything before it's
+   * closed
+   */
+  public static final long DEFAULT_HEARTBEAT_TIMEOUT_MILLIS = 15_000;
+
+  /**
+   * Maximum number of frames that can be waiting to be written to a single
+   * connection
+   */
+  public int maxQueuedFrames;
+  /**
+   * What to do when a connection's outbound queue is full
+   */
+  public OverflowPolicy overflowPolicy;
+  /**
+   * How long a sender waits for space in the queue when using the
+   * {@link OverflowPolicy#BLOCK} policy before the connection is closed
+   */
+  public long blockTimeoutMillis;
+  /**
+   * Compression algorithms this side supports, most preferred first. Sent to
+   * the other side with this side's ID. Frames are compressed with the first
+   * algorithm in this list that the other side also supports. Empty to
+   * disable compression.
+   */
+  public Compression[] compression;
+  /**
+   * Size in bytes a frame's data must reach before it's compressed. Smaller
+   * frames aren't worth the time it takes to compress them.
+   */
+  public int compressionThreshold;
+  /**
+   * Log that data sent and received by connections is recorded in
+   */
+  public PacketLog packetLog;
+  /**
+   * Factory creating the threads event loops run on. On Java 21 and above,
+   * this can create virtual threads
+   * (e.g. {@code Thread.ofVirtual().factory()}).
+   */
+  public ThreadFactory threadFactory;
+  /**
+   * Executor received data is handled on, or null to handle it on the event
+   * loop that received it. Each connection's data is still handled one item
+   * at a time in the order it was received. Useful if handlers block, as
+   * they would otherwise hold up every connection sharing the event loop.
+   * On Java 21 and above, this can run each connection's handler on a
+   * virtual thread (e.g. {@code Executors.newVirtualThreadPerTaskExecutor()}).
+   */
+  public Executor handlerExecutor;
+  /**
+   * Time between heartbeats sent to the other side, which replies to each
+   * straight away so the round trip time can be measured. 0 to disable
+   * heartbeats. Only sent if the other side supports them.
+   */
+  public long heartbeatIntervalMillis;
+  /**
+   * Time a connection can go without receiving anything from the other side
+   * before it's closed, as the other side has probably disappeared without
+   * closing the connection. Only applies while heartbeats are being sent.
+   */
+  public long heartbeatTimeoutMillis;
+
+  /**
+   * Creates a new set of options with the default values. Senders block when
+   * a queue is full, large frames are compressed with deflate if the other
+   * side supports it, and traffic is logged to {@link PacketLog#DEFAULT}.
+   * Event loops run on new platform threads, and handlers are called on the
+   * event loops. Heartbeats are sent every 5 seconds, with peers that have
+   * been silent for 15 seconds disconnected.
+   */
+  public ConnectionOptions() {
+    this(DEFAULT_MAX_QUEUED_FRAMES, OverflowPolicy.BLOCK);
+  }
+
+  /**
+   * Creates a new set of options
+   *
+   * @param maxQueuedFrames maximum number of frames queued per connection
+   * @param overflowPolicy  what to do when a queue is full
+   */
+  public ConnectionOptions(int maxQueuedFrames, OverflowPolicy overflowPolicy) {
+    if (maxQueuedFrames < 1) {
+      throw new IllegalArgumentException("queue must hold at least one frame");
+    }
+    this.maxQueuedFrames = maxQueuedFrames;
+    this.overflowPolicy = overflowPolicy;
+    this.blockTimeoutMillis = DEFAULT_BLOCK_TIMEOUT_MILLIS;
+    this.compression = new Compression[]{Compression.DEFLATE, Compression.LZ};
+    this.compressionThreshold = DEFAULT_COMPRESSION_THRESHOLD;
+    this.packetLog = PacketLog.DEFAULT;
+    this.threadFactory = Thread::new;
+    this.handlerExecutor = null;
+    this.heartbeatIntervalMillis = DEFAULT_HEARTBEAT_INTERVAL_MILLIS;
+    this.heartbeatTimeoutMillis = DEFAULT_HEARTBEAT_TIMEOUT_MILLIS;
+  }
+}
@@ -0,0 +1,98 @@
+package com.mrbbot.generic.net;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Data that has already been encoded into a frame, so it can be kept and sent
+ * to any number of connections without being encoded again. Useful for large
+ * data that's sent to lots of connections but rarely changes.
+ *
+ * @param <T> type of data to be exchanged over the network
+ */
+public final class EncodedData<T> {
+  /**
+   * Data contained in the frame
+   */
+  private final T data;
+  /**
+   * Codec the data was encoded with
+   */
+  private final Codec<T> codec;
+  /**
+   * Read-only buffer containing the encoded frame
+   */
+  private final ByteBuffer frame;
+  /**
+   * Frames compressed with each algorithm, indexed by the algorithm's ordinal.
+   * Only created when first needed. Guarded by this object.
+   */
+  private final ByteBuffer[] compressedFrames;
+
+  /**
+   * Encodes data into a frame
+   *
+   * @param codec codec for converting the data to bytes, should be the same
+   *              codec the data will be sent with
+   * @param data  data to encode
+   * @throws IOException if the data cannot be encoded
+   */
+  public EncodedData(Codec<T> codec, T data) throws IOException {
+    this.data = data;
+    this.codec = codec;
+    this.frame = Connection.encode(codec, data);
+    this.compressedFrames = new ByteBuffer[Compression.values().length];
+  }
+
+  /**
+   * Gets the data contained in the frame
+   *
+   * @return data that was encoded
+   */
+  public T getData() {
+    return data;
+  }
+
+  /**
+   * Gets the codec the data was encoded with
+   *
+   * @return codec used for encoding
+   */
+  Codec<T> getCodec() {
+    return codec;
+  }
+
+  /**
+   * Gets the encoded frame. Each connection should send its own duplicate.
+   *
+   * @return read-only buffer containing the frame
+   */
+  ByteBuffer getFrame() {
+    return frame;
+  }
+
+  /**
+   * Gets the encoded frame compressed with an algorithm, compressing it if
+   * this is the first time it's been needed
+   *
+   * @param compression algorithm to compress the frame with
+   * @return read-only buffer containing the compressed frame, or the original
+   * frame if compressing didn't make it smaller
+   */
+  synchronized ByteBuffer getFrame(Compression compression) {
+    int index = compression.ordinal();
+    if (compressedFrames[index] == null) {
+      compressedFrames[index] = Connection.compress(frame, compression);
+    }
+    return compressedFrames[index];
+  }
+
+  /**
+   * Gets the size of the encoded frame
+   *
+   * @return length of the frame in bytes
+   */
+  public int getLength() {
+    return frame.remaining();
+  }
+}
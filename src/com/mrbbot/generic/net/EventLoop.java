@@ -0,0 +1,303 @@
+package com.mrbbot.generic.net;
+
+import java.io.IOException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.PriorityQueue;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Thread that waits for readiness events on a set of non-blocking channels
+ * and dispatches them to the handlers attached to each channel. A single event
+ * loop can serve any number of connections, so the number of threads a server
+ * needs doesn't grow with the number of clients.
+ */
+class EventLoop implements Runnable {
+  /**
+   * Function called when a channel registered with an event loop is ready
+   */
+  interface ReadyHandler {
+    /**
+     * Function called when a channel is ready for the operations it's
+     * interested in. Always called on the event loop's thread.
+     *
+     * @param key selection key for the channel that's ready
+     * @throws IOException if there was an error performing the operation
+     */
+    void ready(SelectionKey key) throws IOException;
+
+    /**
+     * Function called when the channel has to be closed, either because
+     * {@link #ready(SelectionKey)} threw an exception or the event loop is
+     * shutting down
+     *
+     * @param reason exception that caused the close, may be null
+     */
+    void close(IOException reason);
+  }
+
+  /**
+   * Task waiting to be run on the event loop at a certain time
+   */
+  private static class Timer {
+    /**
+     * Value of {@link System#nanoTime()} the task should be run at
+     */
+    final long deadline;
+    /**
+     * Task to run
+     */
+    final Runnable task;
+
+    /**
+     * Creates a new timer
+     *
+     * @param deadline value of {@link System#nanoTime()} to run the task at
+     * @param task     task to run
+     */
+    Timer(long deadline, Runnable task) {
+      this.deadline = deadline;
+      this.task = task;
+    }
+  }
+
+  /**
+   * Selector that waits for readiness events on registered channels
+   */
+  private final Selector selector;
+  /**
+   * Tasks submitted from other threads that must be run on the event loop's
+   * thread (e.g. registering channels or changing their interest sets)
+   */
+  private final Queue<Runnable> tasks;
+  /**
+   * Tasks waiting to be run at a later time, soonest first. Only accessed on
+   * the event loop's thread.
+   */
+  private final PriorityQueue<Timer> timers;
+  /**
+   * Thread running the event loop
+   */
+  private final Thread thread;
+  /**
+   * Whether the event loop is still running
+   */
+  private volatile boolean open;
+
+  /**
+   * Creates and starts a new event loop
+   *
+   * @param name          name of the thread running the event loop
+   * @param threadFactory factory creating the thread running the event loop
+   * @throws IOException if the selector cannot be opened
+   */
+  EventLoop(String name, ThreadFactory threadFactory) throws IOException {
+    selector = Selector.open();
+    tasks = new ConcurrentLinkedQueue<>();
+    // Compare deadlines by their difference, as nanoTime() can overflow
+    timers = new PriorityQueue<>(
+      (a, b) -> Long.signum(a.deadline - b.deadline)
+    );
+    open = true;
+
+    // Create a new thread that waits for readiness events
+    thread = threadFactory.newThread(this);
+    thread.setName(name);
+    thread.start();
+  }
+
+  /**
+   * Checks whether the calling thread is this event loop's thread
+   *
+   * @return whether the caller is running on the event loop
+   */
+  boolean inEventLoop() {
+    return Thread.currentThread() == thread;
+  }
+
+  /**
+   * Runs a task on the event loop's thread. If the caller is already on the
+   * event loop, the task is run immediately.
+   *
+   * @param task task to run
+   */
+  void execute(Runnable task) {
+    if (inEventLoop()) {
+      task.run();
+    } else {
+      tasks.add(task);
+      // Wake the selector up so the task is run straight away
+      selector.wakeup();
+    }
+  }
+
+  /**
+   * Runs a task on the event loop's thread after a delay. Tasks scheduled for
+   * the same time may be run in any order.
+   *
+   * @param task        task to run
+   * @param delayMillis milliseconds to wait before running the task
+   */
+  void schedule(Runnable task, long delayMillis) {
+    long deadline = System.nanoTime()
+      + TimeUnit.MILLISECONDS.toNanos(delayMillis);
+    execute(() -> timers.add(new Timer(deadline, task)));
+  }
+
+  /**
+   * Registers a non-blocking channel with this event loop
+   *
+   * @param channel channel to register
+   * @param ops     initial set of operations the channel is interested in
+   * @param handler function to call when the channel is ready
+   */
+  void register(
+    SelectableChannel channel,
+    int ops,
+    ReadyHandler handler
+  ) {
+    execute(() -> {
+      try {
+        channel.register(selector, ops, handler);
+      } catch (IOException e) {
+        handler.close(e);
+      }
+    });
+  }
+
+  /**
+   * Changes the set of operations a registered channel is interested in
+   *
+   * @param channel channel to update
+   * @param ops     new set of operations the channel is interested in
+   */
+  void interestOps(SelectableChannel channel, int ops) {
+    execute(() -> {
+      SelectionKey key = channel.keyFor(selector);
+      if (key != null && key.isValid()) key.interestOps(ops);
+    });
+  }
+
+  /**
+   * Runner for the event loop thread.
+   */
+  @Override
+  public void run() {
+    while (open) {
+      try {
+        // Wait for a channel to become ready or for a task to be submitted,
+        // waking up in time for the next timer
+        Timer next = timers.peek();
+        if (next == null) {
+          selector.select();
+        } else {
+          long waitNanos = next.deadline - System.nanoTime();
+          if (waitNanos <= 0) {
+            selector.selectNow();
+          } else {
+            // Round up, as a timeout of 0 would wait forever
+            selector.select(
+              TimeUnit.NANOSECONDS.toMillis(waitNanos + 999_999)
+            );
+          }
+        }
+      } catch (IOException | ClosedSelectorException e) {
+        break;
+      }
+
+      // Run any tasks submitted from other threads
+      Runnable task;
+      while ((task = tasks.poll()) != null) {
+        runTask(task);
+      }
+      // Run any timers that are due
+      long now = System.nanoTime();
+      Timer timer;
+      while ((timer = timers.peek()) != null && timer.deadline - now <= 0) {
+        timers.poll();
+        runTask(timer.task);
+      }
+
+      // Dispatch readiness events to their handlers
+      Iterator<SelectionKey> keys;
+      try {
+        keys = selector.selectedKeys().iterator();
+      } catch (ClosedSelectorException e) {
+        break;
+      }
+      while (keys.hasNext()) {
+        SelectionKey key = keys.next();
+        keys.remove();
+        ReadyHandler handler = (ReadyHandler) key.attachment();
+        try {
+          if (key.isValid()) handler.ready(key);
+        } catch (IOException e) {
+          // If the handler failed, close its channel
+          closeHandler(key, handler, e);
+        } catch (Throwable e) {
+          // Bugs and malformed data only close the channel they came from,
+          // not every other channel on this loop. Errors are included, as
+          // e.g. a stack overflow decoding one frame doesn't affect the rest.
+          closeHandler(key, handler, new IOException(e));
+        }
+      }
+    }
+
+    // Close every remaining channel when the loop stops
+    try {
+      for (SelectionKey key : selector.keys().toArray(new SelectionKey[0])) {
+        ((ReadyHandler) key.attachment()).close(null);
+      }
+      selector.close();
+    } catch (IOException | ClosedSelectorException ignored) {
+    }
+  }
+
+  /**
+   * Runs a task on the event loop, logging rather than throwing any unchecked
+   * exception so one failing task doesn't stop the loop
+   *
+   * @param task task to run
+   */
+  private static void runTask(Runnable task) {
+    try {
+      task.run();
+    } catch (RuntimeException e) {
+      e.printStackTrace();
+    }
+  }
+
+  /**
+   * Cancels a channel's key and closes its handler after it failed
+   *
+   * @param key     selection key for the channel
+   * @param handler handler attached to the key
+   * @param reason  exception that caused the close
+   */
+  private static void closeHandler(
+    SelectionKey key,
+    ReadyHandler handler,
+    IOException reason
+  ) {
+    key.cancel();
+    try {
+      handler.close(reason);
+    } catch (RuntimeException e) {
+      e.printStackTrace();
+    }
+  }
+
+  /**
+   * Stops the event loop, closing all channels registered with it
+   */
+  void close() {
+    open = false;
+    selector.wakeup();
+  }
+}
@@ -0,0 +1,127 @@
+package com.mrbbot.generic.net;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InvalidClassException;
+import java.io.ObjectInputStream;
+import java.io.ObjectStreamClass;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Object input stream that only deserializes classes from an allow-list.
+ * Data received over the network can't be trusted, and deserializing an
+ * arbitrary class can run code from any library on the class path, so only
+ * this project's own classes and plain JDK values and collections are
+ * accepted.
+ */
+class FilteredObjectInputStream extends ObjectInputStream {
+  /**
+   * Prefix of the names of this project's classes, which are all allowed
+   */
+  private static final String ALLOWED_PACKAGE_PREFIX = "com.mrbbot.";
+  /**
+   * Names of the JDK classes that are allowed
+   */
+  private static final Set<String> ALLOWED_CLASSES = new HashSet<>(
+    Arrays.asList(
+      // Values and their superclasses
+      "java.lang.String",
+      "java.lang.Number",
+      "java.lang.Boolean",
+      "java.lang.Byte",
+      "java.lang.Character",
+      "java.lang.Short",
+      "java.lang.Integer",
+      "java.lang.Long",
+      "java.lang.Float",
+      "java.lang.Double",
+      "java.lang.Enum",
+      // Element types of arrays backing lists, which can't be deserialized
+      // on their own
+      "java.lang.Object",
+      "java.io.Serializable",
+      "java.lang.Comparable",
+      // Collections
+      "java.util.ArrayList",
+      "java.util.LinkedList",
+      "java.util.ArrayDeque",
+      "java.util.HashMap",
+      "java.util.LinkedHashMap",
+      "java.util.TreeMap",
+      "java.util.HashSet",
+      "java.util.LinkedHashSet",
+      "java.util.TreeSet",
+      "java.util.Arrays$ArrayList",
+      "java.util.Collections$EmptyList",
+      "java.util.Collections$EmptyMap",
+      "java.util.Collections$EmptySet",
+      "java.util.Collections$SingletonList",
+      "java.util.Collections$SingletonMap",
+      "java.util.Collections$SingletonSet",
+      "java.util.Collections$UnmodifiableCollection",
+      "java.util.Collections$UnmodifiableList",
+      "java.util.Collections$UnmodifiableRandomAccessList",
+      "java.util.Collections$UnmodifiableMap",
+      "java.util.Collections$UnmodifiableSet"
+    )
+  );
+
+  /**
+   * Creates a new stream reading serialized objects from an input
+   *
+   * @param in input containing the serialized objects
+   * @throws IOException if the stream header cannot be read
+   */
+  FilteredObjectInputStream(InputStream in) throws IOException {
+    super(in);
+  }
+
+  /**
+   * Checks whether a class may be deserialized
+   *
+   * @param type class to check
+   * @return whether the class is allowed
+   */
+  private static boolean isAllowed(Class<?> type) {
+    // Arrays are allowed if what they contain is
+    while (type.isArray()) type = type.getComponentType();
+    return type.isPrimitive()
+      || type.getName().startsWith(ALLOWED_PACKAGE_PREFIX)
+      || ALLOWED_CLASSES.contains(type.getName());
+  }
+
+  /**
+   * Loads the class of an object being deserialized, if it's allowed
+   *
+   * @param desc description of the class
+   * @return the class
+   * @throws IOException            if the class isn't allowed
+   * @throws ClassNotFoundException if the class cannot be found
+   */
+  @Override
+  protected Class<?> resolveClass(ObjectStreamClass desc)
+    throws IOException, ClassNotFoundException {
+    // The class is loaded without being initialised, so none of its code
+    // runs before it's checked
+    Class<?> type = super.resolveClass(desc);
+    if (!isAllowed(type)) {
+      throw new InvalidClassException(desc.getName(), "class not allowed");
+    }
+    return type;
+  }
+
+  /**
+   * Rejects every proxy class, as none of the allowed classes are proxies
+   *
+   * @param interfaces names of the interfaces the proxy implements
+   * @return never returns
+   * @throws IOException always
+   */
+  @Override
+  protected Class<?> resolveProxyClass(String[] interfaces)
+    throws IOException {
+    throw new InvalidClassException("proxy classes are not allowed");
+  }
+}
@@ -0,0 +1,284 @@
+package com.mrbbot.generic.net;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Fast LZ77 compressor in the style of LZ4. Repeated sequences of at least
+ * {@link #MIN_MATCH} bytes are found with a single-entry hash table and
+ * replaced with a reference back to their previous occurrence. There's no
+ * entropy coding, so compression is quick but not as good as deflate.
+ * <p>
+ * Compressed data is a list of sequences, each made up of:
+ * <ul>
+ *   <li>byte: token, the top 4 bits are the number of literals and the bottom
+ *   4 bits are the match length minus {@link #MIN_MATCH}. A value of 15 means
+ *   more length bytes follow (each adding up to 255, stopping after a byte
+ *   less than 255).</li>
+ *   <li>extra literal length bytes</li>
+ *   <li>literal bytes copied straight to the output</li>
+ *   <li>short (little-endian): distance back to the start of the match</li>
+ *   <li>extra match length bytes</li>
+ * </ul>
+ * The last sequence only contains literals, ending at the end of the data.
+ */
+final class LzCompression {
+  /**
+   * Shortest sequence of bytes that's replaced with a match
+   */
+  private static final int MIN_MATCH = 4;
+  /**
+   * Furthest distance back a match can refer to
+   */
+  private static final int MAX_DISTANCE = 0xFFFF;
+  /**
+   * Number of bits in a hash table index
+   */
+  private static final int HASH_BITS = 12;
+  /**
+   * Number of misses after which the compressor starts skipping bytes,
+   * speeding up compression of data that doesn't compress well
+   */
+  private static final int SKIP_TRIGGER = 6;
+
+  private LzCompression() {
+  }
+
+  /**
+   * Compresses data
+   *
+   * @param data   array containing the data to compress
+   * @param offset position of the data in the array
+   * @param length number of bytes to compress
+   * @return compressed data
+   */
+  static byte[] compress(byte[] data, int offset, int length) {
+    // Worst case, every byte is a literal
+    byte[] out = new byte[length + length / 255 + 16];
+    int outPosition = 0;
+    // Positions (plus one, so 0 means empty) of recent 4 byte sequences
+    int[] table = new int[1 << HASH_BITS];
+
+    int end = offset + length;
+    int matchLimit = end - MIN_MATCH;
+    int anchor = offset;
+    int position = offset;
+    while (position <= matchLimit) {
+      int sequence = readInt(data, position);
+      int hash = hash(sequence);
+      int reference = table[hash] - 1;
+      table[hash] = position + 1;
+
+      if (reference >= offset
+        && position - reference <= MAX_DISTANCE
+        && readInt(data, reference) == sequence) {
+        // Extend the match as far as possible
+        int matchLength = MIN_MATCH;
+        while (position + matchLength < end
+          && data[reference + matchLength] == data[position + matchLength]) {
+          matchLength++;
+        }
+        outPosition = writeSequence(
+          out, outPosition,
+          data, anchor, position - anchor,
+          position - reference, matchLength
+        );
+        position += matchLength;
+        anchor = position;
+      } else {
+        // Move on faster the longer it's been since the last match
+        position += 1 + ((position - anchor) >>> SKIP_TRIGGER);
+      }
+    }
+
+    // Write the remaining bytes as literals
+    outPosition = writeSequence(
+      out, outPosition,
+      data, anchor, end - anchor,
+      0, 0
+    );
+    return Arrays.copyOf(out, outPosition);
+  }
+
+  /**
+   * Decompresses data compressed by {@link #compress(byte[], int, int)}
+   *
+   * @param data           array containing the compressed data
+   * @param offset         position of the compressed data in the array
+   * @param length         number of compressed bytes
+   * @param originalLength length of the data before it was compressed
+   * @return the original data
+   * @throws IOException if the compressed data is corrupt
+   */
+  static byte[] decompress(
+    byte[] data,
+    int offset,
+    int length,
+    int originalLength
+  ) throws IOException {
+    // The original length can't be trusted, so space is allocated as the
+    // data's decompressed
+    byte[] out = new byte[
+      Compression.initialCapacity(length, originalLength)
+    ];
+    int outPosition = 0;
+    int position = offset;
+    int end = offset + length;
+    try {
+      while (true) {
+        checkAvailable(position, 1, end);
+        int token = data[position++] & 0xFF;
+
+        // Copy the literals
+        int literalLength = token >>> 4;
+        if (literalLength == 15) {
+          int extra;
+          do {
+            checkAvailable(position, 1, end);
+            extra = data[position++] & 0xFF;
+            literalLength += extra;
+          } while (extra == 255);
+        }
+        checkAvailable(position, literalLength, end);
+        if (outPosition + literalLength > originalLength) {
+          throw new IOException("literals overrun compressed frame");
+        }
+        out = Compression.grow(
+          out,
+          outPosition + literalLength,
+          originalLength
+        );
+        System.arraycopy(data, position, out, outPosition, literalLength);
+        position += literalLength;
+        outPosition += literalLength;
+        // The last sequence doesn't have a match
+        if (position == end) break;
+
+        // Copy the match, a byte at a time as it may overlap itself
+        checkAvailable(position, 2, end);
+        int distance = (data[position++] & 0xFF)
+          | ((data[position++] & 0xFF) << 8);
+        int matchLength = (token & 0x0F) + MIN_MATCH;
+        if ((token & 0x0F) == 15) {
+          int extra;
+          do {
+            checkAvailable(position, 1, end);
+            extra = data[position++] & 0xFF;
+            matchLength += extra;
+          } while (extra == 255);
+        }
+        int source = outPosition - distance;
+        if (distance == 0 || source < 0 || matchLength < 0
+          || outPosition + matchLength > originalLength) {
+          throw new IOException("invalid match in compressed frame");
+        }
+        out = Compression.grow(out, outPosition + matchLength, originalLength);
+        for (int i = 0; i < matchLength; i++) {
+          out[outPosition++] = out[source + i];
+        }
+      }
+    } catch (ArrayIndexOutOfBoundsException e) {
+      throw new IOException("corrupt compressed frame", e);
+    }
+    if (outPosition != originalLength) {
+      throw new IOException("compressed frame has the wrong length");
+    }
+    return out;
+  }
+
+  /**
+   * Checks there are enough compressed bytes left to read
+   *
+   * @param position position of the next byte to read
+   * @param count    number of bytes that need to be read
+   * @param end      position after the last compressed byte
+   * @throws IOException if there aren't enough bytes left
+   */
+  private static void checkAvailable(int position, int count, int end)
+    throws IOException {
+    if (count < 0 || position + count > end) {
+      throw new IOException("truncated compressed frame");
+    }
+  }
+
+  /**
+   * Writes a sequence of literals followed by a match
+   *
+   * @param out            array to write to
+   * @param outPosition    position to start writing at
+   * @param data           array containing the literals
+   * @param literalStart   position of the literals in the data
+   * @param literalLength  number of literals
+   * @param distance       distance back to the start of the match
+   * @param matchLength    length of the match, or 0 if this is the last
+   *                       sequence
+   * @return position after the sequence
+   */
+  private static int writeSequence(
+    byte[] out,
+    int outPosition,
+    byte[] data,
+    int literalStart,
+    int literalLength,
+    int distance,
+    int matchLength
+  ) {
+    int extraMatchLength = matchLength == 0 ? 0 : matchLength - MIN_MATCH;
+    out[outPosition++] = (byte) ((Math.min(literalLength, 15) << 4)
+      | Math.min(extraMatchLength, 15));
+    if (literalLength >= 15) {
+      outPosition = writeLength(out, outPosition, literalLength - 15);
+    }
+    System.arraycopy(data, literalStart, out, outPosition, literalLength);
+    outPosition += literalLength;
+    if (matchLength == 0) return outPosition;
+
+    out[outPosition++] = (byte) distance;
+    out[outPosition++] = (byte) (distance >>> 8);
+    if (extraMatchLength >= 15) {
+      outPosition = writeLength(out, outPosition, extraMatchLength - 15);
+    }
+    return outPosition;
+  }
+
+  /**
+   * Writes the extra bytes of a length that didn't fit in a token
+   *
+   * @param out         array to write to
+   * @param outPosition position to start writing at
+   * @param length      remaining length to write
+   * @return position after the length
+   */
+  private static int writeLength(byte[] out, int outPosition, int length) {
+    while (length >= 255) {
+      out[outPosition++] = (byte) 255;
+      length -= 255;
+    }
+    out[outPosition++] = (byte) length;
+    return outPosition;
+  }
+
+  /**
+   * Reads 4 bytes as a big-endian integer
+   *
+   * @param data     array to read from
+   * @param position position of the first byte
+   * @return the integer
+   */
+  private static int readInt(byte[] data, int position) {
+    return ((data[position] & 0xFF) << 24)
+      | ((data[position + 1] & 0xFF) << 16)
+      | ((data[position + 2] & 0xFF) << 8)
+      | (data[position + 3] & 0xFF);
+  }
+
+  /**
+   * Hashes a 4 byte sequence to a table index
+   *
+   * @param sequence 4 bytes read as an integer
+   * @return index in the hash table
+   */
+  private static int hash(int sequence) {
+    return (sequence * -1640531535) >>> (32 - HASH_BITS);
+  }
+}
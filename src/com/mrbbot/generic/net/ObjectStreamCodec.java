@@ -0,0 +1,318 @@
+package com.mrbbot.generic.net;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+/**
+ * Codec that uses Java serialization over a single object stream for the
+ * whole lifetime of a connection. Class descriptors and repeated objects are
+ * only written once, making messages much smaller than with
+ * {@link SerializationCodec}. The stream's handle table keeps a reference to
+ * everything written though, so it's reset after a number of messages or
+ * bytes, keeping memory usage bounded in long sessions. Each connection gets
+ * its own instance from {@link #forConnection()}.
+ *
+ * @param <T> type of data to be exchanged over the network
+ */
+public class ObjectStreamCodec<T> implements Codec<T> {
+  /**
+   * Default number of messages written between resets
+   */
+  public static final int DEFAULT_RESET_MESSAGES = 256;
+  /**
+   * Default number of bytes written between resets
+   */
+  public static final long DEFAULT_RESET_BYTES = 1024 * 1024;
+
+  /**
+   * Maximum number of messages written before the stream is reset
+   */
+  private final int resetMessages;
+  /**
+   * Maximum number of bytes written before the stream is reset
+   */
+  private final long resetBytes;
+  /**
+   * Whether this instance belongs to a connection. The shared instance passed
+   * to a client or server is only used to create these.
+   */
+  private final boolean connectionInstance;
+  /**
+   * Buffer the output stream writes to, emptied after each message
+   */
+  private ByteArrayOutputStream outputBuffer;
+  /**
+   * Stream objects are written to, created when the first message is sent
+   */
+  private ObjectOutputStream outputStream;
+  /**
+   * Number of messages written since the last reset
+   */
+  private int messagesSinceReset;
+  /**
+   * Number of bytes written since the last reset
+   */
+  private long bytesSinceReset;
+  /**
+   * Input containing received messages that haven't been read yet
+   */
+  private MessageInputStream input;
+  /**
+   * Stream objects are read from, created when the first message is received
+   */
+  private ObjectInputStream inputStream;
+
+  /**
+   * Creates a new codec that resets its stream using the default thresholds
+   */
+  public ObjectStreamCodec() {
+    this(DEFAULT_RESET_MESSAGES, DEFAULT_RESET_BYTES);
+  }
+
+  /**
+   * Creates a new codec. The stream is reset when either threshold is
+   * reached.
+   *
+   * @param resetMessages maximum number of messages written between resets
+   * @param resetBytes    maximum number of bytes written between resets
+   */
+  public ObjectStreamCodec(int resetMessages, long resetBytes) {
+    this(resetMessages, resetBytes, false);
+  }
+
+  /**
+   * Creates a new codec
+   *
+   * @param resetMessages      maximum number of messages written between
+   *                           resets
+   * @param resetBytes         maximum number of bytes written between resets
+   * @param connectionInstance whether this instance belongs to a connection
+   */
+  private ObjectStreamCodec(
+    int resetMessages,
+    long resetBytes,
+    boolean connectionInstance
+  ) {
+    if (resetMessages < 1 || resetBytes < 1) {
+      throw new IllegalArgumentException("reset thresholds must be positive");
+    }
+    this.resetMessages = resetMessages;
+    this.resetBytes = resetBytes;
+    this.connectionInstance = connectionInstance;
+  }
+
+  /**
+   * Creates a new codec with its own object streams for a connection
+   *
+   * @return codec for a single connection
+   */
+  @Override
+  public Codec<T> forConnection() {
+    return new ObjectStreamCodec<>(resetMessages, resetBytes, true);
+  }
+
+  /**
+   * Writes data to the connection's object stream, resetting the stream
+   * first if either threshold has been reached
+   *
+   * @param data data to be written
+   * @param out  output to write the data to
+   * @throws IOException if the data cannot be serialized
+   */
+  @Override
+  public void encode(T data, DataOutput out) throws IOException {
+    checkConnectionInstance();
+    if (outputStream == null) {
+      // The stream header is included in the first message
+      outputBuffer = new ByteArrayOutputStream();
+      outputStream = new ObjectOutputStream(outputBuffer);
+    } else if (messagesSinceReset >= resetMessages
+      || bytesSinceReset >= resetBytes) {
+      // Forget everything written so far so it can be garbage collected. The
+      // reset marker tells the other side to do the same.
+      outputStream.reset();
+      messagesSinceReset = 0;
+      bytesSinceReset = 0;
+    }
+    outputStream.writeObject(data);
+    outputStream.flush();
+
+    // Write the message length-prefixed
+    int length = outputBuffer.size();
+    out.writeInt(length);
+    outputBuffer.writeTo(new DataOutputAdapter(out));
+    outputBuffer.reset();
+    messagesSinceReset++;
+    bytesSinceReset += length;
+  }
+
+  /**
+   * Reads the next message from the connection's object stream
+   *
+   * @param in input containing data written by {@link #encode(Object,
+   *           DataOutput)}
+   * @return the deserialized data
+   * @throws IOException if the input doesn't contain valid data
+   */
+  @Override
+  public T decode(DataInput in) throws IOException {
+    checkConnectionInstance();
+    byte[] bytes = ValueCodec.readBytes(in, in.readInt());
+    if (input == null) input = new MessageInputStream();
+    input.add(bytes);
+    // The stream header is read from the first message
+    if (inputStream == null) {
+      inputStream = new FilteredObjectInputStream(input);
+    }
+    try {
+      //noinspection unchecked
+      return (T) inputStream.readObject();
+    } catch (ClassNotFoundException e) {
+      throw new IOException("unknown class: " + e.getMessage(), e);
+    }
+  }
+
+  /**
+   * Makes sure this instance is only used by a single connection, as sharing
+   * the streams would corrupt them
+   */
+  private void checkConnectionInstance() {
+    if (!connectionInstance) {
+      throw new IllegalStateException(
+        "object stream codecs must be used through forConnection()"
+      );
+    }
+  }
+
+  /**
+   * Input stream over the bytes of received messages. Object input streams
+   * only ever read what they need for the current object, but any unread
+   * bytes are kept for the next message just in case.
+   */
+  private static class MessageInputStream extends InputStream {
+    /**
+     * Bytes that haven't been read yet
+     */
+    private byte[] buffer = new byte[0];
+    /**
+     * Position of the next byte to read in the buffer
+     */
+    private int position;
+
+    /**
+     * Adds a received message's bytes to the end of the stream
+     *
+     * @param bytes message bytes
+     */
+    void add(byte[] bytes) {
+      if (position == buffer.length) {
+        buffer = bytes;
+      } else {
+        byte[] remaining = Arrays.copyOfRange(
+          buffer,
+          position,
+          buffer.length + bytes.length
+        );
+        System.arraycopy(
+          bytes,
+          0,
+          remaining,
+          buffer.length - position,
+          bytes.length
+        );
+        buffer = remaining;
+      }
+      position = 0;
+    }
+
+    /**
+     * Reads a single byte
+     *
+     * @return the byte or -1 if every received byte has been read
+     */
+    @Override
+    public int read() {
+      return position < buffer.length ? buffer[position++] & 0xFF : -1;
+    }
+
+    /**
+     * Reads bytes into an array
+     *
+     * @param b   array to read into
+     * @param off offset to start storing bytes at
+     * @param len maximum number of bytes to read
+     * @return number of bytes read or -1 if every received byte has been read
+     */
+    @Override
+    public int read(byte[] b, int off, int len) {
+      if (len == 0) return 0;
+      int available = buffer.length - position;
+      if (available == 0) return -1;
+      int count = Math.min(len, available);
+      System.arraycopy(buffer, position, b, off, count);
+      position += count;
+      return count;
+    }
+
+    /**
+     * Gets the number of unread bytes
+     *
+     * @return number of unread bytes
+     */
+    @Override
+    public int available() {
+      return buffer.length - position;
+    }
+  }
+
+  /**
+   * Adapter letting a {@link ByteArrayOutputStream} write directly to a
+   * {@link DataOutput} without copying its contents
+   */
+  private static class DataOutputAdapter extends OutputStream {
+    /**
+     * Output to forward bytes to
+     */
+    private final DataOutput out;
+
+    /**
+     * Creates a new adapter
+     *
+     * @param out output to forward bytes to
+     */
+    DataOutputAdapter(DataOutput out) {
+      this.out = out;
+    }
+
+    /**
+     * Writes a single byte
+     *
+     * @param b byte to write
+     * @throws IOException if the byte cannot be written
+     */
+    @Override
+    public void write(int b) throws IOException {
+      out.write(b);
+    }
+
+    /**
+     * Writes bytes from an array
+     *
+     * @param b   array containing the bytes
+     * @param off offset of the first byte to write
+     * @param len number of bytes to write
+     * @throws IOException if the bytes cannot be written
+     */
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+      out.write(b, off, len);
+    }
+  }
+}
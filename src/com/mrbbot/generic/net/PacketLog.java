@@ -0,0 +1,417 @@
+package com.mrbbot.generic.net;
+
+import java.io.PrintStream;
+import java.util.Date;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Log of data sent and received by connections. Connections only record what
+ * happened in a preallocated ring buffer, which a background thread drains,
+ * formatting and printing each entry. Logging never builds strings or waits
+ * for the output on network threads. If the background thread falls behind
+ * and the buffer fills up, new entries are dropped rather than blocking.
+ * <p>
+ * What's logged depends on the log's {@link Level}. Data can also be sampled
+ * by type, so only every nth item of a frequent type is logged. Every item
+ * sent or received is counted by type, whether it's logged or not.
+ */
+public class PacketLog {
+  /**
+   * How much is logged
+   */
+  public enum Level {
+    /**
+     * Nothing is logged or counted
+     */
+    OFF,
+    /**
+     * Only connections closing are logged, data is still counted
+     */
+    CONNECTIONS,
+    /**
+     * Connections closing and data being sent and received are logged
+     */
+    PACKETS
+  }
+
+  /**
+   * Counters and sampling rate for a type of data
+   */
+  public static class TypeStats {
+    /**
+     * Number of items of this type sent
+     */
+    private final AtomicLong sent = new AtomicLong();
+    /**
+     * Number of items of this type received
+     */
+    private final AtomicLong received = new AtomicLong();
+    /**
+     * Only every nth item of this type sent or received is logged
+     */
+    private volatile int sampleRate = 1;
+
+    /**
+     * Gets the number of items of this type sent
+     *
+     * @return sent count
+     */
+    public long getSent() {
+      return sent.get();
+    }
+
+    /**
+     * Gets the number of items of this type received
+     *
+     * @return received count
+     */
+    public long getReceived() {
+      return received.get();
+    }
+  }
+
+  /**
+   * Kind of event for data being sent
+   */
+  private static final byte EVENT_SENT = 0;
+  /**
+   * Kind of event for data being received
+   */
+  private static final byte EVENT_RECEIVED = 1;
+  /**
+   * Kind of event for a connection closing
+   */
+  private static final byte EVENT_CLOSED = 2;
+  /**
+   * Default number of entries in the ring buffer
+   */
+  public static final int DEFAULT_CAPACITY = 8192;
+  /**
+   * How long the background thread waits before checking for new entries
+   * when the buffer is empty
+   */
+  private static final long DRAIN_INTERVAL_NANOS =
+    TimeUnit.MILLISECONDS.toNanos(10);
+
+  /**
+   * Log shared by connections that aren't given their own, printing
+   * everything to standard output
+   */
+  public static final PacketLog DEFAULT = new PacketLog(
+    System.out,
+    DEFAULT_CAPACITY,
+    Level.PACKETS
+  );
+
+  /**
+   * Slot in the ring buffer. Entries are reused, so logging doesn't allocate.
+   */
+  private static class Entry {
+    /**
+     * Sequence number of the entry currently stored in this slot. Written
+     * last, once the rest of the entry has been filled in.
+     */
+    volatile long published = -1;
+    /**
+     * Kind of event, one of the EVENT constants
+     */
+    byte event;
+    /**
+     * Value of {@link System#currentTimeMillis()} when the event happened
+     */
+    long time;
+    /**
+     * ID of the connection
+     */
+    String connectionId;
+    /**
+     * Type of data sent or received
+     */
+    Class<?> type;
+    /**
+     * Reason the connection was closed, or null if it was closed locally
+     */
+    String reason;
+  }
+
+  /**
+   * Output entries are printed to
+   */
+  private final PrintStream out;
+  /**
+   * Ring buffer of entries waiting to be printed
+   */
+  private final Entry[] entries;
+  /**
+   * Mask converting a sequence number to an index in the buffer
+   */
+  private final int mask;
+  /**
+   * Sequence number of the next entry to be claimed by a logging thread
+   */
+  private final AtomicLong head;
+  /**
+   * Sequence number of the next entry to be printed. Only written by the
+   * background thread.
+   */
+  private volatile long tail;
+  /**
+   * Number of entries dropped because the buffer was full
+   */
+  private final AtomicLong dropped;
+  /**
+   * Counters for each type of data
+   */
+  private final Map<Class<?>, TypeStats> stats;
+  /**
+   * Current level of the log
+   */
+  private volatile Level level;
+  /**
+   * Thread printing entries, started when the first entry is logged
+   */
+  private volatile Thread drainer;
+
+  /**
+   * Creates a new log
+   *
+   * @param out      output to print entries to
+   * @param capacity number of entries the buffer can hold, rounded up to a
+   *                 power of 2
+   * @param level    initial level of the log
+   */
+  public PacketLog(PrintStream out, int capacity, Level level) {
+    if (capacity < 1) {
+      throw new IllegalArgumentException("capacity must be at least 1");
+    }
+    this.out = out;
+    int size = Integer.highestOneBit(capacity);
+    if (size < capacity) size <<= 1;
+    entries = new Entry[size];
+    for (int i = 0; i < size; i++) entries[i] = new Entry();
+    mask = size - 1;
+    head = new AtomicLong();
+    dropped = new AtomicLong();
+    stats = new ConcurrentHashMap<>();
+    this.level = level;
+  }
+
+  /**
+   * Gets the current level of the log
+   *
+   * @return log level
+   */
+  public Level getLevel() {
+    return level;
+  }
+
+  /**
+   * Sets the level of the log
+   *
+   * @param level new log level
+   */
+  public void setLevel(Level level) {
+    this.level = level;
+  }
+
+  /**
+   * Only logs every nth item of a type of data. Items are still counted.
+   *
+   * @param type       type of data
+   * @param sampleRate number of items counted for each item logged, 1 logs
+   *                   every item
+   */
+  public void setSampleRate(Class<?> type, int sampleRate) {
+    if (sampleRate < 1) {
+      throw new IllegalArgumentException("sample rate must be at least 1");
+    }
+    statsFor(type).sampleRate = sampleRate;
+  }
+
+  /**
+   * Gets the counters for a type of data
+   *
+   * @param type type of data
+   * @return counters for the type, or null if none have been sent or received
+   */
+  public TypeStats getStats(Class<?> type) {
+    return stats.get(type);
+  }
+
+  /**
+   * Gets the number of entries dropped because the buffer was full
+   *
+   * @return dropped entry count
+   */
+  public long getDropped() {
+    return dropped.get();
+  }
+
+  /**
+   * Records data being sent on a connection
+   *
+   * @param connectionId ID of the connection
+   * @param data         data being sent
+   */
+  void sent(String connectionId, Object data) {
+    Level level = this.level;
+    if (level == Level.OFF) return;
+    TypeStats typeStats = statsFor(data.getClass());
+    long count = typeStats.sent.getAndIncrement();
+    if (level == Level.PACKETS && count % typeStats.sampleRate == 0) {
+      publish(EVENT_SENT, connectionId, data.getClass(), null);
+    }
+  }
+
+  /**
+   * Records data being received on a connection
+   *
+   * @param connectionId ID of the connection
+   * @param data         data that was received
+   */
+  void received(String connectionId, Object data) {
+    Level level = this.level;
+    if (level == Level.OFF) return;
+    TypeStats typeStats = statsFor(data.getClass());
+    long count = typeStats.received.getAndIncrement();
+    if (level == Level.PACKETS && count % typeStats.sampleRate == 0) {
+      publish(EVENT_RECEIVED, connectionId, data.getClass(), null);
+    }
+  }
+
+  /**
+   * Records a connection closing
+   *
+   * @param connectionId ID of the connection
+   * @param reason       exception that caused the close, may be null
+   */
+  void closed(String connectionId, Exception reason) {
+    if (level == Level.OFF) return;
+    publish(
+      EVENT_CLOSED,
+      connectionId,
+      null,
+      reason == null ? null : reason.getMessage()
+    );
+  }
+
+  /**
+   * Gets the counters for a type of data, creating them if they don't exist
+   *
+   * @param type type of data
+   * @return counters for the type
+   */
+  private TypeStats statsFor(Class<?> type) {
+    // Check without locking first, as the type has almost always been seen
+    TypeStats typeStats = stats.get(type);
+    if (typeStats != null) return typeStats;
+    return stats.computeIfAbsent(type, key -> new TypeStats());
+  }
+
+  /**
+   * Stores an entry in the ring buffer for the background thread to print
+   *
+   * @param event        kind of event
+   * @param connectionId ID of the connection
+   * @param type         type of data sent or received
+   * @param reason       reason the connection was closed
+   */
+  private void publish(
+    byte event,
+    String connectionId,
+    Class<?> type,
+    String reason
+  ) {
+    // Claim the next slot, giving up if the background thread hasn't printed
+    // the entry that was last in it
+    long sequence;
+    do {
+      sequence = head.get();
+      if (sequence - tail >= entries.length) {
+        dropped.incrementAndGet();
+        return;
+      }
+    } while (!head.compareAndSet(sequence, sequence + 1));
+
+    Entry entry = entries[(int) (sequence & mask)];
+    entry.event = event;
+    entry.time = System.currentTimeMillis();
+    entry.connectionId = connectionId;
+    entry.type = type;
+    entry.reason = reason;
+    // Publishing the sequence number makes the fields above visible to the
+    // background thread
+    entry.published = sequence;
+
+    if (drainer == null) startDrainer();
+  }
+
+  /**
+   * Starts the background thread that prints entries, if it hasn't already
+   * been started
+   */
+  private synchronized void startDrainer() {
+    if (drainer != null) return;
+    Thread thread = new Thread(this::drain, "Packet Log");
+    thread.setDaemon(true);
+    thread.start();
+    drainer = thread;
+  }
+
+  /**
+   * Prints entries as they're published. Runs on the background thread.
+   */
+  private void drain() {
+    StringBuilder line = new StringBuilder();
+    long reportedDropped = 0;
+    while (true) {
+      Entry entry = entries[(int) (tail & mask)];
+      if (entry.published != tail) {
+        // Report any entries that couldn't be stored
+        long droppedNow = dropped.get();
+        if (droppedNow != reportedDropped) {
+          out.println(String.format(
+            "[%s] %d packet log entries dropped",
+            new Date().toString(),
+            droppedNow - reportedDropped
+          ));
+          reportedDropped = droppedNow;
+        }
+        out.flush();
+        LockSupport.parkNanos(DRAIN_INTERVAL_NANOS);
+        continue;
+      }
+
+      // Format the entry, then release its slot
+      line.setLength(0);
+      line.append('[').append(new Date(entry.time)).append("] ");
+      switch (entry.event) {
+        case EVENT_SENT:
+          line.append(entry.type.getSimpleName())
+            .append(" -> ")
+            .append(entry.connectionId);
+          break;
+        case EVENT_RECEIVED:
+          line.append(entry.type.getSimpleName())
+            .append(" <- ")
+            .append(entry.connectionId);
+          break;
+        default:
+          line.append("Connection with \"")
+            .append(entry.connectionId)
+            .append("\" closed: ")
+            .append(entry.reason == null ? "closed locally" : entry.reason);
+          break;
+      }
+      entry.connectionId = null;
+      entry.type = null;
+      entry.reason = null;
+      tail++;
+      out.println(line);
+    }
+  }
+}
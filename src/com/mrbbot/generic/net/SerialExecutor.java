@@ -0,0 +1,103 @@
+package com.mrbbot.generic.net;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Executor that runs tasks one at a time, in the order they were submitted,
+ * on another executor. Used to run a connection's handler off its event loop
+ * without data from the same connection being handled out of order or
+ * concurrently. Tasks for different connections can still run in parallel.
+ */
+final class SerialExecutor implements Executor {
+  /**
+   * Maximum number of tasks run before giving the underlying executor's
+   * thread back, so one busy connection can't starve the others when the
+   * executor has a small pool
+   */
+  private static final int MAX_BATCH = 64;
+
+  /**
+   * Executor tasks are actually run on
+   */
+  private final Executor executor;
+  /**
+   * Tasks waiting to be run. Also used as the lock guarding
+   * {@link #running}.
+   */
+  private final ArrayDeque<Runnable> tasks;
+  /**
+   * Whether a batch has been submitted to the underlying executor and hasn't
+   * finished yet
+   */
+  private boolean running;
+
+  /**
+   * Creates a new serial executor
+   *
+   * @param executor executor to run tasks on
+   */
+  SerialExecutor(Executor executor) {
+    this.executor = executor;
+    tasks = new ArrayDeque<>();
+  }
+
+  /**
+   * Queues a task, to be run after every task submitted before it has
+   * finished
+   *
+   * @param task task to run
+   */
+  @Override
+  public void execute(Runnable task) {
+    synchronized (tasks) {
+      tasks.add(task);
+      // The running batch will pick the task up
+      if (running) return;
+      running = true;
+    }
+    submit();
+  }
+
+  /**
+   * Submits a batch to the underlying executor
+   */
+  private void submit() {
+    try {
+      executor.execute(this::runBatch);
+    } catch (RejectedExecutionException e) {
+      // Let a later task try again
+      synchronized (tasks) {
+        running = false;
+      }
+      throw e;
+    }
+  }
+
+  /**
+   * Runs queued tasks until there are none left or the batch is full, in
+   * which case another batch is submitted. Runs on the underlying executor.
+   */
+  private void runBatch() {
+    for (int i = 0; i < MAX_BATCH; i++) {
+      Runnable task;
+      synchronized (tasks) {
+        task = tasks.poll();
+        if (task == null) {
+          running = false;
+          return;
+        }
+      }
+      try {
+        task.run();
+      } catch (RuntimeException e) {
+        // Keep running the other tasks, a failing handler shouldn't stop the
+        // connection's data being handled
+        e.printStackTrace();
+      }
+    }
+    // Give other connections a turn before continuing
+    submit();
+  }
+}
@@ -0,0 +1,84 @@
+package com.mrbbot.generic.net;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+
+/**
+ * Codec that uses Java's built in object serialization. Works with any
+ * {@link Serializable} data without extra code, but writes class descriptors
+ * with every object and is comparatively slow, so should only be used as a
+ * fallback. Only this project's classes and plain JDK values and collections
+ * are deserialized (see {@link FilteredObjectInputStream}), as the data may
+ * come from an untrusted client.
+ *
+ * @param <T> type of data to be exchanged over the network
+ */
+public class SerializationCodec<T> implements Codec<T> {
+  /**
+   * Serializes data, writing it length-prefixed to the output
+   *
+   * @param data data to be written
+   * @param out  output to write the data to
+   * @throws IOException if the data cannot be serialized
+   */
+  @Override
+  public void encode(T data, DataOutput out) throws IOException {
+    byte[] bytes = serialize(data);
+    out.writeInt(bytes.length);
+    out.write(bytes);
+  }
+
+  /**
+   * Reads length-prefixed serialized data from the input
+   *
+   * @param in input containing data written by {@link #encode(Object,
+   *           DataOutput)}
+   * @return the deserialized data
+   * @throws IOException if the input doesn't contain valid data
+   */
+  @Override
+  public T decode(DataInput in) throws IOException {
+    byte[] bytes = ValueCodec.readBytes(in, in.readInt());
+    //noinspection unchecked
+    return (T) deserialize(bytes);
+  }
+
+  /**
+   * Serializes an object to an array of bytes
+   *
+   * @param object object to serialize
+   * @return serialized bytes
+   * @throws IOException if the object cannot be serialized
+   */
+  public static byte[] serialize(Object object) throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    try (ObjectOutputStream outputStream = new ObjectOutputStream(bytes)) {
+      outputStream.writeObject(object);
+    }
+    return bytes.toByteArray();
+  }
+
+  /**
+   * Deserializes an object from an array of bytes
+   *
+   * @param bytes serialized bytes
+   * @return deserialized object
+   * @throws IOException if the bytes are corrupt or the object's class isn't
+   *                     available or allowed
+   */
+  public static Object deserialize(byte[] bytes) throws IOException {
+    try (ObjectInputStream inputStream = new FilteredObjectInputStream(
+      new ByteArrayInputStream(bytes)
+    )) {
+      return inputStream.readObject();
+    } catch (ClassNotFoundException e) {
+      throw new IOException("unknown class: " + e.getMessage(), e);
+    }
+  }
+}
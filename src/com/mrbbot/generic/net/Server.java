@@ -1,33 +1,82 @@
 package com.mrbbot.generic.net;
 
 import java.io.IOException;
-import java.net.ServerSocket;
-import java.net.Socket;
-import java.util.HashMap;
+import java.net.InetSocketAddress;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.function.Predicate;
 
 /**
- * Generic server class for listening for clients' connections and data
+ * Generic server class for listening for clients' connections and data. All
+ * clients are served by a fixed number of event loop threads, regardless of
+ * how many are connected.
+ * <p>
+ * Connections are grouped into rooms, chosen by clients when they connect.
+ * IDs only have to be unique within a room, and broadcasts from a connection
+ * only reach the other connections in its room. Clients that don't name a
+ * room join {@link #DEFAULT_ROOM}.
  *
  * @param <T> type of data to be exchanged over the network
  */
-public class Server<T> extends BaseBroadcaster<T> implements Runnable {
+public class Server<T> extends BaseBroadcaster<T> {
   /**
-   * TCP server socket to listen for incoming connections on
+   * Room connections join if they don't name one
    */
-  private final ServerSocket serverSocket;
+  public static final String DEFAULT_ROOM = "";
+  /**
+   * Default number of event loops to spread connections over
+   */
+  private static final int DEFAULT_EVENT_LOOP_COUNT = Math.min(
+    4,
+    Runtime.getRuntime().availableProcessors()
+  );
+  /**
+   * Milliseconds to wait before accepting connections again after accepting
+   * one failed
+   */
+  private static final long ACCEPT_RETRY_MILLIS = 100;
+
+  /**
+   * TCP server channel to listen for incoming connections on
+   */
+  private final ServerSocketChannel serverChannel;
   /**
    * Handler function for incoming data coming from clients
    */
   private final Handler<T> handler;
   /**
-   * Map mapping connection IDs to their connection objects
+   * Codec for converting data to and from bytes
+   */
+  private final Codec<T> codec;
+  /**
+   * Options controlling each connection's outbound queue
    */
-  private HashMap<String, Connection> connections;
+  private final ConnectionOptions options;
+  /**
+   * Map mapping room names to the connections in them. Concurrent as rooms
+   * are added and removed by different event loops.
+   */
+  private final Map<String, Room> rooms;
+  /**
+   * Event loops performing all network I/O. The first also accepts new
+   * connections.
+   */
+  private final EventLoop[] eventLoops;
+  /**
+   * Index of the event loop the next accepted connection will be assigned to
+   */
+  private int nextEventLoop;
 
   /**
-   * Creates a new server
+   * Creates a new server that exchanges data using Java serialization
    *
    * @param port    port number to listen for connections on
    * @param handler function to be called when data is received from a client
@@ -35,20 +84,113 @@ public class Server<T> extends BaseBroadcaster<T> implements Runnable {
    *                     because the port has already be bound)
    */
   public Server(int port, Handler<T> handler) throws IOException {
-    // Create the TCP server socket
-    this.serverSocket = new ServerSocket(port);
+    this(port, handler, new SerializationCodec<>());
+  }
+
+  /**
+   * Creates a new server with the default number of event loops
+   *
+   * @param port    port number to listen for connections on
+   * @param handler function to be called when data is received from a client
+   * @param codec   codec for converting data to and from bytes
+   * @throws IOException if the server socket cannot be created (likely
+   *                     because the port has already be bound)
+   */
+  public Server(
+    int port,
+    Handler<T> handler,
+    Codec<T> codec
+  ) throws IOException {
+    this(port, handler, codec, DEFAULT_EVENT_LOOP_COUNT);
+  }
+
+  /**
+   * Creates a new server with the default number of event loops
+   *
+   * @param port    port number to listen for connections on
+   * @param handler function to be called when data is received from a client
+   * @param codec   codec for converting data to and from bytes
+   * @param options options for each connection's outbound queue
+   * @throws IOException if the server socket cannot be created (likely
+   *                     because the port has already be bound)
+   */
+  public Server(
+    int port,
+    Handler<T> handler,
+    Codec<T> codec,
+    ConnectionOptions options
+  ) throws IOException {
+    this(port, handler, codec, DEFAULT_EVENT_LOOP_COUNT, options);
+  }
+
+  /**
+   * Creates a new server
+   *
+   * @param port           port number to listen for connections on
+   * @param handler        function to be called when data is received from a
+   *                       client
+   * @param codec          codec for converting data to and from bytes
+   * @param eventLoopCount number of threads to perform network I/O on
+   * @throws IOException if the server socket cannot be created (likely
+   *                     because the port has already be bound)
+   */
+  public Server(
+    int port,
+    Handler<T> handler,
+    Codec<T> codec,
+    int eventLoopCount
+  ) throws IOException {
+    this(port, handler, codec, eventLoopCount, new ConnectionOptions());
+  }
+
+  /**
+   * Creates a new server
+   *
+   * @param port           port number to listen for connections on
+   * @param handler        function to be called when data is received from a
+   *                       client
+   * @param codec          codec for converting data to and from bytes
+   * @param eventLoopCount number of threads to perform network I/O on
+   * @param options        options controlling each connection's outbound
+   *                       queue
+   * @throws IOException if the server socket cannot be created (likely
+   *                     because the port has already be bound)
+   */
+  public Server(
+    int port,
+    Handler<T> handler,
+    Codec<T> codec,
+    int eventLoopCount,
+    ConnectionOptions options
+  ) throws IOException {
+    if (eventLoopCount < 1) {
+      throw new IllegalArgumentException("at least one event loop required");
+    }
+    // Create the non-blocking TCP server channel
+    this.serverChannel = ServerSocketChannel.open();
+    this.serverChannel.bind(new InetSocketAddress(port));
+    this.serverChannel.configureBlocking(false);
     // Store the handler so it can be called later
     this.handler = handler;
-    // Initialise the connections map
-    this.connections = new HashMap<>();
+    this.codec = codec;
+    this.options = options;
+    // Initialise the rooms map
+    this.rooms = new ConcurrentHashMap<>();
 
-    // Create a new thread for handling incoming connections from clients
-    Thread thread = new Thread(this, "Server");
-    thread.start();
+    // Create the event loops, the first of which accepts new connections
+    this.eventLoops = new EventLoop[eventLoopCount];
+    for (int i = 0; i < eventLoopCount; i++) {
+      eventLoops[i] = new EventLoop("Server-" + i, options.threadFactory);
+    }
+    eventLoops[0].register(
+      serverChannel,
+      SelectionKey.OP_ACCEPT,
+      new Acceptor()
+    );
   }
 
   /**
-   * Broadcasts data to all connections
+   * Broadcasts data to all connections, in every room
    *
    * @param data data to be sent
    */
@@ -57,69 +199,216 @@ public class Server<T> extends BaseBroadcaster<T> implements Runnable {
   }
 
   /**
-   * Broadcasts data to connections that return true from the predicate
+   * Broadcasts data to connections in every room that return true from the
+   * predicate
    *
    * @param data data to be sent
    * @param test function to test each connection ID against, if it returns
    *             true, the data is sent to that connection ID
    */
   public void broadcastWhere(T data, Predicate<String> test) {
-    for (Map.Entry<String, Connection> connection : connections.entrySet()) {
-      if (test.test(connection.getKey())) {
-        try {
-          connection.getValue().send(data);
-        } catch (IOException e) {
-          e.printStackTrace();
+    for (Room room : rooms.values()) {
+      room.broadcastWhere(data, test);
+    }
+  }
+
+  /**
+   * Gets every connection that has identified itself, in every room. Useful
+   * for checking each connection's queue depth and write latency to find
+   * slow clients.
+   *
+   * @return unmodifiable list of the current connections
+   */
+  public Collection<Connection<T>> getConnections() {
+    List<Connection<T>> connections = new ArrayList<>();
+    for (Room room : rooms.values()) {
+      connections.addAll(room.connections.values());
+    }
+    return Collections.unmodifiableList(connections);
+  }
+
+  /**
+   * Gets every connection that has identified itself in a room
+   *
+   * @param room name of the room
+   * @return unmodifiable view of the room's current connections, empty if
+   * nobody has joined the room
+   */
+  public Collection<Connection<T>> getConnections(String room) {
+    Room found = rooms.get(room);
+    if (found == null) return Collections.emptyList();
+    return Collections.unmodifiableCollection(found.connections.values());
+  }
+
+  /**
+   * Gets the name of the room a connection is in
+   *
+   * @param connection connection to get the room of
+   * @return the room the connection asked to join, or {@link #DEFAULT_ROOM}
+   * if it didn't name one
+   */
+  public static String roomOf(Connection<?> connection) {
+    String room = connection.getRoom();
+    return room == null ? DEFAULT_ROOM : room;
+  }
+
+  /**
+   * Group of connections that broadcasts only go between. Rooms are created
+   * when the first connection joins them and removed when the last leaves.
+   */
+  private class Room extends BaseBroadcaster<T> {
+    /**
+     * Map mapping connection IDs to their connection objects. Concurrent as
+     * connections are added and removed by different event loops.
+     */
+    private final Map<String, Connection<T>> connections =
+      new ConcurrentHashMap<>();
+
+    /**
+     * Broadcasts data to all connections in this room
+     *
+     * @param data data to be sent
+     */
+    @Override
+    public void broadcast(T data) {
+      broadcastWhere(data, (id) -> true);
+    }
+
+    /**
+     * Broadcasts data to connections in this room that return true from the
+     * predicate. The data is only encoded (and compressed) once, with the
+     * same bytes being written to every matching connection.
+     *
+     * @param data data to be sent
+     * @param test function to test each connection ID against, if it returns
+     *             true, the data is sent to that connection ID
+     */
+    @Override
+    public void broadcastWhere(T data, Predicate<String> test) {
+      // Encoded data, only created if there's a connection to send it to
+      EncodedData<T> encoded = null;
+      for (Map.Entry<String, Connection<T>> connection
+        : connections.entrySet()) {
+        if (test.test(connection.getKey())) {
+          try {
+            if (!connection.getValue().canShareFrames()) {
+              // Connections with stateful codecs must encode data themselves
+              connection.getValue().send(data);
+              continue;
+            }
+            if (encoded == null) encoded = new EncodedData<>(codec, data);
+            connection.getValue().send(encoded);
+          } catch (IOException e) {
+            e.printStackTrace();
+          }
         }
       }
     }
   }
 
   /**
-   * Function that runs the server. Called in a separate thread.
+   * Handler for the server channel that accepts new connections. Called on
+   * the first event loop.
    */
-  @Override
-  public void run() {
-    boolean open = true;
-    // Whilst the socket is open...
-    while (open) {
+  private class Acceptor implements EventLoop.ReadyHandler {
+    /**
+     * Accepts a new connection, assigning it to the next event loop
+     *
+     * @param key selection key for the server channel
+     * @throws IOException if the server channel has been closed
+     */
+    @Override
+    public void ready(SelectionKey key) throws IOException {
+      SocketChannel channel;
       try {
-        // Listen for new connections, this blocks until a new connection
-        // request is received or the socket is closed
-        Socket socket = serverSocket.accept();
-        // Create a connection object that waits for data from the socket and
-        // facilitates sending data to the client
-        new Connection<>(
-          socket,
-          (connection, id) -> {
-            // Set the connection ID when it is sent
-            connection.setId(id);
-            // Store the connection in the map
-            connections.put(id, connection);
-            try {
-              // Send the server's ID
-              connection.send("Server");
-            } catch (IOException e) {
-              e.printStackTrace();
-            }
-          },
-          (connection, data) -> {
-            // If the connection's been closed (data is null)
-            if (data == null) {
-              // Remove the connection from the map
-              connections.remove(connection.getId());
-            }
-            // Forward the incoming data onto the incoming data handler
-            handler.accept(connection, data);
-          },
-          this
-        );
+        channel = serverChannel.accept();
+      } catch (ClosedChannelException e) {
+        // The server is shutting down
+        throw e;
       } catch (IOException e) {
-        // Ignore the error if it was just the socket closing
-        if (!e.getMessage().equals("socket closed")) {
-          e.printStackTrace();
-        }
-        open = false;
+        // Errors like running out of file descriptors are usually temporary,
+        // so keep listening. The pending connection is still waiting though,
+        // so pause accepting briefly rather than retrying straight away.
+        e.printStackTrace();
+        key.interestOps(0);
+        eventLoops[0].schedule(() -> {
+          if (key.isValid()) key.interestOps(SelectionKey.OP_ACCEPT);
+        }, ACCEPT_RETRY_MILLIS);
+        return;
+      }
+      // Nothing to do if the pending connection has already gone away
+      if (channel == null) return;
+      try {
+        channel.configureBlocking(false);
+        // Packets are small and latency sensitive, so send them straight away
+        channel.socket().setTcpNoDelay(true);
+      } catch (IOException e) {
+        // Drop this connection, but keep accepting others
+        e.printStackTrace();
+        channel.close();
+        return;
+      }
+
+      // Spread connections over the event loops
+      EventLoop eventLoop = eventLoops[nextEventLoop];
+      nextEventLoop = (nextEventLoop + 1) % eventLoops.length;
+
+      // Create a connection object that waits for data from the channel and
+      // facilitates sending data to the client
+      new Connection<>(
+        channel,
+        eventLoop,
+        codec,
+        options,
+        (connection, id) -> {
+          // Set the connection ID when it is sent
+          connection.setId(id);
+          // Store the connection in its room, so its broadcasts only reach
+          // the other connections there. This is done atomically so the room
+          // can't be removed by its last connection leaving in between.
+          rooms.compute(roomOf(connection), (name, room) -> {
+            if (room == null) room = new Room();
+            connection.setBroadcaster(room);
+            room.connections.put(id, connection);
+            return room;
+          });
+          try {
+            // Send the server's ID
+            connection.sendId("Server");
+          } catch (IOException e) {
+            e.printStackTrace();
+          }
+        },
+        (connection, data) -> {
+          // If the connection's been closed (data is null)
+          if (data == null && connection.getId() != null) {
+            // Remove the connection from its room, unless it's already been
+            // replaced by a newer connection with the same ID, removing the
+            // room too if it's now empty
+            rooms.computeIfPresent(roomOf(connection), (name, room) -> {
+              room.connections.remove(connection.getId(), connection);
+              return room.connections.isEmpty() ? null : room;
+            });
+          }
+          // Forward the incoming data onto the incoming data handler
+          handler.accept(connection, data);
+        },
+        Server.this
+      );
+    }
+
+    /**
+     * Closes the server channel
+     *
+     * @param reason exception that caused the close, may be null
+     */
+    @Override
+    public void close(IOException reason) {
+      // Print the error if this wasn't just the server shutting down
+      if (reason != null) reason.printStackTrace();
+      try {
+        serverChannel.close();
+      } catch (IOException ignored) {
       }
     }
   }
@@ -130,6 +419,10 @@ public class Server<T> extends BaseBroadcaster<T> implements Runnable {
    * @throws IOException if there was a networking error
    */
   public void close() throws IOException {
-    serverSocket.close();
+    serverChannel.close();
+    // Stop the event loops, closing every connection
+    for (EventLoop eventLoop : eventLoops) {
+      eventLoop.close();
+    }
   }
 }
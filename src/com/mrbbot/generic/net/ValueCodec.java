@@ -0,0 +1,293 @@
+package com.mrbbot.generic.net;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Helper functions for writing compact binary representations of common
+ * values. Used by codecs to encode fields without the overhead of Java
+ * serialization.
+ */
+public final class ValueCodec {
+  /**
+   * Tag written before null
+   */
+  private static final byte TAG_NULL = 0;
+  /**
+   * Tag written before a string
+   */
+  private static final byte TAG_STRING = 1;
+  /**
+   * Tag written before an integer
+   */
+  private static final byte TAG_INTEGER = 2;
+  /**
+   * Tag written before a long
+   */
+  private static final byte TAG_LONG = 3;
+  /**
+   * Tag written before a double
+   */
+  private static final byte TAG_DOUBLE = 4;
+  /**
+   * Tag written before the boolean true
+   */
+  private static final byte TAG_TRUE = 5;
+  /**
+   * Tag written before the boolean false
+   */
+  private static final byte TAG_FALSE = 6;
+  /**
+   * Tag written before a list
+   */
+  private static final byte TAG_LIST = 7;
+  /**
+   * Tag written before a map
+   */
+  private static final byte TAG_MAP = 8;
+  /**
+   * Tag written before a value written with Java serialization
+   */
+  private static final byte TAG_SERIALIZED = 9;
+  /**
+   * Largest number of elements to reserve space for up front when reading
+   * a list, protecting against corrupt sizes
+   */
+  private static final int MAX_INITIAL_CAPACITY = 1024;
+  /**
+   * Largest number of bytes to allocate up front when reading an array of
+   * bytes, protecting against corrupt lengths
+   */
+  private static final int MAX_INITIAL_BYTES = 64 * 1024;
+  /**
+   * Deepest lists and maps can be nested inside each other when reading.
+   * Values are read recursively, so without a limit a value nested deeply
+   * enough would overflow the reading thread's stack.
+   */
+  private static final int MAX_DEPTH = 64;
+
+  private ValueCodec() {
+  }
+
+  /**
+   * Writes a signed integer using as few bytes as possible. Small positive and
+   * negative numbers (like coordinates) only take a single byte.
+   *
+   * @param out   output to write to
+   * @param value value to write
+   * @throws IOException if the value cannot be written
+   */
+  public static void writeVarInt(DataOutput out, int value)
+    throws IOException {
+    // Zig-zag encode the value so small negative numbers are small too
+    int zigZag = (value << 1) ^ (value >> 31);
+    // Write 7 bits at a time, setting the top bit if more bytes follow
+    while ((zigZag & ~0x7F) != 0) {
+      out.writeByte((zigZag & 0x7F) | 0x80);
+      zigZag >>>= 7;
+    }
+    out.writeByte(zigZag);
+  }
+
+  /**
+   * Reads a signed integer written by {@link #writeVarInt(DataOutput, int)}
+   *
+   * @param in input to read from
+   * @return the value that was read
+   * @throws IOException if the input doesn't contain a valid integer
+   */
+  public static int readVarInt(DataInput in) throws IOException {
+    int zigZag = 0;
+    for (int shift = 0; shift < 35; shift += 7) {
+      int b = in.readUnsignedByte();
+      zigZag |= (b & 0x7F) << shift;
+      if ((b & 0x80) == 0) {
+        // Undo the zig-zag encoding
+        return (zigZag >>> 1) ^ -(zigZag & 1);
+      }
+    }
+    throw new IOException("malformed variable length integer");
+  }
+
+  /**
+   * Writes a string as length-prefixed UTF-8. Unlike
+   * {@link DataOutput#writeUTF(String)}, this doesn't limit the string's
+   * length.
+   *
+   * @param out    output to write to
+   * @param string string to write, must not be null
+   * @throws IOException if the string cannot be written
+   */
+  public static void writeString(DataOutput out, String string)
+    throws IOException {
+    byte[] bytes = string.getBytes(StandardCharsets.UTF_8);
+    writeVarInt(out, bytes.length);
+    out.write(bytes);
+  }
+
+  /**
+   * Reads a string written by {@link #writeString(DataOutput, String)}
+   *
+   * @param in input to read from
+   * @return the string that was read
+   * @throws IOException if the input doesn't contain a valid string
+   */
+  public static String readString(DataInput in) throws IOException {
+    byte[] bytes = readBytes(in, readVarInt(in));
+    return new String(bytes, StandardCharsets.UTF_8);
+  }
+
+  /**
+   * Reads an array of bytes whose length has already been read from the
+   * input. The array grows as the bytes are read instead of being allocated
+   * up front, so a corrupt or malicious length can't make the reader
+   * allocate much more memory than the input actually contains.
+   *
+   * @param in     input to read from
+   * @param length number of bytes to read
+   * @return the bytes that were read
+   * @throws IOException if the length is negative or the input ends first
+   */
+  public static byte[] readBytes(DataInput in, int length)
+    throws IOException {
+    if (length < 0) throw new IOException("invalid length " + length);
+    byte[] bytes = new byte[Math.min(length, MAX_INITIAL_BYTES)];
+    int read = 0;
+    while (true) {
+      in.readFully(bytes, read, bytes.length - read);
+      read = bytes.length;
+      if (read == length) return bytes;
+      // Only grow the array once the bytes so far have actually arrived
+      bytes = Arrays.copyOf(bytes, (int) Math.min(length, 2L * read));
+    }
+  }
+
+  /**
+   * Writes a value of any supported type, prefixed with a tag describing its
+   * type. Strings, numbers, booleans, lists, maps and null are written
+   * compactly. Anything else is written with Java serialization.
+   *
+   * @param out   output to write to
+   * @param value value to write
+   * @throws IOException if the value cannot be written
+   */
+  public static void writeValue(DataOutput out, Object value)
+    throws IOException {
+    if (value == null) {
+      out.writeByte(TAG_NULL);
+    } else if (value instanceof String) {
+      out.writeByte(TAG_STRING);
+      writeString(out, (String) value);
+    } else if (value instanceof Integer) {
+      out.writeByte(TAG_INTEGER);
+      writeVarInt(out, (Integer) value);
+    } else if (value instanceof Long) {
+      out.writeByte(TAG_LONG);
+      out.writeLong((Long) value);
+    } else if (value instanceof Double) {
+      out.writeByte(TAG_DOUBLE);
+      out.writeDouble((Double) value);
+    } else if (value instanceof Boolean) {
+      out.writeByte((Boolean) value ? TAG_TRUE : TAG_FALSE);
+    } else if (value instanceof List) {
+      List<?> list = (List<?>) value;
+      out.writeByte(TAG_LIST);
+      writeVarInt(out, list.size());
+      for (Object element : list) {
+        writeValue(out, element);
+      }
+    } else if (value instanceof Map) {
+      Map<?, ?> map = (Map<?, ?>) value;
+      out.writeByte(TAG_MAP);
+      writeVarInt(out, map.size());
+      for (Map.Entry<?, ?> entry : map.entrySet()) {
+        writeValue(out, entry.getKey());
+        writeValue(out, entry.getValue());
+      }
+    } else {
+      // Fall back to Java serialization for anything else
+      byte[] bytes = SerializationCodec.serialize(value);
+      out.writeByte(TAG_SERIALIZED);
+      writeVarInt(out, bytes.length);
+      out.write(bytes);
+    }
+  }
+
+  /**
+   * Reads a value written by {@link #writeValue(DataOutput, Object)}. Lists
+   * are restored as {@link ArrayList}s and maps as {@link HashMap}s.
+   *
+   * @param in input to read from
+   * @return the value that was read
+   * @throws IOException if the input doesn't contain a valid value, or its
+   *                     lists and maps are nested too deeply
+   */
+  public static Object readValue(DataInput in) throws IOException {
+    return readValue(in, 0);
+  }
+
+  /**
+   * Reads a value nested inside other lists and maps
+   *
+   * @param in    input to read from
+   * @param depth number of lists and maps the value is inside
+   * @return the value that was read
+   * @throws IOException if the input doesn't contain a valid value, or its
+   *                     lists and maps are nested too deeply
+   */
+  private static Object readValue(DataInput in, int depth)
+    throws IOException {
+    byte tag = in.readByte();
+    if ((tag == TAG_LIST || tag == TAG_MAP) && depth >= MAX_DEPTH) {
+      throw new IOException("values nested too deeply");
+    }
+    switch (tag) {
+      case TAG_NULL:
+        return null;
+      case TAG_STRING:
+        return readString(in);
+      case TAG_INTEGER:
+        return readVarInt(in);
+      case TAG_LONG:
+        return in.readLong();
+      case TAG_DOUBLE:
+        return in.readDouble();
+      case TAG_TRUE:
+        return true;
+      case TAG_FALSE:
+        return false;
+      case TAG_LIST: {
+        int size = readVarInt(in);
+        List<Object> list = new ArrayList<>(
+          Math.min(size, MAX_INITIAL_CAPACITY)
+        );
+        for (int i = 0; i < size; i++) {
+          list.add(readValue(in, depth + 1));
+        }
+        return list;
+      }
+      case TAG_MAP: {
+        int size = readVarInt(in);
+        Map<Object, Object> map = new HashMap<>();
+        for (int i = 0; i < size; i++) {
+          Object key = readValue(in, depth + 1);
+          map.put(key, readValue(in, depth + 1));
+        }
+        return map;
+      }
+      case TAG_SERIALIZED: {
+        byte[] bytes = readBytes(in, readVarInt(in));
+        return SerializationCodec.deserialize(bytes);
+      }
+      default:
+        throw new IOException("unknown value tag " + tag);
+    }
+  }
+}